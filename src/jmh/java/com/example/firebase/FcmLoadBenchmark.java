@@ -0,0 +1,138 @@
+package com.example.firebase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Drives the {@link FirebaseThreadedMessagingService} over the pooled
+ * transport against the {@link FcmStandInServer} with different server
+ * profiles and reports the delivery throughput. A message counts once it is
+ * delivered or rejected for good, retries included. The FCM round-trip and
+ * queue time percentiles of each trial are printed at its end.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FcmLoadBenchmark {
+
+    private static final int MESSAGES = 512;
+
+    private static final int USERS = 64;
+
+    /**
+     * healthy: 2 ms median latency with a short tail, tail: the same median
+     * with a long tail, storm: 30% of the requests fail with 503, errors: 5%
+     * Unavailable, 5% NotRegistered and 10% canonical ids
+     */
+    @Param({ "healthy", "tail", "storm", "errors" })
+    public String profile;
+
+    @Param({ "4", "16" })
+    public int workers;
+
+    private FcmStandInServer server;
+
+    private PooledHttpTransport transport;
+
+    private FirebaseThreadedMessagingService service;
+
+    private DeliveryMetrics metrics;
+
+    private String[] usernames;
+
+    private int sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FcmStandInServer("benchmark", 4);
+        if (profile.equals("tail")) {
+            server.setLatency(FcmStandInServer.Latency.logNormal(2000, 1.0));
+        } else {
+            server.setLatency(FcmStandInServer.Latency.logNormal(2000, 0.3));
+        }
+        if (profile.equals("storm")) {
+            server.setFailure(503, 0.3, 0);
+        } else if (profile.equals("errors")) {
+            server.setResultError("Unavailable", 0.05);
+            server.setResultError("NotRegistered", 0.05);
+            server.setCanonicalRate(0.1);
+        }
+
+        transport = new PooledHttpTransport(64, 64, 1000, 5000, 30000);
+        service = new FirebaseThreadedMessagingService("benchmark",
+                new RestTemplate(transport.createRequestFactory()), workers);
+        service.setUrl(server.getUrl());
+        service.setRetryScheduler(new RetryScheduler(5, 50, 20));
+        service.start();
+        metrics = service.getMetrics();
+
+        usernames = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            usernames[i] = "user-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.sendStopMessage();
+        service.join();
+        System.out.println();
+        System.out.println("round-trip: " + metrics.getHttpTime()
+                .toJSON());
+        System.out.println("queued: " + metrics.getNormalQueueTime()
+                .toJSON());
+        System.out.println("server: " + server.getRequests() + " requests, " + server.getFailedRequests()
+                + " failed, " + server.getErrorResults() + " error results");
+        transport.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void deliver() throws Exception {
+        long target = completed() + MESSAGES;
+        for (int i = 0; i < MESSAGES; i++) {
+            String username = usernames[i % USERS];
+            JSONObject payload = new JSONObject();
+            try {
+                payload.put("data", new JSONObject().put("sequence", sequence++));
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            service.sendMessage(new FirebaseMessage(username, payload, "token-" + username));
+        }
+        while (completed() < target) {
+            Thread.sleep(0, 100000);
+        }
+    }
+
+    /**
+     * The messages delivered or rejected for good
+     */
+    private long completed() {
+        return metrics.getDelivered() + metrics.getErrorCount("NotRegistered");
+    }
+}
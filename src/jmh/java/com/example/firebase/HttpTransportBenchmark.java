@@ -0,0 +1,82 @@
+package com.example.firebase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Compares the latency of a single FCM request over the default
+ * {@link SimpleClientHttpRequestFactory} with the {@link PooledHttpTransport}.
+ * The FCM server is replaced by a local HTTP server answering every request
+ * with a success. Run with -t to add concurrent senders.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpTransportBenchmark {
+
+    @Param({ "simple", "pooled" })
+    public String transport;
+
+    private FcmStandInServer server;
+
+    private PooledHttpTransport pooledTransport;
+
+    private FirebaseMessagingService messagingService;
+
+    private FirebaseMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException {
+        server = new FcmStandInServer(null, 16);
+
+        RestTemplate template;
+        if (transport.equals("pooled")) {
+            pooledTransport = new PooledHttpTransport(64, 64, 1000, 5000, 30000);
+            template = new RestTemplate(pooledTransport.createRequestFactory());
+        } else {
+            template = new RestTemplate(new SimpleClientHttpRequestFactory());
+        }
+        messagingService = new FirebaseMessagingService(template, server.getUrl(), "benchmark", (m, status, headers, results) -> {
+        });
+
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", "personal space violated"));
+        message = new FirebaseMessage("user", payload, "token");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (pooledTransport != null) {
+            pooledTransport.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public void send() throws JSONException {
+        messagingService.sendMessage(message);
+    }
+}
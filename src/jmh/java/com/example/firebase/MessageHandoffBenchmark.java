@@ -0,0 +1,140 @@
+package com.example.firebase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the unbounded {@link LinkedBlockingQueue} the workers used to
+ * drain with the {@link RingBuffer} and each of its wait strategies. Every
+ * invocation hands over a fixed number of messages from 1, 4 or 16 producer
+ * threads, standing in for the tomcat threads, to a single worker. The ring
+ * has the default capacity of a partition, so producers outrunning the worker
+ * are held back as they would be in production. Busy spinning needs a core
+ * per waiting thread to be meaningful.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx512m" })
+public class MessageHandoffBenchmark {
+
+    private static final int MESSAGES = 65536;
+
+    @Param({ "linked", "ring-blocking", "ring-yielding", "ring-busyspin" })
+    public String queue;
+
+    @Param({ "1", "4", "16" })
+    public int producers;
+
+    private Handoff handoff;
+
+    private ExecutorService producerPool;
+
+    private ExecutorService consumerPool;
+
+    private Message message;
+
+    /**
+     * The common operations of both queues
+     */
+    private interface Handoff {
+
+        void put(Message message) throws InterruptedException;
+
+        Message take() throws InterruptedException;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (queue.equals("linked")) {
+            final BlockingQueue<Message> linked = new LinkedBlockingQueue<Message>();
+            handoff = new Handoff() {
+
+                @Override
+                public void put(Message message) throws InterruptedException {
+                    linked.put(message);
+                }
+
+                @Override
+                public Message take() throws InterruptedException {
+                    return linked.take();
+                }
+            };
+        } else {
+            RingBuffer.WaitStrategy strategy = queue.equals("ring-blocking") ? RingBuffer.WaitStrategy.BLOCKING
+                    : queue.equals("ring-yielding") ? RingBuffer.WaitStrategy.YIELDING
+                            : RingBuffer.WaitStrategy.BUSY_SPIN;
+            final RingBuffer<Message> ring = new RingBuffer<Message>(
+                    FirebaseThreadedMessagingService.DEFAULT_QUEUE_CAPACITY, strategy, RingBuffer.FullPolicy.BLOCK,
+                    Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            handoff = new Handoff() {
+
+                @Override
+                public void put(Message message) throws InterruptedException {
+                    ring.offer(message);
+                }
+
+                @Override
+                public Message take() throws InterruptedException {
+                    return ring.take();
+                }
+            };
+        }
+        producerPool = Executors.newFixedThreadPool(producers);
+        consumerPool = Executors.newSingleThreadExecutor();
+        message = new FirebaseMessage("user", null, "token");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        producerPool.shutdownNow();
+        consumerPool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int handoff() throws Exception {
+        Future<Integer> consumer = consumerPool.submit(() -> {
+            int received = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                if (handoff.take() != null) {
+                    received++;
+                }
+            }
+            return received;
+        });
+        final int perProducer = MESSAGES / producers;
+        for (int p = 0; p < producers; p++) {
+            producerPool.submit(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    handoff.put(message);
+                }
+                return null;
+            });
+        }
+        return consumer.get();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.firebase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency the {@link OutboxJournal} adds to queueing a message,
+ * that is recording it as enqueued, and to acknowledging it once sent. The
+ * journal forces to disk in the background, so neither waits for the disk.
+ * Run with -t to add concurrent senders.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboxJournalBenchmark {
+
+    private File directory;
+
+    private OutboxJournal journal;
+
+    private JSONObject payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException {
+        directory = Files.createTempDirectory("outbox")
+                .toFile();
+        journal = new OutboxJournal(directory, OutboxJournal.DEFAULT_SEGMENT_SIZE,
+                OutboxJournal.DEFAULT_FLUSH_INTERVAL);
+        payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", "personal space violated"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        journal.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Records a new message as enqueued and then as sent, so the segments
+     * are reclaimed as they would be in production
+     */
+    @Benchmark
+    public long enqueueAndAcknowledge() {
+        FirebaseMessage message = new FirebaseMessage("user", payload, "token");
+        journal.enqueued(message);
+        long id = message.getId();
+        journal.sent(message);
+        return id;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.firebase;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Measures the work done on the worker around a request: generating the
+ * request body and handling the results, for a single message and for a
+ * multicast to 1000 recipients. Every tenth result carries a canonical id.
+ * The responses are parsed beforehand, parsing them is part of the
+ * transport.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseHandlingBenchmark {
+
+    @Param({ "1", "1000" })
+    public int recipients;
+
+    private FirebaseThreadedMessagingService service;
+
+    private Message message;
+
+    private JSONArray results;
+
+    private final HttpHeaders headers = new HttpHeaders();
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        // never started, only used to handle the responses
+        service = new FirebaseThreadedMessagingService("benchmark", new RestTemplate());
+
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", "personal space violated")
+                .put("distance", 1.5));
+        FirebaseMessage first = new FirebaseMessage("user-0", payload, "token-0");
+        if (recipients == 1) {
+            message = first;
+        } else {
+            FirebaseMulticastMessage multicast = new FirebaseMulticastMessage(first);
+            for (int i = 1; i < recipients; i++) {
+                multicast.add(new FirebaseMessage("user-" + i, payload, "token-" + i));
+            }
+            message = multicast;
+        }
+
+        results = new JSONArray();
+        for (int i = 0; i < recipients; i++) {
+            JSONObject result = new JSONObject().put("message_id", "0:" + i);
+            if (i % 10 == 9) {
+                result.put("registration_id", "canonical-" + i);
+            }
+            results.put(result);
+        }
+    }
+
+    @Benchmark
+    public String generateRequest() {
+        return message.generateRequest();
+    }
+
+    @Benchmark
+    public void handleResponse() {
+        service.handleResponse(message, HttpStatus.OK, headers, results);
+    }
+}
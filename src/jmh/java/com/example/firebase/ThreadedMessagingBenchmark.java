@@ -0,0 +1,164 @@
+package com.example.firebase;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Measures how the delivery throughput of the
+ * {@link FirebaseThreadedMessagingService} scales with the number of workers.
+ * The FCM server is replaced by a request factory that answers every request
+ * with a success for each recipient after a fixed round-trip time.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadedMessagingBenchmark {
+
+    private static final int MESSAGES = 512;
+
+    private static final int USERS = 64;
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int workers;
+
+    /**
+     * The simulated FCM round-trip in micro seconds
+     */
+    @Param({ "2000" })
+    public int roundTripMicros;
+
+    /**
+     * Whether every user receives the same payload, which allows batching
+     */
+    @Param({ "false", "true" })
+    public boolean broadcast;
+
+    private FirebaseThreadedMessagingService service;
+
+    private AtomicInteger delivered;
+
+    private String[] usernames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        delivered = new AtomicInteger();
+        RestTemplate template = new RestTemplate(new DelayedRequestFactory(roundTripMicros, delivered));
+        service = new FirebaseThreadedMessagingService("benchmark", template, workers);
+        service.start();
+
+        usernames = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            usernames[i] = "user-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        service.sendStopMessage();
+        service.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void deliver() throws Exception {
+        int target = delivered.get() + MESSAGES;
+        for (int i = 0; i < MESSAGES; i++) {
+            String username = usernames[i % USERS];
+            JSONObject payload = new JSONObject();
+            payload.put("data", new JSONObject().put("sequence", broadcast ? 0 : i));
+            service.sendMessage(new FirebaseMessage(username, payload, "token-" + username));
+        }
+        while (delivered.get() < target) {
+            Thread.sleep(0, 100000);
+        }
+    }
+
+    /**
+     * Answers every request with a successful FCM response after sleeping for
+     * the round-trip time
+     */
+    private static class DelayedRequestFactory implements ClientHttpRequestFactory {
+
+        private final long roundTripNanos;
+
+        private final AtomicInteger delivered;
+
+        private DelayedRequestFactory(int roundTripMicros, AtomicInteger delivered) {
+            this.roundTripNanos = TimeUnit.MICROSECONDS.toNanos(roundTripMicros);
+            this.delivered = delivered;
+        }
+
+        @Override
+        public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+            return new MockClientHttpRequest(httpMethod, uri) {
+
+                @Override
+                protected ClientHttpResponse executeInternal() throws IOException {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(roundTripNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread()
+                                .interrupt();
+                    }
+                    final int recipients;
+                    byte[] body;
+                    try {
+                        JSONObject request = new JSONObject(getBodyAsString());
+                        recipients = request.has("registration_ids") ? request.getJSONArray("registration_ids")
+                                .length() : 1;
+                        JSONArray results = new JSONArray();
+                        for (int i = 0; i < recipients; i++) {
+                            results.put(new JSONObject().put("message_id", "0:" + i));
+                        }
+                        body = new JSONObject().put("results", results)
+                                .toString()
+                                .getBytes(StandardCharsets.UTF_8);
+                    } catch (JSONException e) {
+                        throw new IOException(e);
+                    }
+                    return new MockClientHttpResponse(body, HttpStatus.OK) {
+
+                        @Override
+                        public void close() {
+                            delivered.addAndGet(recipients);
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.personalspace;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+import com.example.PersonalSpaceApplication;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+
+/**
+ * Compares enrolling a cohort with one request per user and with a single
+ * bulk request, through the controller and the Spring MVC binding but
+ * without a network, each run into a new session.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class BulkEnrollmentBenchmark {
+
+    @Param({ "10000" })
+    public int users;
+
+    private MockMvc mockMvc;
+
+    private SessionRegistry registry;
+
+    private String[] singles;
+
+    private String bulk;
+
+    private long sessionId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new SessionRegistry(1);
+        PersonalSpaceApplication controller = new PersonalSpaceApplication();
+        ReflectionTestUtils.setField(controller, "sessions", registry);
+        ReflectionTestUtils.setField(controller, "tokenRegistry", new PushTokenRegistry(16));
+        ReflectionTestUtils.setField(controller, "bulkEnrollment", new BulkEnrollment());
+        mockMvc = standaloneSetup(controller).build();
+
+        singles = new String[users];
+        StringBuilder all = new StringBuilder("[");
+        for (int i = 0; i < users; i++) {
+            singles[i] = "{\"name\": \"user-" + i + "\", \"pushToken\": \"token-" + i
+                    + "\", \"pref\": {\"distance\": 1.5}}";
+            all.append(i == 0 ? "" : ",")
+                    .append(singles[i]);
+        }
+        bulk = all.append(']')
+                .toString();
+    }
+
+    @Setup(Level.Invocation)
+    public void newSession() {
+        Session current = registry.getCurrent();
+        if (current != null) {
+            registry.close(current);
+        }
+        sessionId = registry.start("cohort")
+                .getId();
+    }
+
+    @Benchmark
+    public int singlePosts() throws Exception {
+        int status = 0;
+        for (String single : singles) {
+            status = mockMvc.perform(post("/sessions/" + sessionId + "/users").contentType(MediaType.APPLICATION_JSON)
+                    .content(single))
+                    .andReturn()
+                    .getResponse()
+                    .getStatus();
+        }
+        return status;
+    }
+
+    @Benchmark
+    public int bulkPost() throws Exception {
+        return mockMvc.perform(post("/sessions/" + sessionId + "/users/bulk").contentType(MediaType.APPLICATION_JSON)
+                .content(bulk))
+                .andReturn()
+                .getResponse()
+                .getStatus();
+    }
+}
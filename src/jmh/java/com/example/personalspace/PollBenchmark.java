@@ -0,0 +1,160 @@
+package com.example.personalspace;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+import com.example.PersonalSpaceApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Compares the polls of a session and of its users, without a network, the
+ * session through the Spring MVC binding and the users from the controller.
+ * A poll after a change writes the session again, as every poll did before
+ * the responses were tagged, a poll at the same revision is written from the
+ * cached body, and a poll naming the tag of the revision is answered 304.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class PollBenchmark {
+
+    @Param({ "1000" })
+    public int users;
+
+    private PersonalSpaceApplication controller;
+
+    private MockMvc mockMvc;
+
+    private Session session;
+
+    private String sessionUrl;
+
+    private String usersUrl;
+
+    private String sessionTag;
+
+    private String usersTag;
+
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SessionRegistry registry = new SessionRegistry(1);
+        session = registry.start("polled");
+        random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            user.setPushToken("token-" + i);
+            Preference pref = new Preference();
+            pref.setDistance(random.nextDouble() * 3);
+            user.setPref(pref);
+            session.addUser(user);
+            session.updateLocation(user.getName(), new Location(random.nextDouble() * 100, random.nextDouble() * 100));
+        }
+        controller = new PersonalSpaceApplication();
+        ReflectionTestUtils.setField(controller, "sessions", registry);
+        ReflectionTestUtils.setField(controller, "userWriter", new UserWriter(new ObjectMapper()));
+        mockMvc = standaloneSetup(controller).build();
+        sessionUrl = "/sessions/" + session.getId();
+        usersUrl = sessionUrl + "/users";
+        sessionTag = poll(sessionUrl, null).getResponse()
+                .getHeader("ETag");
+        usersTag = pollUsers(null).getHeader("ETag");
+    }
+
+    private MvcResult poll(String url, String etag) throws Exception {
+        return mockMvc.perform(etag == null ? get(url).accept(MediaType.APPLICATION_JSON)
+                : get(url).accept(MediaType.APPLICATION_JSON)
+                        .header("If-None-Match", etag))
+                .andReturn();
+    }
+
+    /**
+     * Calls the listing directly and writes its body, as the async dispatch
+     * of the mock waits in steps of a hundred milliseconds
+     */
+    private MockHttpServletResponse pollUsers(String etag) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", usersUrl);
+        if (etag != null) {
+            request.addHeader("If-None-Match", etag);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ResponseEntity<StreamingResponseBody> entity = controller.getAllCustomers(session.getId(), null, null,
+                new ServletWebRequest(request, response));
+        if (entity != null) {
+            entity.getBody()
+                    .writeTo(response.getOutputStream());
+        }
+        return response;
+    }
+
+    private void change() {
+        session.updateLocation("user-" + random.nextInt(users),
+                new Location(random.nextDouble() * 100, random.nextDouble() * 100));
+    }
+
+    @Benchmark
+    public int sessionChanged() throws Exception {
+        change();
+        return poll(sessionUrl, null).getResponse()
+                .getContentLength();
+    }
+
+    @Benchmark
+    public int sessionCached() throws Exception {
+        return poll(sessionUrl, null).getResponse()
+                .getContentLength();
+    }
+
+    @Benchmark
+    public int sessionNotModified() throws Exception {
+        return poll(sessionUrl, sessionTag).getResponse()
+                .getStatus();
+    }
+
+    @Benchmark
+    public int usersChanged() throws Exception {
+        change();
+        return pollUsers(null).getContentAsByteArray().length;
+    }
+
+    @Benchmark
+    public int usersCached() throws Exception {
+        return pollUsers(null).getContentAsByteArray().length;
+    }
+
+    @Benchmark
+    public int usersNotModified() throws Exception {
+        return pollUsers(usersTag).getStatus();
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.personalspace;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures appending to a {@link PreferenceHistory} and reading an hour, and
+ * a day by the minute, back out of a history of a million changes, about two
+ * weeks of a change a second. The bytes per change are printed at the end.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class PreferenceHistoryBenchmark {
+
+    private static final int CHANGES = 1000000;
+
+    private static final long START = 1500000000000L;
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private PreferenceHistory history;
+
+    private PreferenceHistory appended;
+
+    private long time;
+
+    private long end;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        history = new PreferenceHistory();
+        Random random = new Random(42);
+        long time = START;
+        double distance = 1;
+        for (int i = 0; i < CHANGES; i++) {
+            time += 500 + random.nextInt(1000);
+            if (random.nextInt(4) == 0) {
+                distance = random.nextInt(4000) / 1000.0;
+            }
+            history.append(time, distance);
+        }
+        end = time;
+    }
+
+    @Setup(Level.Iteration)
+    public void newHistory() {
+        appended = new PreferenceHistory();
+        time = START;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("bytes per change: " + (double) history.getBytes() / history.size());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void append() {
+        time += 1000;
+        appended.append(time, ThreadLocalRandom.current()
+                .nextInt(4000) / 1000.0);
+    }
+
+    @Benchmark
+    public PreferenceHistory.Series rangeHour() {
+        long from = START + ThreadLocalRandom.current()
+                .nextLong(end - START - HOUR);
+        return history.range(from, from + HOUR);
+    }
+
+    @Benchmark
+    public PreferenceHistory.Buckets downsampleDay() {
+        long from = START + ThreadLocalRandom.current()
+                .nextLong(end - START - 24 * HOUR);
+        return history.downsample(from, from + 24 * HOUR, TimeUnit.MINUTES.toMillis(1));
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.personalspace;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning the maps jackson builds from a request body into a
+ * {@link User} and a {@link Preference}, with the distance given as an
+ * integer and as a decimal.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private final Map<String, Object> integerPref = new HashMap<String, Object>();
+
+    private final Map<String, Object> decimalPref = new HashMap<String, Object>();
+
+    private final Map<String, Object> user = new HashMap<String, Object>();
+
+    public RequestParsingBenchmark() {
+        integerPref.put("distance", 2);
+        decimalPref.put("distance", 1.5);
+        user.put("name", "user");
+        user.put("pushToken", "push token");
+        user.put("pref", decimalPref);
+    }
+
+    @Benchmark
+    public Preference preferenceFromInteger() {
+        Preference pref = new Preference();
+        pref.fromMap(integerPref);
+        return pref;
+    }
+
+    @Benchmark
+    public Preference preferenceFromDecimal() {
+        Preference pref = new Preference();
+        pref.fromMap(decimalPref);
+        return pref;
+    }
+
+    @Benchmark
+    public User userFromMap() {
+        User result = new User();
+        result.fromMap(user);
+        return result;
+    }
+}
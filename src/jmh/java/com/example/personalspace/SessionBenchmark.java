@@ -0,0 +1,95 @@
+package com.example.personalspace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the session operations behind the user endpoints while several
+ * request threads use the same session: updating the preference of one of
+ * the joined users, and a user joining and leaving again. Every thread joins
+ * with its own name, so the session always holds the same users.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SessionBenchmark {
+
+    @Param({ "10", "1000" })
+    public int users;
+
+    private Session session;
+
+    private String[] usernames;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * The user a single benchmark thread joins with
+     */
+    @State(Scope.Thread)
+    public static class Joining {
+
+        private User user;
+
+        private Preference pref;
+
+        @Setup(Level.Trial)
+        public void setUp(SessionBenchmark benchmark) {
+            user = new User();
+            user.setName("joining-" + benchmark.threads.getAndIncrement());
+            user.setPushToken("push token");
+            pref = new Preference();
+            pref.setDistance(1.5);
+            user.setPref(pref);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        session = new Session();
+        usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            User user = new User();
+            usernames[i] = "user-" + i;
+            user.setName(usernames[i]);
+            user.setPushToken("token-" + i);
+            user.setPref(new Preference());
+            session.addUser(user);
+        }
+    }
+
+    @Benchmark
+    public boolean updatePreference(Joining joining) {
+        String username = usernames[ThreadLocalRandom.current()
+                .nextInt(users)];
+        return session.updatePreference(username, joining.pref);
+    }
+
+    @Benchmark
+    public boolean addAndRemoveUser(Joining joining) {
+        boolean added = session.addUser(joining.user);
+        session.removeUser(joining.user.getName());
+        return added;
+    }
+}
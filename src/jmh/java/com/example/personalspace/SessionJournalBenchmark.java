@@ -0,0 +1,192 @@
+package com.example.personalspace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link SessionJournal}: how long a restart takes to restore
+ * 100000 users in 1000 sessions, either from a snapshot or by replaying a log
+ * of every user joining and updating a preference, and what journaling adds to
+ * a preference update.
+ *
+ * @author aanal
+ *
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class SessionJournalBenchmark {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final int SESSIONS = 1000;
+
+    private static final int USERS = 100;
+
+    /**
+     * A journal written once per trial and copied before each recovery, as
+     * recovering rewrites it
+     */
+    @State(Scope.Benchmark)
+    public static class Recovery {
+
+        /**
+         * snapshot: written by a clean shutdown, log: left by a crash before
+         * any snapshot
+         */
+        @Param({ "snapshot", "log" })
+        public String source;
+
+        private File template;
+
+        private File directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            template = Files.createTempDirectory("journal-template")
+                    .toFile();
+            SessionRegistry registry = new SessionRegistry(SESSIONS);
+            SessionJournal journal = new SessionJournal(template, registry, HOUR, Long.MAX_VALUE, HOUR);
+            Preference pref = new Preference();
+            pref.setDistance(1.5);
+            for (int s = 0; s < SESSIONS; s++) {
+                Session session = registry.start("study-" + s);
+                for (int u = 0; u < USERS; u++) {
+                    User user = new User();
+                    user.setName("user-" + u);
+                    user.setPushToken("token-" + s + "-" + u);
+                    session.addUser(user);
+                    session.updatePreference(user.getName(), pref);
+                }
+            }
+            if (source.equals("snapshot")) {
+                journal.close();
+            } else {
+                journal.flush();
+                File crashed = Files.createTempDirectory("journal-template")
+                        .toFile();
+                copy(template, crashed);
+                journal.close();
+                delete(template);
+                template = crashed;
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void copyTemplate() throws IOException {
+            directory = Files.createTempDirectory("journal")
+                    .toFile();
+            copy(template, directory);
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteCopy() {
+            delete(directory);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            delete(template);
+        }
+    }
+
+    /**
+     * A session of users updating their preferences, journaled with the
+     * default flush interval
+     */
+    @State(Scope.Benchmark)
+    public static class Appending {
+
+        private File directory;
+
+        private SessionJournal journal;
+
+        private Session session;
+
+        private String[] usernames;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("journal")
+                    .toFile();
+            SessionRegistry registry = new SessionRegistry(1);
+            journal = new SessionJournal(directory, registry, SessionJournal.DEFAULT_FLUSH_INTERVAL,
+                    SessionJournal.DEFAULT_SNAPSHOT_SIZE, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL);
+            session = registry.start("study");
+            usernames = new String[USERS];
+            for (int u = 0; u < USERS; u++) {
+                usernames[u] = "user-" + u;
+                User user = new User();
+                user.setName(usernames[u]);
+                user.setPushToken("token-" + u);
+                session.addUser(user);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            journal.close();
+            System.out.println();
+            System.out.println("journal: " + journal.toJSON());
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public SessionRegistry recover(Recovery recovery) throws IOException {
+        SessionRegistry registry = new SessionRegistry(SESSIONS);
+        new SessionJournal(recovery.directory, registry, HOUR, Long.MAX_VALUE, HOUR).close();
+        if (registry.getSessionCount() != SESSIONS) {
+            throw new IllegalStateException("Restored " + registry.getSessionCount() + " sessions");
+        }
+        return registry;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Threads(4)
+    public boolean updatePreference(Appending appending) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Preference pref = new Preference();
+        pref.setDistance(random.nextDouble() * 10);
+        return appending.session.updatePreference(appending.usernames[random.nextInt(USERS)], pref);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+        }
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
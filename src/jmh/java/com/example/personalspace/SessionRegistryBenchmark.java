@@ -0,0 +1,103 @@
+package com.example.personalspace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the requests of many sessions running in parallel: finding a
+ * session by id and updating the preference of one of its users, and a
+ * session being started and closed, with 10000 live sessions of 10 users
+ * each. The heap held per idle session is printed when setting up.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+@Threads(4)
+public class SessionRegistryBenchmark {
+
+    @Param({ "10000" })
+    public int sessions;
+
+    @Param({ "10" })
+    public int users;
+
+    private SessionRegistry registry;
+
+    private long[] ids;
+
+    private String[] usernames;
+
+    private final Preference pref = new Preference();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new SessionRegistry(sessions + 64);
+        usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            usernames[i] = "user-" + i;
+        }
+
+        long before = usedHeap();
+        ids = new long[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = registry.start("idle-" + i)
+                    .getId();
+        }
+        long idle = usedHeap() - before;
+        for (long id : ids) {
+            Session session = registry.get(id);
+            for (int i = 0; i < users; i++) {
+                User user = new User();
+                user.setName(usernames[i]);
+                user.setPushToken("token-" + id + "-" + i);
+                user.setPref(new Preference());
+                session.addUser(user);
+            }
+        }
+        long joined = usedHeap() - before;
+        System.out.println();
+        System.out.println("heap per idle session: " + idle / sessions + " bytes, with " + users + " users: "
+                + joined / sessions + " bytes");
+    }
+
+    @Benchmark
+    public boolean updatePreference() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Session session = registry.get(ids[random.nextInt(sessions)]);
+        return session.updatePreference(usernames[random.nextInt(users)], pref);
+    }
+
+    @Benchmark
+    public boolean startAndClose() {
+        Session session = registry.start("benchmark-" + Thread.currentThread()
+                .getId());
+        return registry.close(session);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.personalspace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the proximity queries of the {@link SpatialIndex} with a scan over
+ * every user of the session: the users within a personal space of 1.5, and
+ * the 5 nearest users, around a random user. The users are spread over an
+ * area growing with their number, at one user per 4 square units, a dense
+ * crowd in metres. Moving a user is measured as well.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class SpatialIndexBenchmark {
+
+    private static final double PERSONAL_SPACE = 1.5;
+
+    private static final int NEAREST = 5;
+
+    @Param({ "1000", "10000", "100000" })
+    public int users;
+
+    private Session session;
+
+    private SpatialIndex index;
+
+    private User[] members;
+
+    private double side;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        side = Math.sqrt(users * 4.0);
+        session = new Session();
+        members = new User[users];
+        for (int i = 0; i < users; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            session.addUser(user);
+            session.updateLocation(user.getName(), new Location(random.nextDouble() * side,
+                    random.nextDouble() * side));
+            members[i] = user;
+        }
+        index = session.getIndex();
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Neighbour> withinIndex() {
+        User user = pick();
+        Location location = user.getLocation();
+        return index.within(location.getX(), location.getY(), PERSONAL_SPACE, user);
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Neighbour> withinScan() {
+        User user = pick();
+        Location location = user.getLocation();
+        List<SpatialIndex.Neighbour> found = new ArrayList<>();
+        for (User other : session.getActiveUsers()
+                .values()) {
+            double distance = other.getLocation()
+                    .distanceTo(location.getX(), location.getY());
+            if (other != user && distance <= PERSONAL_SPACE) {
+                found.add(new SpatialIndex.Neighbour(other, distance));
+            }
+        }
+        found.sort((a, b) -> Double.compare(a.getDistance(), b.getDistance()));
+        return found;
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Neighbour> nearestIndex() {
+        User user = pick();
+        Location location = user.getLocation();
+        return index.nearest(location.getX(), location.getY(), NEAREST, Double.POSITIVE_INFINITY, user);
+    }
+
+    @Benchmark
+    public PriorityQueue<SpatialIndex.Neighbour> nearestScan() {
+        User user = pick();
+        Location location = user.getLocation();
+        PriorityQueue<SpatialIndex.Neighbour> best = new PriorityQueue<>(NEAREST,
+                (a, b) -> Double.compare(b.getDistance(), a.getDistance()));
+        for (User other : session.getActiveUsers()
+                .values()) {
+            double distance = other.getLocation()
+                    .distanceTo(location.getX(), location.getY());
+            if (other == user || (best.size() == NEAREST && distance >= best.peek()
+                    .getDistance())) {
+                continue;
+            }
+            best.add(new SpatialIndex.Neighbour(other, distance));
+            if (best.size() > NEAREST) {
+                best.poll();
+            }
+        }
+        return best;
+    }
+
+    @Benchmark
+    public boolean move() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return session.updateLocation(pick().getName(), new Location(random.nextDouble() * side,
+                random.nextDouble() * side));
+    }
+
+    private User pick() {
+        return members[ThreadLocalRandom.current()
+                .nextInt(members.length)];
+    }
+}
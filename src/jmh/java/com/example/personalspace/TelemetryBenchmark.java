@@ -0,0 +1,102 @@
+package com.example.personalspace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the telemetry samples per second taken by the
+ * {@link TelemetryIngester}, in batches of 10 users of 50 samples each out of
+ * a session of 1000 users, each thread parsing its own batches as the request
+ * threads would. Run with the gc profiler to see the allocations per sample.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+@Threads(4)
+public class TelemetryBenchmark {
+
+    private static final int USERS = 1000;
+
+    private static final int USERS_PER_BATCH = 10;
+
+    private static final int SAMPLES_PER_USER = 50;
+
+    private static final int BATCHES = 64;
+
+    private Session session;
+
+    private TelemetryIngester ingester;
+
+    private byte[][] batches;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        session = new SessionRegistry(1).start("telemetry");
+        for (int i = 0; i < USERS; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            session.addUser(user);
+        }
+        ingester = new TelemetryIngester(TelemetryBuffer.DEFAULT_CAPACITY);
+
+        Random random = new Random(42);
+        batches = new byte[BATCHES][];
+        long time = 1500000000000L;
+        for (int b = 0; b < BATCHES; b++) {
+            StringBuilder batch = new StringBuilder("{");
+            for (int u = 0; u < USERS_PER_BATCH; u++) {
+                batch.append(u == 0 ? "" : ",")
+                        .append("\"user-")
+                        .append(random.nextInt(USERS))
+                        .append("\":[");
+                double x = random.nextDouble() * 60;
+                double y = random.nextDouble() * 60;
+                for (int s = 0; s < SAMPLES_PER_USER; s++) {
+                    x += random.nextDouble() * 0.1 - 0.05;
+                    y += random.nextDouble() * 0.1 - 0.05;
+                    batch.append(s == 0 ? "" : ",")
+                            .append('[')
+                            .append(time + s * 20)
+                            .append(',')
+                            .append(String.format("%.3f,%.3f,%.1f", x, y, random.nextDouble() * 360))
+                            .append(']');
+                }
+                batch.append(']');
+            }
+            batches[b] = batch.append('}')
+                    .toString()
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS_PER_BATCH * SAMPLES_PER_USER)
+    public TelemetryIngester.Result ingest() throws IOException {
+        byte[] batch = batches[ThreadLocalRandom.current()
+                .nextInt(BATCHES)];
+        return ingester.ingest(session, new ByteArrayInputStream(batch));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.personalspace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares listing the users of a large session by copying them to an array
+ * serialized as a whole, as the users were listed before, with streaming
+ * them through the {@link UserWriter}, and with a page of 100 users. Each
+ * is measured to the whole body and to its first byte, the time to first
+ * byte of a response. Run with the gc profiler for the memory allocated.
+ *
+ * @author aanal
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class UserListingBenchmark {
+
+    @Param({ "100000" })
+    public int users;
+
+    private Session session;
+
+    private ObjectMapper mapper;
+
+    private UserWriter writer;
+
+    private String[] names;
+
+    /**
+     * Discards what is written, stopping at the first byte if asked to
+     */
+    private static class Sink extends OutputStream {
+
+        private final boolean firstByte;
+
+        private long written;
+
+        private Sink(boolean firstByte) {
+            this.firstByte = firstByte;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (firstByte) {
+                throw new FirstByte();
+            }
+        }
+    }
+
+    private static class FirstByte extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        session = new SessionRegistry(1).start("listing");
+        Random random = new Random(42);
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            user.setPushToken("token-" + i);
+            Preference pref = new Preference();
+            pref.setDistance(random.nextDouble() * 3);
+            user.setPref(pref);
+            session.addUser(user);
+            session.updateLocation(user.getName(), new Location(random.nextDouble() * 100, random.nextDouble() * 100));
+            names[i] = user.getName();
+        }
+        mapper = new ObjectMapper();
+        writer = new UserWriter(mapper);
+    }
+
+    @Benchmark
+    public long arrayCopy() throws IOException {
+        Sink sink = new Sink(false);
+        mapper.writeValue(sink, session.getUsers());
+        return sink.written;
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        Sink sink = new Sink(false);
+        writer.writeAll(session, sink);
+        return sink.written;
+    }
+
+    @Benchmark
+    public long page() throws IOException {
+        Sink sink = new Sink(false);
+        writer.writePage(session, names[ThreadLocalRandom.current()
+                .nextInt(names.length)], UserWriter.DEFAULT_PAGE_SIZE, sink);
+        return sink.written;
+    }
+
+    @Benchmark
+    public long arrayCopyFirstByte() {
+        Sink sink = new Sink(true);
+        try {
+            mapper.writeValue(sink, session.getUsers());
+        } catch (IOException e) {
+            // stopped at the first byte
+        }
+        return sink.written;
+    }
+
+    @Benchmark
+    public long streamFirstByte() {
+        Sink sink = new Sink(true);
+        try {
+            writer.writeAll(session, sink);
+        } catch (IOException e) {
+            // stopped at the first byte
+        }
+        return sink.written;
+    }
+}
@@ -0,0 +1,295 @@
+package com.example;
+
+import com.example.firebase.ClientSockets;
+import com.example.personalspace.SessionListener;
+import com.example.personalspace.SessionRegistry;
+import com.example.personalspace.User;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+import javax.websocket.CloseReason;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The web socket of a client, over which the messages of its user are
+ * written instead of being sent through FCM while it is connected.
+ *
+ * The client registers its user by sending
+ *
+ * <pre>
+ * {"session": id, "user": "name", "token": "push token"}
+ * </pre>
+ *
+ * and is answered {"registered": "name"}, after which it receives the body
+ * of each message sent to the user within that session. The user must be an
+ * active member of the active session, and proves it is by the push token
+ * it joined with, or by the pass key of the sessions given as "passkey"
+ * instead of the token. Any other registration is answered with an error
+ * and the socket is left unregistered. A client may register again as
+ * another user or for another session. The socket is forgotten when it
+ * closes, when its user leaves the session or when the session closes, see
+ * {@link #sessionListener(ClientSockets)}.
+ *
+ * @author aanal
+ *
+ */
+public class ClientSocketEndpoint extends Endpoint {
+
+    /**
+     * The path the clients connect to
+     */
+    public static final String PATH = "/sessions/socket";
+
+    /**
+     * The number of messages waiting to be written to a client before any
+     * more are sent through FCM instead
+     */
+    public static final int MAX_PENDING = 64;
+
+    private static final Logger logger = LogManager.getLogger(ClientSocketEndpoint.class);
+
+    private final ClientSockets sockets;
+
+    private final SessionRegistry sessions;
+
+    private final String passKey;
+
+    private SocketConnection connection;
+
+    private long sessionId;
+
+    private String username;
+
+    /**
+     * @param sessions
+     *            the sessions the users register for
+     * @param passKey
+     *            the pass key of the sessions, accepted instead of the push
+     *            token of the user
+     */
+    public ClientSocketEndpoint(ClientSockets sockets, SessionRegistry sessions, String passKey) {
+        this.sockets = sockets;
+        this.sessions = sessions;
+        this.passKey = passKey;
+    }
+
+    /**
+     * Adds the endpoint to the web socket container of the servlet context
+     *
+     * @return false if the container does not support web sockets
+     */
+    public static boolean deploy(ServletContext context, ClientSockets sockets, SessionRegistry sessions,
+            String passKey) {
+        ServerContainer container = (ServerContainer) context.getAttribute(ServerContainer.class.getName());
+        if (container == null) {
+            logger.warn("No web socket support, messages are only sent through FCM");
+            return false;
+        }
+        try {
+            container.addEndpoint(ServerEndpointConfig.Builder.create(ClientSocketEndpoint.class, PATH)
+                    .configurator(new ServerEndpointConfig.Configurator() {
+
+                        @Override
+                        public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+                            return endpointClass.cast(new ClientSocketEndpoint(sockets, sessions, passKey));
+                        }
+                    })
+                    .build());
+            return true;
+        } catch (DeploymentException e) {
+            logger.error("Could not deploy the client sockets", e);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the registrations of the users leaving a session, and of every
+     * user of a session once it is closed, so a user joining later under the
+     * same name is not written to the socket of the previous one
+     */
+    public static SessionListener sessionListener(ClientSockets sockets) {
+        return new SessionListener() {
+
+            @Override
+            public void closed(com.example.personalspace.Session session) {
+                sockets.unregisterSession(session.getId());
+            }
+
+            @Override
+            public void userRemoved(com.example.personalspace.Session session, User user) {
+                sockets.unregister(session.getId(), user.getName());
+            }
+        };
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        connection = new SocketConnection(session);
+        session.addMessageHandler(String.class, this::onMessage);
+    }
+
+    private synchronized void onMessage(String text) {
+        JSONObject request;
+        try {
+            request = new JSONObject(text);
+        } catch (JSONException e) {
+            request = null;
+        }
+        JSONObject reply = new JSONObject();
+        try {
+            String name = request == null ? null : request.optString("user", null);
+            long id = request == null ? 0 : request.optLong("session", 0);
+            if (name == null || name.isEmpty() || id == 0) {
+                reply.put("error", "Expected {\"session\": id, \"user\": name, \"token\": token}");
+            } else if (!isMember(id, name, request.optString("token", null), request.optString("passkey", null))) {
+                logger.warn("Refused the client socket of " + name + " in session " + id);
+                reply.put("error", "Could not verify the user in the session");
+            } else {
+                if (username != null && (sessionId != id || !username.equals(name))) {
+                    sockets.unregister(sessionId, username, connection);
+                }
+                sessionId = id;
+                username = name;
+                sockets.register(id, name, connection);
+                reply.put("registered", name);
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        connection.send(reply.toString(), error -> {
+        });
+    }
+
+    /**
+     * @return true if the user is an active member of the active session and
+     *         the token is its push token, or the pass key that of the
+     *         sessions
+     */
+    private boolean isMember(long id, String name, String token, String key) {
+        com.example.personalspace.Session session = sessions.get(id);
+        if (session == null || session.getStatus() != com.example.personalspace.Session.Status.ACTIVE) {
+            return false;
+        }
+        User user = session.getActiveUsers()
+                .get(name);
+        if (user == null) {
+            return false;
+        }
+        return matches(token, user.getPushToken()) || matches(key, passKey);
+    }
+
+    /**
+     * Compares in constant time, so the secret cannot be guessed by timing
+     */
+    private static boolean matches(String given, String expected) {
+        return given != null && expected != null && MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8),
+                expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void onClose(Session session, CloseReason closeReason) {
+        if (username != null) {
+            sockets.unregister(sessionId, username, connection);
+        }
+    }
+
+    @Override
+    public void onError(Session session, Throwable error) {
+        logger.warn("Client socket of " + username + " in session " + sessionId + " failed: " + error.getMessage());
+    }
+
+    /**
+     * Writes to the socket one text at a time, as a socket allows a single
+     * asynchronous write at once, queueing up to {@link #MAX_PENDING}
+     */
+    static class SocketConnection implements ClientSockets.Connection {
+
+        private final Session session;
+
+        private final Deque<Pending> pending = new ArrayDeque<>();
+
+        private static class Pending {
+
+            private final String text;
+
+            private final Consumer<Throwable> done;
+
+            private Pending(String text, Consumer<Throwable> done) {
+                this.text = text;
+                this.done = done;
+            }
+        }
+
+        SocketConnection(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void send(String text, Consumer<Throwable> done) {
+            String refused = null;
+            boolean first = false;
+            synchronized (this) {
+                if (!session.isOpen()) {
+                    refused = "Socket closed";
+                } else if (pending.size() >= MAX_PENDING) {
+                    refused = "Too many messages pending";
+                } else {
+                    pending.add(new Pending(text, done));
+                    // otherwise written once the writes before it are done
+                    first = pending.size() == 1;
+                }
+            }
+            if (refused != null) {
+                done.accept(new IOException(refused));
+            } else if (first) {
+                write();
+            }
+        }
+
+        /**
+         * Writes the first text pending, then the next once it is done
+         */
+        private void write() {
+            Pending next;
+            synchronized (this) {
+                next = pending.peek();
+            }
+            if (next == null) {
+                return;
+            }
+            try {
+                session.getAsyncRemote()
+                        .sendText(next.text, result -> {
+                            synchronized (this) {
+                                pending.poll();
+                            }
+                            next.done.accept(result.isOK() ? null : result.getException());
+                            write();
+                        });
+            } catch (RuntimeException e) {
+                // the socket closed meanwhile, nothing more will be written
+                Pending failed;
+                while ((failed = poll()) != null) {
+                    failed.done.accept(e);
+                }
+            }
+        }
+
+        private synchronized Pending poll() {
+            return pending.poll();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example;
+
+import com.example.firebase.DeliveryMetrics;
+import com.example.firebase.DirectMessagingService;
+import com.example.firebase.FirebaseThreadedMessagingService;
+import com.example.firebase.OutboxJournal;
+import com.example.firebase.PooledHttpTransport;
+import com.example.firebase.RetryScheduler;
+import com.example.personalspace.BulkEnrollment;
+import com.example.personalspace.SessionEvents;
+import com.example.personalspace.SessionJournal;
+import com.example.personalspace.TelemetryIngester;
+import com.example.personalspace.ViolationDetector;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exposes the runtime statistics of the delivery pipeline
+ * 
+ * @author aanal
+ *
+ */
+@RestController
+public class MetricsController {
+
+    private static final String MEDIA_TYPE = "application/json";
+
+    @Autowired
+    private PooledHttpTransport httpTransport;
+
+    @Autowired
+    private RetryScheduler retryScheduler;
+
+    @Autowired
+    private DeliveryMetrics deliveryMetrics;
+
+    @Autowired
+    private ViolationDetector violationDetector;
+
+    @Autowired
+    private TelemetryIngester telemetryIngester;
+
+    @Autowired
+    private BulkEnrollment bulkEnrollment;
+
+    @Autowired
+    private SessionEvents sessionEvents;
+
+    /**
+     * Only present in production
+     */
+    @Autowired(required = false)
+    private OutboxJournal outboxJournal;
+
+    @Autowired(required = false)
+    private SessionJournal sessionJournal;
+
+    @Autowired(required = false)
+    private FirebaseThreadedMessagingService threadedMessagingService;
+
+    @Autowired(required = false)
+    private DirectMessagingService directMessagingService;
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getMetrics() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("http", httpTransport.toJSON());
+        json.put("retries", retryScheduler.toJSON());
+        json.put("delivery", deliveryMetrics.toJSON());
+        json.put("violations", violationDetector.toJSON());
+        json.put("telemetry", telemetryIngester.toJSON());
+        json.put("enrollment", bulkEnrollment.toJSON());
+        json.put("events", sessionEvents.toJSON());
+        if (threadedMessagingService != null) {
+            json.put("lanes", threadedMessagingService.lanesToJSON());
+        }
+        if (directMessagingService != null) {
+            json.put("direct", directMessagingService.toJSON());
+        }
+        if (outboxJournal != null) {
+            json.put("journal", outboxJournal.toJSON());
+        }
+        if (sessionJournal != null) {
+            json.put("sessionJournal", sessionJournal.toJSON());
+        }
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+}
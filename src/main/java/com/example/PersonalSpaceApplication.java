@@ -1,30 +1,51 @@
 package com.example;
 
+import com.example.firebase.DeliveryResult;
 import com.example.firebase.FirebaseMessage;
+import com.example.firebase.FirebaseMessagingService.Priority;
+import com.example.firebase.Message;
 import com.example.firebase.MessagingService;
+import com.example.personalspace.BulkEnrollment;
+import com.example.personalspace.Location;
 import com.example.personalspace.Preference;
+import com.example.personalspace.PreferenceHistory;
+import com.example.personalspace.PushTokenRegistry;
 import com.example.personalspace.Session;
+import com.example.personalspace.SessionEvents;
+import com.example.personalspace.SessionRegistry;
+import com.example.personalspace.SpatialIndex;
+import com.example.personalspace.TelemetryBuffer;
+import com.example.personalspace.TelemetryIngester;
 import com.example.personalspace.User;
+import com.example.personalspace.UserWriter;
 import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import lombok.Getter;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @SpringBootApplication
 @RestController
@@ -36,6 +57,10 @@ public class PersonalSpaceApplication {
 
     private static final String SESSION_STATUS = "status";
 
+    private static final String SESSION_ID = "id";
+
+    private static final String MESSAGE_PRIORITY = "priority";
+
     private static final String MEDIA_TYPE = "application/json";
 
     @Autowired
@@ -44,11 +69,41 @@ public class PersonalSpaceApplication {
     @Autowired
     private MessagingService messagingService;
 
+    @Autowired
+    private PushTokenRegistry tokenRegistry;
+
+    @Autowired
+    private TelemetryIngester telemetryIngester;
+
+    @Autowired
+    private BulkEnrollment bulkEnrollment;
+
+    @Autowired
+    private UserWriter userWriter;
+
+    @Autowired
+    private SessionEvents sessionEvents;
+
     private Logger logger = LogManager.getLogger(PersonalSpaceApplication.class);
 
-    @Getter
-    private Session session;
+    /**
+     * The active sessions, the endpoints without a session id work on the
+     * latest session started
+     */
+    @Autowired
+    private SessionRegistry sessions;
+
+    /**
+     * @return the latest session started
+     */
+    public Session getSession() {
+        return sessions.getCurrent();
+    }
 
+    /**
+     * Starts a session, or closes the session given by its id, the current
+     * session if there is none. Only one session of a name can be active.
+     */
     @RequestMapping(value = "/sessions", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
     public ResponseEntity<String> sessionOperation(@RequestBody Map<String, String> request) throws JSONException {
         if (!request.containsKey(SESSION_STATUS)) {
@@ -61,16 +116,11 @@ public class PersonalSpaceApplication {
 
         Session.Status requestedStatus = Session.Status.valueOf(request.get(SESSION_STATUS));
 
-        if (session != null &&
-                session.getStatus() == Session.Status.ACTIVE &&
-                requestedStatus == Session.Status.ACTIVE) {
-            // session already active, but new session wanted to be created
-            logger.warn("A session is already active, cannot handle multiple sessions");
-            JSONObject json = new JSONObject();
-            json.put("status", HttpStatus.OK.value());
-            json.put("message", "Session Already Started");
-            json.put("session", session.toJSON());
-            return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+        if (requestedStatus == Session.Status.ACTIVE && request.containsKey(SESSION_NAME)) {
+            Session existing = sessions.getByName(request.get(SESSION_NAME));
+            if (existing != null) {
+                return sessionAlreadyStarted(existing);
+            }
         }
 
         if (!request.containsKey(SESSION_PASS_KEY) || !request.get(SESSION_PASS_KEY)
@@ -92,28 +142,57 @@ public class PersonalSpaceApplication {
 
         // create a new Session
         if (requestedStatus == Session.Status.ACTIVE) {
-            session = new Session();
-            session.setName((String) request.get(SESSION_NAME));
+            String name = request.get(SESSION_NAME);
+            Session created;
+            try {
+                while ((created = sessions.start(name)) == null) {
+                    // another request started a session of the name meanwhile
+                    Session existing = sessions.getByName(name);
+                    if (existing != null) {
+                        return sessionAlreadyStarted(existing);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                logger.error("Cannot start another session, " + sessions.getMaxSessions() + " are active");
+                JSONObject json = new JSONObject();
+                json.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+                json.put("message", "Too many active sessions");
+                return new ResponseEntity<String>(json.toString(), HttpStatus.SERVICE_UNAVAILABLE);
+            }
 
             logger.info("New Session Created");
 
             JSONObject json = new JSONObject();
             json.put("status", HttpStatus.CREATED.value());
             json.put("message", "New Session Created");
-            json.put("session", session.toJSON());
+            json.put("session", created.toJSON());
 
             return new ResponseEntity<String>(json.toString(), HttpStatus.CREATED);
         } else if (requestedStatus == Session.Status.INACTIVE) {
-            if (session != null) {
-                session.setStatus(Session.Status.INACTIVE);
-                session.setEndDate(new Date());
+            Session closing;
+            if (request.containsKey(SESSION_ID)) {
+                try {
+                    closing = sessions.get(Long.parseLong(request.get(SESSION_ID)));
+                } catch (NumberFormatException e) {
+                    JSONObject json = new JSONObject();
+                    json.put("status", HttpStatus.BAD_REQUEST.value());
+                    json.put("message", "Invalid session id");
+                    return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+                }
+            } else {
+                closing = sessions.getCurrent();
+            }
+            if (closing != null && sessions.close(closing)) {
+                for (User user : closing.getUsers()) {
+                    tokenRegistry.unregister(user);
+                }
             }
 
             JSONObject json = new JSONObject();
             json.put("status", HttpStatus.OK.value());
             json.put("message", "Session Closed");
-            if (session != null) {
-                json.put("session", session.toJSON());
+            if (closing != null) {
+                json.put("session", closing.toJSON());
             }
 
             return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
@@ -126,24 +205,70 @@ public class PersonalSpaceApplication {
         return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
     }
 
-    @RequestMapping(value = "/sessions/{sessionId}", method = RequestMethod.GET, produces = MEDIA_TYPE)
-    public ResponseEntity<Session> getActiveSession(@PathVariable(value = "sessionId") long sessionId)
-            throws JSONException {
-        if (session == null || session.getStatus() == Session.Status.INACTIVE) {
-            logger.error("No Session Available");
-            JSONObject json = new JSONObject();
-            json.put("status", HttpStatus.NO_CONTENT.value());
-            json.put("message", "No session Available");
-            return new ResponseEntity<Session>(HttpStatus.NO_CONTENT);
+    private ResponseEntity<String> sessionAlreadyStarted(Session current) throws JSONException {
+        // session already active, but new session wanted to be created
+        logger.warn("A session of the name is already active, cannot start it twice");
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.OK.value());
+        json.put("message", "Session Already Started");
+        json.put("session", current.toJSON());
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    private ResponseEntity<String> sessionNotFound(long sessionId) throws JSONException {
+        logger.error("No active session " + sessionId);
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.NOT_FOUND.value());
+        json.put("message", "No active session with the id");
+        return new ResponseEntity<String>(json.toString(), HttpStatus.NOT_FOUND);
+    }
+
+    /**
+     * Gives the session, tagged with its revision. A poll naming the tag in
+     * If-None-Match is answered 304 while the session has not changed, and
+     * the session is written once per revision.
+     */
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<byte[]> getActiveSession(@PathVariable(value = "sessionId") long sessionId,
+            WebRequest request) throws IOException {
+        Session session = sessions.get(sessionId);
+        if (session != null && session.getStatus() == Session.Status.ACTIVE) {
+            long revision = session.getRevision();
+            if (request.checkNotModified(etag(session, revision))) {
+                return null;
+            }
+            return new ResponseEntity<byte[]>(userWriter.writeSession(session, revision), HttpStatus.OK);
         }
-        if (sessionId == session.getId()) {
-            return new ResponseEntity<Session>(session, HttpStatus.OK);
+        if (sessions.getSessionCount() == 0) {
+            logger.error("No Session Available");
+            return new ResponseEntity<byte[]>(HttpStatus.NO_CONTENT);
         }
-        return new ResponseEntity<Session>(HttpStatus.UNAUTHORIZED);
+        return new ResponseEntity<byte[]>(HttpStatus.UNAUTHORIZED);
+    }
+
+    /**
+     * @return the entity tag of the responses of the session at the revision
+     */
+    private static String etag(Session session, long revision) {
+        return "\"" + session.getId() + "-" + revision + "\"";
     }
 
     @RequestMapping(value = "/sessions/users", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
     public ResponseEntity<String> addUserToSession(@RequestBody Map<String, Object> request) throws JSONException {
+        return addUser(sessions.getCurrent(), request);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> addUserToSession(@PathVariable(value = "sessionId") long sessionId,
+            @RequestBody Map<String, Object> request) throws JSONException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return addUser(session, request);
+    }
+
+    private ResponseEntity<String> addUser(Session session, Map<String, Object> request) throws JSONException {
         if (session == null || session.getStatus() == Session.Status.INACTIVE) {
             // the session has not started to add any user to it
             logger.error("Session Not Started Yet to add users");
@@ -164,6 +289,7 @@ public class PersonalSpaceApplication {
             return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
         }
 
+        tokenRegistry.register(user);
         logger.info(String.format("%s added to the list of users successfully", user.getName()));
 
         JSONObject json = new JSONObject();
@@ -172,12 +298,77 @@ public class PersonalSpaceApplication {
         return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
     }
 
+    /**
+     * Adds a cohort of users at once, see {@link BulkEnrollment} for the
+     * format. The body is read as a stream, not bound to a list of maps.
+     */
+    @RequestMapping(value = "/sessions/users/bulk", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> enrollUsers(InputStream body) throws JSONException {
+        return enrollUsers(sessions.getCurrent(), body);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/bulk", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> enrollUsers(@PathVariable(value = "sessionId") long sessionId, InputStream body)
+            throws JSONException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return enrollUsers(session, body);
+    }
+
+    private ResponseEntity<String> enrollUsers(Session session, InputStream body) throws JSONException {
+        if (session == null || session.getStatus() == Session.Status.INACTIVE) {
+            logger.error("Session Not Started Yet to add users");
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.BAD_REQUEST.value());
+            json.put("message", "Session not initiated, Please Start a session before adding user");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+        }
+
+        BulkEnrollment.Result result;
+        try {
+            result = bulkEnrollment.enroll(session, body, tokenRegistry::register);
+        } catch (IOException e) {
+            logger.error("Could not read the users to enroll", e);
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.BAD_REQUEST.value());
+            json.put("message", "Could not read the users");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+        }
+        logger.info(String.format("%d users enrolled, %d duplicate, %d invalid", result.getAdded(),
+                result.getDuplicates(), result.getInvalid()));
+
+        HttpStatus status = result.getError() == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST;
+        JSONObject json = result.toJSON();
+        json.put("status", status.value());
+        return new ResponseEntity<String>(json.toString(), status);
+    }
+
     @RequestMapping(value = "/sessions/users/{name}", method = RequestMethod.DELETE, produces = MEDIA_TYPE)
     public ResponseEntity<String> removeUserFromSession(@PathVariable(value = "name") String name)
             throws JSONException, UnsupportedEncodingException {
+        return removeUser(sessions.getCurrent(), name);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}", method = RequestMethod.DELETE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> removeUserFromSession(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name) throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return removeUser(session, name);
+    }
+
+    private ResponseEntity<String> removeUser(Session session, String name)
+            throws JSONException, UnsupportedEncodingException {
         String username = URLDecoder.decode(name, "utf-8");
         logger.info("Removing " + username);
-        session.removeUser(username);
+        User user = session == null ? null : session.removeUser(username);
+        if (user != null) {
+            tokenRegistry.unregister(user);
+        }
 
         JSONObject json = new JSONObject();
         json.put("status", HttpStatus.OK.value());
@@ -185,10 +376,26 @@ public class PersonalSpaceApplication {
         return new ResponseEntity<String>(HttpStatus.OK);
     }
 
-    @SuppressWarnings("unchecked")
     @RequestMapping(value = "/sessions/users/{name}", method = RequestMethod.PUT, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
     public ResponseEntity<String> updatePreference(@PathVariable(value = "name") String name,
             @RequestBody Map<String, Object> request) throws JSONException, UnsupportedEncodingException {
+        return updatePreference(sessions.getCurrent(), name, request);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}", method = RequestMethod.PUT, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> updatePreference(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestBody Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return updatePreference(session, name, request);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ResponseEntity<String> updatePreference(Session session, String name, Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
         String username = URLDecoder.decode(name, "utf-8");
 
         if (!request.containsKey("pref")) {
@@ -201,7 +408,9 @@ public class PersonalSpaceApplication {
         Preference pref = new Preference();
         pref.fromMap((Map<String, Object>) request.get("pref"));
 
-        session.updatePreference(username, pref);
+        if (session != null) {
+            session.updatePreference(username, pref);
+        }
 
         JSONObject json = new JSONObject();
         json.put("status", HttpStatus.OK.value());
@@ -209,24 +418,488 @@ public class PersonalSpaceApplication {
         return new ResponseEntity<String>(HttpStatus.OK);
     }
 
+    @RequestMapping(value = "/sessions/users/{name}/location", method = RequestMethod.PUT, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> updateLocation(@PathVariable(value = "name") String name,
+            @RequestBody Map<String, Object> request) throws JSONException, UnsupportedEncodingException {
+        return updateLocation(sessions.getCurrent(), name, request);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/location", method = RequestMethod.PUT, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> updateLocation(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestBody Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return updateLocation(session, name, request);
+    }
+
+    private ResponseEntity<String> updateLocation(Session session, String name, Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
+        String username = URLDecoder.decode(name, "utf-8");
+
+        Location location;
+        try {
+            location = Location.fromMap(request);
+        } catch (IllegalArgumentException e) {
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.BAD_REQUEST.value());
+            json.put("message", "The location must have a numeric x and y");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+        }
+
+        if (session == null || !session.updateLocation(username, location)) {
+            return userNotFound(username);
+        }
+        return new ResponseEntity<String>(HttpStatus.OK);
+    }
+
+    /**
+     * Lists the users within the personal space of the user, the nearest
+     * first, optionally only the given number of nearest ones
+     */
+    @RequestMapping(value = "/sessions/users/{name}/nearby", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getNearbyUsers(@PathVariable(value = "name") String name,
+            @RequestParam(value = "count", defaultValue = "0") int count)
+            throws JSONException, UnsupportedEncodingException {
+        return getNearbyUsers(sessions.getCurrent(), name, count);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/nearby", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getNearbyUsers(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestParam(value = "count", defaultValue = "0") int count)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return getNearbyUsers(session, name, count);
+    }
+
+    private ResponseEntity<String> getNearbyUsers(Session session, String name, int count)
+            throws JSONException, UnsupportedEncodingException {
+        String username = URLDecoder.decode(name, "utf-8");
+        if (session == null || !session.getActiveUsers()
+                .containsKey(username)) {
+            return userNotFound(username);
+        }
+
+        List<SpatialIndex.Neighbour> neighbours = session.getNeighbours(username, count);
+        if (neighbours == null) {
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.CONFLICT.value());
+            json.put("message", "The location of the user is not known yet");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.CONFLICT);
+        }
+
+        JSONArray users = new JSONArray();
+        for (SpatialIndex.Neighbour neighbour : neighbours) {
+            JSONObject user = new JSONObject();
+            user.put("name", neighbour.getUser()
+                    .getName());
+            user.put("distance", neighbour.getDistance());
+            users.put(user);
+        }
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.OK.value());
+        json.put("users", users);
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    /**
+     * Reads the preferred distances the user had within a range of time, with
+     * an interval the changes are reduced to the smallest, largest and last
+     * distance of each interval. The history is kept after the user left.
+     */
+    @RequestMapping(value = "/sessions/users/{name}/preferences", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getPreferenceHistory(@PathVariable(value = "name") String name,
+            @RequestParam(value = "from", defaultValue = "0") long from,
+            @RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long to,
+            @RequestParam(value = "interval", defaultValue = "0") long interval)
+            throws JSONException, UnsupportedEncodingException {
+        return getPreferenceHistory(sessions.getCurrent(), name, from, to, interval);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/preferences", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getPreferenceHistory(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestParam(value = "from", defaultValue = "0") long from,
+            @RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long to,
+            @RequestParam(value = "interval", defaultValue = "0") long interval)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return getPreferenceHistory(session, name, from, to, interval);
+    }
+
+    private ResponseEntity<String> getPreferenceHistory(Session session, String name, long from, long to,
+            long interval) throws JSONException, UnsupportedEncodingException {
+        String username = URLDecoder.decode(name, "utf-8");
+        PreferenceHistory history = session == null ? null
+                : session.getPreferenceHistory()
+                        .get(username);
+        if (history == null) {
+            return userNotFound(username);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.OK.value());
+        if (interval <= 0) {
+            PreferenceHistory.Series series = history.range(from, to);
+            JSONArray times = new JSONArray();
+            JSONArray distances = new JSONArray();
+            for (int i = 0; i < series.size(); i++) {
+                times.put(series.getTime(i));
+                distances.put(series.getDistance(i));
+            }
+            json.put("t", times);
+            json.put("distance", distances);
+        } else {
+            PreferenceHistory.Buckets buckets = history.downsample(from, to, interval);
+            json.put("interval", interval);
+            json.put("t", new JSONArray(buckets.getTimes()));
+            json.put("min", new JSONArray(buckets.getMin()));
+            json.put("max", new JSONArray(buckets.getMax()));
+            json.put("last", new JSONArray(buckets.getLast()));
+            json.put("count", new JSONArray(buckets.getCounts()));
+        }
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    /**
+     * Takes a batch of telemetry samples of the users of the session, see
+     * {@link TelemetryIngester} for the format. The body is read as a stream,
+     * not bound to a map.
+     */
+    @RequestMapping(value = "/sessions/telemetry", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> addTelemetry(InputStream body) throws JSONException {
+        return addTelemetry(sessions.getCurrent(), body);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/telemetry", method = RequestMethod.POST, consumes = MEDIA_TYPE, produces = MEDIA_TYPE)
+    public ResponseEntity<String> addTelemetry(@PathVariable(value = "sessionId") long sessionId, InputStream body)
+            throws JSONException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return addTelemetry(session, body);
+    }
+
+    private ResponseEntity<String> addTelemetry(Session session, InputStream body) throws JSONException {
+        if (session == null || session.getStatus() == Session.Status.INACTIVE) {
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.BAD_REQUEST.value());
+            json.put("message", "Session not initiated, Please Start a session before sending telemetry");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+        }
+
+        TelemetryIngester.Result result;
+        try {
+            result = telemetryIngester.ingest(session, body);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Could not read the telemetry batch: " + e.getMessage());
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.BAD_REQUEST.value());
+            json.put("message", "The batch must be an object of arrays of [time, x, y, heading] by user");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+        }
+
+        JSONObject json = result.toJSON();
+        json.put("status", HttpStatus.OK.value());
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    /**
+     * Reads the telemetry samples of the user within a window of time, one
+     * array per field, optionally only the given number of latest ones
+     */
+    @RequestMapping(value = "/sessions/users/{name}/telemetry", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getTelemetry(@PathVariable(value = "name") String name,
+            @RequestParam(value = "from", defaultValue = "0") long from,
+            @RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long to,
+            @RequestParam(value = "limit", defaultValue = "" + Integer.MAX_VALUE) int limit)
+            throws JSONException, UnsupportedEncodingException {
+        return getTelemetry(sessions.getCurrent(), name, from, to, limit);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/telemetry", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<String> getTelemetry(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestParam(value = "from", defaultValue = "0") long from,
+            @RequestParam(value = "to", defaultValue = "" + Long.MAX_VALUE) long to,
+            @RequestParam(value = "limit", defaultValue = "" + Integer.MAX_VALUE) int limit)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return getTelemetry(session, name, from, to, limit);
+    }
+
+    private ResponseEntity<String> getTelemetry(Session session, String name, long from, long to, int limit)
+            throws JSONException, UnsupportedEncodingException {
+        String username = URLDecoder.decode(name, "utf-8");
+        if (session == null || !session.getActiveUsers()
+                .containsKey(username)) {
+            return userNotFound(username);
+        }
+
+        TelemetryBuffer buffer = session.getTelemetry()
+                .get(username);
+        TelemetryBuffer.Window window = buffer == null ? null : buffer.read(from, to, limit);
+        JSONArray times = new JSONArray();
+        JSONArray xs = new JSONArray();
+        JSONArray ys = new JSONArray();
+        JSONArray headings = new JSONArray();
+        for (int i = 0; window != null && i < window.size(); i++) {
+            times.put(window.getTimes()[i]);
+            // as floats, widened to doubles they would print their rounding
+            xs.put(Float.valueOf(window.getXs()[i]));
+            ys.put(Float.valueOf(window.getYs()[i]));
+            float heading = window.getHeadings()[i];
+            headings.put(Float.isNaN(heading) ? JSONObject.NULL : Float.valueOf(heading));
+        }
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.OK.value());
+        json.put("written", window == null ? 0 : window.getWritten());
+        json.put("t", times);
+        json.put("x", xs);
+        json.put("y", ys);
+        json.put("heading", headings);
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    private ResponseEntity<String> userNotFound(String username) throws JSONException {
+        logger.error("No user " + username + " in the session");
+        JSONObject json = new JSONObject();
+        json.put("status", HttpStatus.NOT_FOUND.value());
+        json.put("message", "No such user in the session");
+        return new ResponseEntity<String>(json.toString(), HttpStatus.NOT_FOUND);
+    }
+
+    /**
+     * Lists the users of the session by name, all of them as an array, or a
+     * page of them when given a limit or a cursor. The users are written to
+     * the response as they are read, see {@link UserWriter}. As with the
+     * session, the listing is tagged with the revision of the session and
+     * answered 304 to a poll naming it.
+     */
     @RequestMapping(value = "/sessions/users", method = RequestMethod.GET, produces = MEDIA_TYPE)
-    public ResponseEntity<User[]> getAllCustomers() {
+    public ResponseEntity<StreamingResponseBody> getAllCustomers(
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "cursor", required = false) String cursor, WebRequest request) {
+        Session session = sessions.getCurrent();
         if (session == null) {
             return new ResponseEntity<>(HttpStatus.NO_CONTENT);
         }
 
         // get the customers
-        User[] users = session.getActiveUsers()
-                .values()
-                .toArray(new User[session.getActiveUsers()
-                        .size()]);
+        return listUsers(session, limit, cursor, request);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users", method = RequestMethod.GET, produces = MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> getAllCustomers(@PathVariable(value = "sessionId") long sessionId,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "cursor", required = false) String cursor, WebRequest request) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return listUsers(session, limit, cursor, request);
+    }
 
-        return new ResponseEntity<>(users, HttpStatus.OK);
+    private ResponseEntity<StreamingResponseBody> listUsers(Session session, Integer limit, String cursor,
+            WebRequest request) {
+        String after;
+        try {
+            after = cursor == null ? null : UserWriter.decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid cursor " + cursor);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        long revision = session.getRevision();
+        if (request.checkNotModified(etag(session, revision))) {
+            return null;
+        }
+        if (limit == null && cursor == null) {
+            return new ResponseEntity<StreamingResponseBody>(out -> userWriter.writeAll(session, revision, out),
+                    HttpStatus.OK);
+        }
+        int size = limit == null ? UserWriter.DEFAULT_PAGE_SIZE : limit;
+        return new ResponseEntity<StreamingResponseBody>(out -> userWriter.writePage(session, after, size, out),
+                HttpStatus.OK);
+    }
+
+    /**
+     * Streams the changes of the session as server sent events, see
+     * {@link SessionEvents}. The stream is held open without a request
+     * thread until the session is closed, the client leaves or the timeout,
+     * after which the client subscribes again.
+     */
+    @RequestMapping(value = "/sessions/events", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribe() throws JSONException {
+        Session session = sessions.getCurrent();
+        if (session == null) {
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        }
+        return subscribe(session);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/events", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribe(@PathVariable(value = "sessionId") long sessionId)
+            throws JSONException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return subscribe(session);
+    }
+
+    private ResponseEntity<SseEmitter> subscribe(Session session) throws JSONException {
+        SseEmitter emitter = new SseEmitter(config.getEventsTimeout());
+        SessionEvents.Subscriber subscriber = sessionEvents.subscribe(session, new SessionEvents.Sink() {
+
+            @Override
+            public void send(SessionEvents.Event event) throws IOException {
+                SseEmitter.SseEventBuilder builder = SseEmitter.event()
+                        .name(event.getName())
+                        .data(event.getData());
+                if (event.getId() != 0) {
+                    builder.id(Long.toString(event.getId()));
+                }
+                emitter.send(builder);
+            }
+
+            @Override
+            public void close() {
+                emitter.complete();
+            }
+        });
+        if (subscriber == null) {
+            logger.error("Session " + session.getId() + " closed, cannot subscribe to it");
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        emitter.onTimeout(subscriber::close);
+        emitter.onCompletion(subscriber::close);
+        return new ResponseEntity<>(emitter, HttpStatus.OK);
     }
 
     @RequestMapping(value = "/sessions/users/{name}/notify", method = RequestMethod.POST)
     public ResponseEntity<String> notifyUser(@PathVariable(value = "name") String name,
             @RequestBody Map<String, Object> request) throws JSONException, UnsupportedEncodingException {
+        return notifyUser(sessions.getCurrent(), name, request, null);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/notify", method = RequestMethod.POST)
+    public ResponseEntity<String> notifyUser(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestBody Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return sessionNotFound(sessionId);
+        }
+        return notifyUser(session, name, request, null);
+    }
+
+    /**
+     * Notifies the user and answers once the FCM server responded, with the
+     * result of the message, see {@link #waitForDelivery}
+     */
+    @RequestMapping(value = "/sessions/users/{name}/notify", method = RequestMethod.POST, params = "wait=true")
+    public DeferredResult<ResponseEntity<String>> notifyUserAndWait(@PathVariable(value = "name") String name,
+            @RequestBody Map<String, Object> request) throws JSONException, UnsupportedEncodingException {
+        return waitForDelivery(sessions.getCurrent(), name, request);
+    }
+
+    @RequestMapping(value = "/sessions/{sessionId:\\d+}/users/{name}/notify", method = RequestMethod.POST, params = "wait=true")
+    public DeferredResult<ResponseEntity<String>> notifyUserAndWait(@PathVariable(value = "sessionId") long sessionId,
+            @PathVariable(value = "name") String name, @RequestBody Map<String, Object> request)
+            throws JSONException, UnsupportedEncodingException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            DeferredResult<ResponseEntity<String>> delivery = new DeferredResult<>();
+            delivery.setResult(sessionNotFound(sessionId));
+            return delivery;
+        }
+        return waitForDelivery(session, name, request);
+    }
+
+    /**
+     * Sends the message as any other notification and answers once its
+     * response was handled, retries and token updates included. No request
+     * thread waits meanwhile. The answer is 200 if the message was delivered,
+     * 202 if the server did not accept it yet and it is retried, 502 if it
+     * will not be delivered, and 202 if its outcome is not known before the
+     * deadline, the message staying queued.
+     */
+    private DeferredResult<ResponseEntity<String>> waitForDelivery(Session session, String name,
+            Map<String, Object> request) throws JSONException, UnsupportedEncodingException {
+        JSONObject pending = new JSONObject();
+        pending.put("status", HttpStatus.ACCEPTED.value());
+        pending.put("message", "The message was sent, the server has not responded yet");
+        DeferredResult<ResponseEntity<String>> delivery = new DeferredResult<>(config.getNotifyWaitTimeout(),
+                new ResponseEntity<String>(pending.toString(), HttpStatus.ACCEPTED));
+        ResponseEntity<String> rejected = notifyUser(session, name, request, delivery);
+        if (rejected != null) {
+            delivery.setResult(rejected);
+        }
+        return delivery;
+    }
+
+    /**
+     * @param result
+     *            the response of the server, null if the message was written
+     *            to the socket of the user or not sent at all
+     * @return the answer to a notification waiting for its delivery
+     */
+    private ResponseEntity<String> deliveryOutcome(Message.Outcome outcome, DeliveryResult result) {
+        JSONObject json = new JSONObject();
+        try {
+            HttpStatus status;
+            if (outcome == Message.Outcome.DELIVERED) {
+                status = HttpStatus.OK;
+            } else if (outcome == Message.Outcome.RETRYING) {
+                status = HttpStatus.ACCEPTED;
+                json.put("retrying", true);
+                json.put("message", "The server did not accept the message yet, it is retried");
+            } else {
+                status = HttpStatus.BAD_GATEWAY;
+                json.put("message", "The message will not be delivered");
+            }
+            json.put("status", status.value());
+            json.put("delivered", outcome == Message.Outcome.DELIVERED);
+            if (result == null) {
+                return new ResponseEntity<String>(json.toString(), status);
+            }
+            json.put("serverStatus", result.getStatus()
+                    .value());
+            JSONArray recipients = new JSONArray();
+            for (DeliveryResult.Recipient recipient : result.getRecipients()) {
+                JSONObject obj = new JSONObject();
+                obj.put("messageId", recipient.getMessageId() == null ? JSONObject.NULL : recipient.getMessageId());
+                obj.put("error", recipient.getError() == null ? JSONObject.NULL : recipient.getError());
+                recipients.put(obj);
+            }
+            json.put("results", recipients);
+            return new ResponseEntity<String>(json.toString(), status);
+        } catch (JSONException e) {
+            return new ResponseEntity<String>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Checks the notification and sends it, telling the delivery what became
+     * of it when the caller waits for it
+     * 
+     * @param delivery
+     *            set with the outcome of the message, null if the caller does
+     *            not wait
+     * @return the answer, null if it is left to the delivery
+     */
+    private ResponseEntity<String> notifyUser(Session session, String name, Map<String, Object> request,
+            DeferredResult<ResponseEntity<String>> delivery) throws JSONException, UnsupportedEncodingException {
 
         String username = URLDecoder.decode(name, "utf-8");
         if (session == null || session.getStatus() == Session.Status.INACTIVE) {
@@ -253,6 +926,17 @@ public class PersonalSpaceApplication {
             return new ResponseEntity<String>(HttpStatus.UNAUTHORIZED);
         }
 
+        Priority priority = null;
+        if (request.containsKey(MESSAGE_PRIORITY)) {
+            priority = Priority.fromValue(String.valueOf(request.get(MESSAGE_PRIORITY)));
+            if (priority == null) {
+                JSONObject json = new JSONObject();
+                json.put("status", HttpStatus.BAD_REQUEST.value());
+                json.put("message", "The priority must be high or normal");
+                return new ResponseEntity<String>(json.toString(), HttpStatus.BAD_REQUEST);
+            }
+        }
+
         // put through the message
         Gson gson = new Gson();
         String str = gson.toJson(request.get("message"));
@@ -275,11 +959,26 @@ public class PersonalSpaceApplication {
             return new ResponseEntity<String>(HttpStatus.BAD_REQUEST);
         }
 
-        FirebaseMessage message = new FirebaseMessage(username, payload, user.getPushToken());
+        String pushToken = user.getPushToken();
+        if (pushToken == null || tokenRegistry.isDead(pushToken)) {
+            // the server rejected the token already, do not bother sending
+            JSONObject json = new JSONObject();
+            json.put("status", HttpStatus.GONE.value());
+            json.put("message", "The device of the user is no longer registered");
+            return new ResponseEntity<String>(json.toString(), HttpStatus.GONE);
+        }
+
+        FirebaseMessage message = new FirebaseMessage(username, payload, pushToken, priority);
+        message.setSessionId(session.getId());
+
+        if (delivery != null) {
+            message.setDeliveryListener(
+                    (sent, outcome, result) -> delivery.setResult(deliveryOutcome(outcome, result)));
+        }
 
         messagingService.sendMessage(message);
 
-        return new ResponseEntity<String>(HttpStatus.OK);
+        return delivery == null ? new ResponseEntity<String>(HttpStatus.OK) : null;
     }
 
     public static void main(String[] args) {
@@ -1,13 +1,44 @@
 package com.example;
 
+import com.example.firebase.AsyncMessagingService;
+import com.example.firebase.ClientSockets;
+import com.example.firebase.DeliveryMetrics;
+import com.example.firebase.DirectMessagingService;
+import com.example.firebase.FirebaseAsyncMessagingService;
+import com.example.firebase.FirebaseMessagingService;
 import com.example.firebase.FirebaseThreadedMessagingService;
 import com.example.firebase.MessagingService;
+import com.example.firebase.OutboxJournal;
+import com.example.firebase.PooledHttpTransport;
+import com.example.firebase.RetryScheduler;
+import com.example.firebase.RingBuffer;
+import com.example.personalspace.BulkEnrollment;
+import com.example.personalspace.PushTokenRegistry;
+import com.example.personalspace.Session;
+import com.example.personalspace.SessionEvents;
+import com.example.personalspace.SessionJournal;
+import com.example.personalspace.SessionRegistry;
+import com.example.personalspace.TelemetryBuffer;
+import com.example.personalspace.TelemetryIngester;
+import com.example.personalspace.User;
+import com.example.personalspace.UserWriter;
+import com.example.personalspace.ViolationDetector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
 import lombok.Getter;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.servlet.ServletListenerRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.RestTemplate;
 
 @Configuration
@@ -15,34 +46,499 @@ public class ServerConfiguration {
 
     private static final String SESSION_KEY = "app.session.passphrase";
 
+    private static final String SESSION_MAX = "app.session.max";
+
+    private static final String SESSION_JOURNAL_DIRECTORY = "app.session.journal.directory";
+
+    private static final String SESSION_JOURNAL_FLUSH_INTERVAL = "app.session.journal.flushinterval";
+
+    private static final String SESSION_JOURNAL_SNAPSHOT_SIZE = "app.session.journal.snapshotsize";
+
+    private static final String SESSION_JOURNAL_SNAPSHOT_INTERVAL = "app.session.journal.snapshotinterval";
+
+    private static final String VIOLATION_DEBOUNCE = "app.violation.debounce";
+
+    private static final String TELEMETRY_CAPACITY = "app.telemetry.capacity";
+
+    private static final String EVENTS_BUFFER_SIZE = "app.events.buffersize";
+
+    private static final String EVENTS_WORKERS = "app.events.workers";
+
+    private static final String EVENTS_TIMEOUT = "app.events.timeout";
+
+    private static final String EVENTS_SEND_TIMEOUT = "app.events.sendtimeout";
+
     private static final String FCM_SERVER_KEY = "app.firebase.serverkey";
 
+    private static final String FCM_URL = "app.firebase.url";
+
+    private static final String FCM_WORKERS = "app.firebase.workers";
+
+    private static final String FCM_BATCH_LINGER = "app.firebase.batch.linger";
+
+    private static final String FCM_QUEUE_CAPACITY = "app.firebase.queue.capacity";
+
+    private static final String FCM_QUEUE_WAIT_STRATEGY = "app.firebase.queue.waitstrategy";
+
+    private static final String FCM_QUEUE_FULL_POLICY = "app.firebase.queue.fullpolicy";
+
+    private static final String FCM_QUEUE_FULL_TIMEOUT = "app.firebase.queue.fulltimeout";
+
+    private static final String FCM_LANE_WEIGHT = "app.firebase.lanes.weight";
+
+    private static final String FCM_LANE_MAX_WAIT = "app.firebase.lanes.maxwait";
+
+    private static final String FCM_RETRY_BASE_DELAY = "app.firebase.retry.basedelay";
+
+    private static final String FCM_RETRY_MAX_DELAY = "app.firebase.retry.maxdelay";
+
+    private static final String FCM_RETRY_MAX_ATTEMPTS = "app.firebase.retry.maxattempts";
+
+    private static final String FCM_JOURNAL_DIRECTORY = "app.firebase.journal.directory";
+
+    private static final String FCM_JOURNAL_SEGMENT_SIZE = "app.firebase.journal.segmentsize";
+
+    private static final String FCM_JOURNAL_FLUSH_INTERVAL = "app.firebase.journal.flushinterval";
+
+    private static final String FCM_DEAD_TOKEN_CAPACITY = "app.firebase.deadtokens.capacity";
+
+    private static final String FCM_NOTIFY_WAIT_TIMEOUT = "app.firebase.notify.waittimeout";
+
+    private static final String HTTP_POOL_MAX_TOTAL = "app.http.pool.maxtotal";
+
+    private static final String HTTP_POOL_MAX_PER_ROUTE = "app.http.pool.maxperroute";
+
+    private static final String HTTP_POOL_IDLE_TIMEOUT = "app.http.pool.idletimeout";
+
+    private static final String HTTP_CONNECT_TIMEOUT = "app.http.connecttimeout";
+
+    private static final String HTTP_READ_TIMEOUT = "app.http.readtimeout";
+
     @Getter
     private String sessionPass;
 
+    /**
+     * The number of sessions that can be active at once
+     */
+    @Getter
+    private int maxSessions;
+
+    /**
+     * Where the sessions are journaled
+     */
+    @Getter
+    private String sessionJournalDirectory;
+
+    /**
+     * The time in milli seconds between two writes of the session journal
+     * to disk
+     */
+    @Getter
+    private long sessionJournalFlushInterval;
+
+    /**
+     * The size in bytes of the session log, and the time in milli seconds,
+     * after which the sessions are snapshot
+     */
+    @Getter
+    private long sessionJournalSnapshotSize;
+
+    @Getter
+    private long sessionJournalSnapshotInterval;
+
+    /**
+     * The time in milli seconds before the same user entering the personal
+     * space of another is notified again
+     */
+    @Getter
+    private long violationDebounce;
+
+    /**
+     * The number of telemetry samples kept per user
+     */
+    @Getter
+    private int telemetryCapacity;
+
+    /**
+     * The number of session events buffered for a subscriber before it is
+     * evicted
+     */
+    @Getter
+    private int eventsBufferSize;
+
+    /**
+     * The number of threads writing the session events
+     */
+    @Getter
+    private int eventsWorkers;
+
+    /**
+     * The time in milli seconds an event stream is kept open, the client
+     * subscribes again afterwards
+     */
+    @Getter
+    private long eventsTimeout;
+
+    /**
+     * The time in milli seconds a write to an event stream may block before
+     * the subscriber is evicted
+     */
+    @Getter
+    private long eventsSendTimeout;
+
     @Getter
     private String serverKey;
 
+    /**
+     * The FCM send endpoint, google unless testing against a stand-in
+     */
+    @Getter
+    private String firebaseUrl;
+
+    /**
+     * The number of messages sent to the FCM server in parallel
+     */
+    @Getter
+    private int workerCount;
+
+    /**
+     * How long, in milli seconds, messages are held back to be batched with
+     * identical messages
+     */
+    @Getter
+    private long batchLinger;
+
+    /**
+     * The number of messages each worker can hold
+     */
+    @Getter
+    private int queueCapacity;
+
+    /**
+     * How the workers wait for messages
+     */
+    @Getter
+    private RingBuffer.WaitStrategy queueWaitStrategy;
+
+    /**
+     * What happens to messages sent to a full queue, with the time in milli
+     * seconds to wait for space if blocking
+     */
+    @Getter
+    private RingBuffer.FullPolicy queueFullPolicy;
+
+    @Getter
+    private long queueFullTimeout;
+
+    /**
+     * The number of high priority messages sent in a row while normal ones
+     * wait, and the time in milli seconds after which a normal message goes
+     * first
+     */
+    @Getter
+    private int laneWeight;
+
+    @Getter
+    private long laneMaxWait;
+
+    /**
+     * The exponential backoff of retries, delays in milli seconds
+     */
+    @Getter
+    private long retryBaseDelay;
+
+    @Getter
+    private long retryMaxDelay;
+
+    @Getter
+    private int retryMaxAttempts;
+
+    /**
+     * Where the queued messages are journaled
+     */
+    @Getter
+    private String journalDirectory;
+
+    /**
+     * The size of a journal segment in bytes
+     */
+    @Getter
+    private int journalSegmentSize;
+
+    /**
+     * The time in milli seconds between two forces of the journal to disk
+     */
+    @Getter
+    private long journalFlushInterval;
+
+    /**
+     * The number of tokens rejected by the server that are remembered
+     */
+    @Getter
+    private int deadTokenCapacity;
+
+    /**
+     * The time in milli seconds a notification waits for the response of the
+     * server before it is answered without it
+     */
+    @Getter
+    private long notifyWaitTimeout;
+
+    /**
+     * The limits of the HTTP connection pool
+     */
+    @Getter
+    private int httpPoolMaxTotal;
+
+    @Getter
+    private int httpPoolMaxPerRoute;
+
+    /**
+     * The time in milli seconds after which idle connections are closed
+     */
+    @Getter
+    private long httpPoolIdleTimeout;
+
+    /**
+     * The HTTP timeouts in milli seconds
+     */
+    @Getter
+    private int httpConnectTimeout;
+
+    @Getter
+    private int httpReadTimeout;
+
     @Autowired
     public ServerConfiguration(Environment env) {
         sessionPass = env.getProperty(SESSION_KEY);
+        maxSessions = env.getProperty(SESSION_MAX, Integer.class, SessionRegistry.DEFAULT_MAX_SESSIONS);
+        sessionJournalDirectory = env.getProperty(SESSION_JOURNAL_DIRECTORY, "sessions");
+        sessionJournalFlushInterval = env.getProperty(SESSION_JOURNAL_FLUSH_INTERVAL, Long.class,
+                SessionJournal.DEFAULT_FLUSH_INTERVAL);
+        sessionJournalSnapshotSize = env.getProperty(SESSION_JOURNAL_SNAPSHOT_SIZE, Long.class,
+                SessionJournal.DEFAULT_SNAPSHOT_SIZE);
+        sessionJournalSnapshotInterval = env.getProperty(SESSION_JOURNAL_SNAPSHOT_INTERVAL, Long.class,
+                SessionJournal.DEFAULT_SNAPSHOT_INTERVAL);
+        violationDebounce = env.getProperty(VIOLATION_DEBOUNCE, Long.class, ViolationDetector.DEFAULT_DEBOUNCE);
+        telemetryCapacity = env.getProperty(TELEMETRY_CAPACITY, Integer.class, TelemetryBuffer.DEFAULT_CAPACITY);
+        eventsBufferSize = env.getProperty(EVENTS_BUFFER_SIZE, Integer.class, SessionEvents.DEFAULT_BUFFER_SIZE);
+        eventsWorkers = env.getProperty(EVENTS_WORKERS, Integer.class, SessionEvents.DEFAULT_WORKERS);
+        eventsTimeout = env.getProperty(EVENTS_TIMEOUT, Long.class, SessionEvents.DEFAULT_TIMEOUT);
+        eventsSendTimeout = env.getProperty(EVENTS_SEND_TIMEOUT, Long.class, SessionEvents.DEFAULT_SEND_TIMEOUT);
         serverKey = env.getProperty(FCM_SERVER_KEY);
+        firebaseUrl = env.getProperty(FCM_URL, FirebaseMessagingService.DEFAULT_URL);
+        workerCount = env.getProperty(FCM_WORKERS, Integer.class, Runtime.getRuntime()
+                .availableProcessors());
+        batchLinger = env.getProperty(FCM_BATCH_LINGER, Long.class, 2L);
+        queueCapacity = env.getProperty(FCM_QUEUE_CAPACITY, Integer.class,
+                FirebaseThreadedMessagingService.DEFAULT_QUEUE_CAPACITY);
+        queueWaitStrategy = env.getProperty(FCM_QUEUE_WAIT_STRATEGY, RingBuffer.WaitStrategy.class,
+                RingBuffer.WaitStrategy.BLOCKING);
+        queueFullPolicy = env.getProperty(FCM_QUEUE_FULL_POLICY, RingBuffer.FullPolicy.class,
+                RingBuffer.FullPolicy.BLOCK);
+        queueFullTimeout = env.getProperty(FCM_QUEUE_FULL_TIMEOUT, Long.class,
+                FirebaseThreadedMessagingService.DEFAULT_FULL_TIMEOUT);
+        laneWeight = env.getProperty(FCM_LANE_WEIGHT, Integer.class,
+                FirebaseThreadedMessagingService.DEFAULT_LANE_WEIGHT);
+        laneMaxWait = env.getProperty(FCM_LANE_MAX_WAIT, Long.class,
+                FirebaseThreadedMessagingService.DEFAULT_LANE_MAX_WAIT);
+        retryBaseDelay = env.getProperty(FCM_RETRY_BASE_DELAY, Long.class, 1000L);
+        retryMaxDelay = env.getProperty(FCM_RETRY_MAX_DELAY, Long.class, 300000L);
+        retryMaxAttempts = env.getProperty(FCM_RETRY_MAX_ATTEMPTS, Integer.class, 8);
+        journalDirectory = env.getProperty(FCM_JOURNAL_DIRECTORY, "outbox");
+        journalSegmentSize = env.getProperty(FCM_JOURNAL_SEGMENT_SIZE, Integer.class,
+                OutboxJournal.DEFAULT_SEGMENT_SIZE);
+        journalFlushInterval = env.getProperty(FCM_JOURNAL_FLUSH_INTERVAL, Long.class,
+                OutboxJournal.DEFAULT_FLUSH_INTERVAL);
+        deadTokenCapacity = env.getProperty(FCM_DEAD_TOKEN_CAPACITY, Integer.class,
+                PushTokenRegistry.DEFAULT_DEAD_TOKEN_CAPACITY);
+        notifyWaitTimeout = env.getProperty(FCM_NOTIFY_WAIT_TIMEOUT, Long.class, 10000L);
+        httpPoolMaxTotal = env.getProperty(HTTP_POOL_MAX_TOTAL, Integer.class, 100);
+        httpPoolMaxPerRoute = env.getProperty(HTTP_POOL_MAX_PER_ROUTE, Integer.class, Math.max(workerCount, 20));
+        httpPoolIdleTimeout = env.getProperty(HTTP_POOL_IDLE_TIMEOUT, Long.class, 30000L);
+        httpConnectTimeout = env.getProperty(HTTP_CONNECT_TIMEOUT, Integer.class, 5000);
+        httpReadTimeout = env.getProperty(HTTP_READ_TIMEOUT, Integer.class, 20000);
         if (sessionPass == null || serverKey == null) {
             throw new IllegalStateException("No Configuration found");
         }
     }
 
+    @Bean(destroyMethod = "close")
+    public PooledHttpTransport httpTransport() {
+        return new PooledHttpTransport(httpPoolMaxTotal, httpPoolMaxPerRoute, httpConnectTimeout, httpReadTimeout,
+                httpPoolIdleTimeout);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public RetryScheduler retryScheduler() {
+        return new RetryScheduler(retryBaseDelay, retryMaxDelay, retryMaxAttempts);
+    }
+
+    @Bean
+    public DeliveryMetrics deliveryMetrics() {
+        return new DeliveryMetrics();
+    }
+
+    @Bean
+    public PushTokenRegistry tokenRegistry() {
+        return new PushTokenRegistry(deadTokenCapacity);
+    }
+
+    @Bean
+    public SessionRegistry sessionRegistry() {
+        return new SessionRegistry(maxSessions);
+    }
+
+    /**
+     * Notifies the users whose personal space is entered, as the users move
+     */
+    @Bean
+    public ViolationDetector violationDetector(SessionRegistry sessionRegistry, MessagingService messagingService,
+            PushTokenRegistry tokenRegistry) {
+        ViolationDetector detector = new ViolationDetector(messagingService, tokenRegistry, violationDebounce);
+        sessionRegistry.addListener(detector);
+        return detector;
+    }
+
+    /**
+     * The client sockets, forgotten as their users leave the sessions
+     */
+    @Bean
+    public ClientSockets clientSockets(SessionRegistry sessionRegistry) {
+        ClientSockets sockets = new ClientSockets();
+        sessionRegistry.addListener(ClientSocketEndpoint.sessionListener(sockets));
+        return sockets;
+    }
+
+    /**
+     * Serves the client sockets once the servlet context, and its web socket
+     * container, is initialized
+     */
+    @Bean
+    public ServletListenerRegistrationBean<ServletContextListener> clientSocketEndpoint(ClientSockets clientSockets,
+            SessionRegistry sessionRegistry) {
+        return new ServletListenerRegistrationBean<ServletContextListener>(new ServletContextListener() {
+
+            @Override
+            public void contextInitialized(ServletContextEvent event) {
+                ClientSocketEndpoint.deploy(event.getServletContext(), clientSockets, sessionRegistry, sessionPass);
+            }
+
+            @Override
+            public void contextDestroyed(ServletContextEvent event) {
+            }
+        });
+    }
+
+    /**
+     * Pushes the changes of the sessions to their subscribers
+     */
+    @Bean(destroyMethod = "close")
+    public SessionEvents sessionEvents(SessionRegistry sessionRegistry) {
+        SessionEvents events = new SessionEvents(eventsBufferSize, eventsWorkers, eventsSendTimeout);
+        sessionRegistry.addListener(events);
+        return events;
+    }
+
+    /**
+     * Streams the users of a session, with the mapper of the other responses
+     * if there is one
+     */
+    @Bean
+    public UserWriter userWriter(ObjectProvider<ObjectMapper> objectMapper) {
+        ObjectMapper mapper = objectMapper.getIfAvailable();
+        return new UserWriter(mapper == null ? new ObjectMapper() : mapper);
+    }
+
+    @Bean
+    public BulkEnrollment bulkEnrollment() {
+        return new BulkEnrollment();
+    }
+
+    @Bean
+    public TelemetryIngester telemetryIngester() {
+        return new TelemetryIngester(telemetryCapacity);
+    }
+
+    /**
+     * Restores the sessions of the last run, registering the push tokens of
+     * their users again
+     */
+    @Bean(destroyMethod = "close")
+    @Profile("prod")
+    public SessionJournal sessionJournal(SessionRegistry sessionRegistry, PushTokenRegistry tokenRegistry)
+            throws IOException {
+        SessionJournal journal = new SessionJournal(new File(sessionJournalDirectory), sessionRegistry,
+                sessionJournalFlushInterval, sessionJournalSnapshotSize, sessionJournalSnapshotInterval);
+        for (Session session : sessionRegistry.getSessions()) {
+            for (User user : session.getUsers()) {
+                tokenRegistry.register(user);
+            }
+        }
+        return journal;
+    }
+
+    @Bean
+    @Profile("prod")
+    public RestTemplate restTemplate(PooledHttpTransport httpTransport) {
+        return new RestTemplate(httpTransport.createRequestFactory());
+    }
+
     @Bean
     @Profile("prod")
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public AsyncRestTemplate asyncRestTemplate(PooledHttpTransport httpTransport) {
+        return new AsyncRestTemplate(httpTransport.createAsyncRequestFactory());
+    }
+
+    @Bean(destroyMethod = "close")
+    @Profile("prod")
+    public OutboxJournal outboxJournal() throws IOException {
+        return new OutboxJournal(new File(journalDirectory), journalSegmentSize, journalFlushInterval);
     }
 
     @Bean
     @Profile("prod")
-    public MessagingService messagingService(RestTemplate restTemplate) {
-        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService(serverKey, restTemplate);
+    public FirebaseThreadedMessagingService messagingService(RestTemplate restTemplate,
+            RetryScheduler retryScheduler, OutboxJournal outboxJournal, PushTokenRegistry tokenRegistry,
+            DeliveryMetrics deliveryMetrics) {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService(serverKey, restTemplate,
+                workerCount, queueCapacity, queueWaitStrategy, queueFullPolicy, queueFullTimeout);
+        service.setUrl(firebaseUrl);
+        service.setBatchLinger(batchLinger, TimeUnit.MILLISECONDS);
+        service.setLaneWeight(laneWeight, laneMaxWait, TimeUnit.MILLISECONDS);
+        service.setRetryScheduler(retryScheduler);
+        service.setJournal(outboxJournal);
+        service.setTokenRegistry(tokenRegistry);
+        service.setMetrics(deliveryMetrics);
         service.start();
         return service;
     }
+
+    /**
+     * Writes the messages of the connected clients to their sockets, the
+     * others go through the threaded messaging service
+     */
+    @Bean
+    @Primary
+    @Profile("prod")
+    public DirectMessagingService directMessagingService(ClientSockets clientSockets,
+            FirebaseThreadedMessagingService messagingService, DeliveryMetrics deliveryMetrics) {
+        DirectMessagingService service = new DirectMessagingService(clientSockets, messagingService);
+        service.setMetrics(deliveryMetrics);
+        return service;
+    }
+
+    /**
+     * Sends without blocking the caller, the responses are handled by the
+     * threaded messaging service
+     */
+    @Bean
+    @Profile("prod")
+    public AsyncMessagingService asyncMessagingService(AsyncRestTemplate asyncRestTemplate,
+            FirebaseThreadedMessagingService messagingService, DeliveryMetrics deliveryMetrics) {
+        FirebaseAsyncMessagingService service = new FirebaseAsyncMessagingService(asyncRestTemplate, firebaseUrl,
+                serverKey, messagingService);
+        service.setMetrics(deliveryMetrics);
+        return service;
+    }
 }
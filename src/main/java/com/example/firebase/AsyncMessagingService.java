@@ -0,0 +1,16 @@
+package com.example.firebase;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncMessagingService {
+
+    /**
+     * Send the message to the destination without waiting for the response
+     * 
+     * @param message
+     *            the message to be sent
+     * @return completes with the result per recipient once the response has
+     *         been handled, or exceptionally if the request failed
+     */
+    CompletableFuture<DeliveryResult> sendMessageAsync(Message message);
+}
@@ -0,0 +1,95 @@
+package com.example.firebase;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * The clients connected to the server by a web socket, by the session and
+ * the name of their user, so their messages are written to the socket
+ * instead of going through FCM. Users of the same name in different
+ * sessions are kept apart, a user connecting again to the same session
+ * replaces its previous connection. A connection is forgotten once its
+ * user leaves the session, or the session closes.
+ *
+ * @author aanal
+ *
+ */
+public class ClientSockets {
+
+    /**
+     * A live connection to a client
+     */
+    public interface Connection {
+
+        /**
+         * Writes the text without blocking
+         *
+         * @param done
+         *            called once the text is written, with null, or once it
+         *            could not be, with the cause
+         */
+        void send(String text, Consumer<Throwable> done);
+    }
+
+    /**
+     * The connections by session, then by the name of their user
+     */
+    private final ConcurrentMap<Long, ConcurrentMap<String, Connection>> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @return the connection replaced, null if the user was not connected
+     */
+    public Connection register(long sessionId, String username, Connection connection) {
+        return sessions.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>())
+                .put(username, connection);
+    }
+
+    /**
+     * Forgets the connection, unless the user connected again meanwhile
+     */
+    public void unregister(long sessionId, String username, Connection connection) {
+        ConcurrentMap<String, Connection> connections = sessions.get(sessionId);
+        if (connections != null) {
+            connections.remove(username, connection);
+        }
+    }
+
+    /**
+     * Forgets the connection of a user that left the session, whichever it
+     * is, so a later user of the same name is not written to it
+     */
+    public void unregister(long sessionId, String username) {
+        ConcurrentMap<String, Connection> connections = sessions.get(sessionId);
+        if (connections != null) {
+            connections.remove(username);
+        }
+    }
+
+    /**
+     * Forgets the connections of every user of a closed session
+     */
+    public void unregisterSession(long sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * @return the connection of the user to the session, null if it is not
+     *         connected
+     */
+    public Connection get(long sessionId, String username) {
+        ConcurrentMap<String, Connection> connections = sessions.get(sessionId);
+        return connections == null || username == null ? null : connections.get(username);
+    }
+
+    /**
+     * @return the number of users connected
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (ConcurrentMap<String, Connection> connections : sessions.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+}
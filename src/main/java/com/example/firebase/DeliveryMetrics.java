@@ -0,0 +1,193 @@
+package com.example.firebase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The statistics of the delivery pipeline: how long messages were queued,
+ * how long the FCM server took to answer, how many requests are in flight
+ * and how often the server returned each of its errors.
+ *
+ * Everything is counted with atomics and {@link LatencyHistogram}s, nothing
+ * is locked or allocated while recording, so it is safe to record every
+ * message.
+ *
+ * @author aanal
+ *
+ */
+public class DeliveryMetrics {
+
+    /**
+     * The errors documented in the FCM http server reference, anything else is
+     * counted as other
+     */
+    public static final String[] ERRORS = { "MissingRegistration", "InvalidRegistration", "NotRegistered",
+            "InvalidPackageName", "MismatchSenderId", "InvalidParameters", "MessageTooBig", "InvalidDataKey",
+            "InvalidTtl", "Unavailable", "InternalServerError", "DeviceMessageRateExceeded",
+            "TopicsMessageRateExceeded", "InvalidApnsCredential" };
+
+    private static final String OTHER_ERROR = "Other";
+
+    private static final Map<String, Integer> ERROR_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < ERRORS.length; i++) {
+            ERROR_INDEX.put(ERRORS[i], i);
+        }
+    }
+
+    private final AtomicLongArray errors = new AtomicLongArray(ERRORS.length + 1);
+
+    /**
+     * The responses by status class, 1xx to 5xx
+     */
+    private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+    private final LatencyHistogram highQueueTime = new LatencyHistogram();
+
+    private final LatencyHistogram normalQueueTime = new LatencyHistogram();
+
+    private final LatencyHistogram httpTime = new LatencyHistogram();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong transportErrors = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    /**
+     * Records the time a message spent queued before a worker took it
+     *
+     * @param highPriority
+     *            the lane of the message
+     * @param nanos
+     *            the time in nano seconds
+     */
+    public void recordQueueTime(boolean highPriority, long nanos) {
+        (highPriority ? highQueueTime : normalQueueTime).record(nanos);
+    }
+
+    /**
+     * Counts a request sent to the server
+     *
+     * @return the start of the request, to be passed on once completed
+     */
+    public long requestStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a response from the server
+     *
+     * @param startedAt
+     *            as returned by {@link #requestStarted()}
+     * @param statusCode
+     *            the HTTP status of the response
+     */
+    public void requestCompleted(long startedAt, int statusCode) {
+        inFlight.decrementAndGet();
+        httpTime.record(System.nanoTime() - startedAt);
+        int statusClass = statusCode / 100;
+        statuses.incrementAndGet(statusClass > 0 && statusClass < 6 ? statusClass : 0);
+    }
+
+    /**
+     * Records a request without a response, such as a timeout
+     *
+     * @param startedAt
+     *            as returned by {@link #requestStarted()}
+     */
+    public void requestFailed(long startedAt) {
+        inFlight.decrementAndGet();
+        httpTime.record(System.nanoTime() - startedAt);
+        transportErrors.incrementAndGet();
+    }
+
+    /**
+     * Counts an error returned for a single recipient
+     *
+     * @param error
+     *            the error string of the result
+     */
+    public void error(String error) {
+        Integer index = ERROR_INDEX.get(error);
+        errors.incrementAndGet(index == null ? ERRORS.length : index);
+    }
+
+    /**
+     * Counts a message delivered to its recipient
+     */
+    public void delivered() {
+        delivered.incrementAndGet();
+    }
+
+    /**
+     * @param error
+     *            the error string, anything unknown is other
+     * @return the number of times the server returned the error
+     */
+    public long getErrorCount(String error) {
+        Integer index = ERROR_INDEX.get(error);
+        return errors.get(index == null ? ERRORS.length : index);
+    }
+
+    public LatencyHistogram getHighQueueTime() {
+        return highQueueTime;
+    }
+
+    public LatencyHistogram getNormalQueueTime() {
+        return normalQueueTime;
+    }
+
+    public LatencyHistogram getHttpTime() {
+        return httpTime;
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getTransportErrors() {
+        return transportErrors.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Converts the statistics into json, durations in micro seconds
+     *
+     * @return the requests in flight, the responses by status, the server
+     *         time, the delivered messages and the errors
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("inFlight", inFlight.get());
+        obj.put("delivered", delivered.get());
+        JSONObject responses = new JSONObject();
+        for (int i = 1; i < 6; i++) {
+            responses.put(i + "xx", statuses.get(i));
+        }
+        responses.put("transportErrors", transportErrors.get());
+        obj.put("responses", responses);
+        obj.put("httpTime", httpTime.toJSON());
+        JSONObject errorCounts = new JSONObject();
+        for (int i = 0; i < ERRORS.length; i++) {
+            errorCounts.put(ERRORS[i], errors.get(i));
+        }
+        errorCounts.put(OTHER_ERROR, errors.get(ERRORS.length));
+        obj.put("errors", errorCounts);
+        return obj;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.firebase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.http.HttpStatus;
+
+/**
+ * The outcome of sending a message, with one result per recipient in the
+ * order of {@link Message#getRecipientTokens()}
+ * 
+ * @author aanal
+ *
+ */
+public class DeliveryResult {
+
+    /**
+     * The result of the message for a single device
+     * 
+     * @author aanal
+     *
+     */
+    public static class Recipient {
+
+        @Getter
+        private String token;
+
+        /**
+         * The id of the message when it was accepted
+         */
+        @Getter
+        private String messageId;
+
+        /**
+         * The error string as per in docs, null when accepted
+         */
+        @Getter
+        private String error;
+
+        /**
+         * The canonical token that should replace the token, if any
+         */
+        @Getter
+        private String registrationId;
+
+        public Recipient(String token, String messageId, String error, String registrationId) {
+            this.token = token;
+            this.messageId = messageId;
+            this.error = error;
+            this.registrationId = registrationId;
+        }
+
+        public boolean isSuccess() {
+            return error == null && messageId != null;
+        }
+    }
+
+    @Getter
+    private HttpStatus status;
+
+    @Getter
+    private List<Recipient> recipients;
+
+    public DeliveryResult(HttpStatus status, List<Recipient> recipients) {
+        this.status = status;
+        this.recipients = Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * @return true if the message was accepted for every recipient
+     */
+    public boolean isSuccess() {
+        if (status != HttpStatus.OK || recipients.isEmpty()) {
+            return false;
+        }
+        for (Recipient recipient : recipients) {
+            if (!recipient.isSuccess()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pairs the results sent by the firebase server with the recipients of
+     * the message
+     * 
+     * @param message
+     *            the requested message
+     * @param status
+     *            the response HTTP Status
+     * @param results
+     *            the results as per in docs
+     * @return the parsed result
+     * @throws JSONException
+     */
+    public static DeliveryResult fromResults(Message message, HttpStatus status, JSONArray results)
+            throws JSONException {
+        String[] tokens = message.getRecipientTokens();
+        List<Recipient> recipients = new ArrayList<Recipient>(results.length());
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            recipients.add(new Recipient(tokens != null && i < tokens.length ? tokens[i] : null,
+                    result.optString("message_id", null), result.optString("error", null),
+                    result.optString("registration_id", null)));
+        }
+        return new DeliveryResult(status, recipients);
+    }
+}
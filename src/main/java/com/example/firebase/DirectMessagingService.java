@@ -0,0 +1,156 @@
+package com.example.firebase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes a message straight to the web socket of its user when the user is
+ * connected to the session the message is sent within, skipping the round
+ * trip through FCM and its rate limits, and sends it through the fallback
+ * service, the FCM queue, otherwise or when the write fails. A message sent
+ * outside of any session always goes through the fallback.
+ *
+ * The client is sent the body of the message as FCM would have delivered
+ * it, without the token of the device. The write is asynchronous, the
+ * fallback of a failed write happens on the thread that saw it fail.
+ *
+ * @author aanal
+ *
+ */
+public class DirectMessagingService implements MessagingService {
+
+    private Logger logger = LogManager.getLogger(DirectMessagingService.class);
+
+    private final ClientSockets sockets;
+
+    private final MessagingService fallback;
+
+    private DeliveryMetrics metrics;
+
+    /**
+     * The time from the message given to the socket until it was written
+     */
+    private final LatencyHistogram socketTime = new LatencyHistogram();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong notConnected = new AtomicLong();
+
+    /**
+     * @param sockets
+     *            the connected clients
+     * @param fallback
+     *            sends the messages of the users not connected
+     */
+    public DirectMessagingService(ClientSockets sockets, MessagingService fallback) {
+        this.sockets = sockets;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @param metrics
+     *            the statistics of the fallback, reported next to those of
+     *            the sockets
+     */
+    public void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void sendMessage(Message message) throws JSONException {
+        ClientSockets.Connection connection = message.isStopMessage() || message.getSessionId() == 0 ? null
+                : sockets.get(message.getSessionId(), message.getUsername());
+        String text = connection == null ? null : textOf(message);
+        if (text == null) {
+            notConnected.incrementAndGet();
+            fallback.sendMessage(message);
+            return;
+        }
+        long start = System.nanoTime();
+        connection.send(text, error -> {
+            if (error == null) {
+                socketTime.record(System.nanoTime() - start);
+                delivered.incrementAndGet();
+                message.complete(Message.Outcome.DELIVERED, null);
+                return;
+            }
+            failed.incrementAndGet();
+            sockets.unregister(message.getSessionId(), message.getUsername(), connection);
+            logger.warn("Could not write to the socket of " + message.getUsername() + ", sending through FCM: "
+                    + error.getMessage());
+            try {
+                fallback.sendMessage(message);
+            } catch (JSONException e) {
+                logger.error("Could not send the message to " + message.getUsername(), e);
+            } catch (RuntimeException e) {
+                logger.error("Could not send the message to " + message.getUsername(), e);
+            }
+        });
+    }
+
+    private static String textOf(Message message) {
+        if (message instanceof FirebaseMessage) {
+            FirebaseMessage firebaseMessage = (FirebaseMessage) message;
+            return firebaseMessage.getPayload() == null ? null : firebaseMessage.getBody();
+        }
+        return message.generateRequest();
+    }
+
+    public LatencyHistogram getSocketTime() {
+        return socketTime;
+    }
+
+    /**
+     * @return the messages written to a socket
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the writes that failed and were sent through FCM instead
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the messages sent through FCM as their user was not connected
+     */
+    public long getNotConnected() {
+        return notConnected.get();
+    }
+
+    /**
+     * Converts the statistics into json, durations in micro seconds
+     *
+     * @return the clients connected, the messages by path and the time taken
+     *         by each path, for FCM the time queued and the time of the
+     *         request
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("connected", sockets.getConnectedCount());
+        obj.put("delivered", delivered.get());
+        obj.put("failed", failed.get());
+        obj.put("notConnected", notConnected.get());
+        JSONObject latency = new JSONObject();
+        latency.put("socket", socketTime.toJSON());
+        if (metrics != null) {
+            latency.put("fcmHighQueue", metrics.getHighQueueTime()
+                    .toJSON());
+            latency.put("fcmNormalQueue", metrics.getNormalQueueTime()
+                    .toJSON());
+            latency.put("fcmHttp", metrics.getHttpTime()
+                    .toJSON());
+        }
+        obj.put("latency", latency);
+        return obj;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.firebase;
+
+import com.example.firebase.FirebaseMessagingService.FirebaseResponseHandler;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.ResponseErrorHandler;
+
+/**
+ * A firebase messaging service that does not block the caller while the
+ * request is in flight. The response is handed to the
+ * {@link FirebaseResponseHandler} as a completion stage, so thousands of
+ * messages can be in flight using the few threads of the non-blocking client.
+ * 
+ * @author aanal
+ *
+ */
+public class FirebaseAsyncMessagingService implements AsyncMessagingService, MessagingService, ResponseErrorHandler {
+
+    /**
+     * Used to access the http rest service
+     */
+    private AsyncRestTemplate template;
+
+    /**
+     * The target URL of the firebase server
+     */
+    private String url;
+
+    /**
+     * The headers sent with every request
+     */
+    private HttpHeaders headers;
+
+    /**
+     * The response handler, retries and token updates are done here
+     */
+    private FirebaseResponseHandler responseHandler;
+
+    /**
+     * Records the time and outcome of the requests, may be null
+     */
+    private DeliveryMetrics metrics;
+
+    public FirebaseAsyncMessagingService(AsyncRestTemplate template, String serverKey,
+            FirebaseResponseHandler responseHandler) {
+        this(template, FirebaseMessagingService.DEFAULT_URL, serverKey, responseHandler);
+    }
+
+    public FirebaseAsyncMessagingService(AsyncRestTemplate template, String url, String serverKey,
+            FirebaseResponseHandler responseHandler) {
+        this.template = template;
+        template.setErrorHandler(this);
+        this.url = url;
+        this.responseHandler = responseHandler;
+        headers = new HttpHeaders();
+        headers.add("Authorization", "key=" + serverKey);
+        headers.setContentType(MediaType.APPLICATION_JSON);
+    }
+
+    /**
+     * Records the time and outcome of every request
+     * 
+     * @param metrics
+     *            the metrics to record into
+     */
+    public void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        sendMessageAsync(message);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> sendMessageAsync(final Message message) {
+        final CompletableFuture<ResponseEntity<String>> response = new CompletableFuture<ResponseEntity<String>>();
+        String request = message.generateRequest();
+        if (request == null) {
+            response.completeExceptionally(new IllegalArgumentException("The message could not be converted"));
+        } else {
+            final DeliveryMetrics metrics = this.metrics;
+            final long startedAt = metrics == null ? 0 : metrics.requestStarted();
+            template.exchange(url, HttpMethod.POST, new HttpEntity<String>(request, headers), String.class)
+                    .addCallback(new ListenableFutureCallback<ResponseEntity<String>>() {
+
+                        @Override
+                        public void onSuccess(ResponseEntity<String> result) {
+                            if (metrics != null) {
+                                metrics.requestCompleted(startedAt, result.getStatusCodeValue());
+                            }
+                            response.complete(result);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable ex) {
+                            if (metrics != null) {
+                                metrics.requestFailed(startedAt);
+                            }
+                            response.completeExceptionally(ex);
+                        }
+                    });
+        }
+        return response.thenApply(entity -> handleResponse(message, entity));
+    }
+
+    /**
+     * Runs the response handler on the response and converts it into the
+     * result
+     */
+    private DeliveryResult handleResponse(Message message, ResponseEntity<String> entity) {
+        HttpStatus status = entity.getStatusCode();
+        try {
+            JSONArray results = FirebaseMessagingService.parseResults(entity.getBody());
+            responseHandler.handleResponse(message, status, entity.getHeaders(), results);
+            return DeliveryResult.fromResults(message, status, results);
+        } catch (JSONException e) {
+            throw new IllegalStateException("The response message could not be parsed", e);
+        }
+    }
+
+    /**
+     * Every response is handed over to the response handler
+     */
+    @Override
+    public boolean hasError(ClientHttpResponse response) throws IOException {
+        return false;
+    }
+
+    @Override
+    public void handleError(ClientHttpResponse response) throws IOException {
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.firebase;
 
+import com.example.firebase.FirebaseMessagingService.Priority;
 import lombok.Getter;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,10 +18,48 @@ public class FirebaseMessage extends Message {
     @Getter
     private JSONObject payload;
 
+    /**
+     * The payload without the recipient, used to batch identical messages
+     */
+    private String body;
+
+    /**
+     * The priority requested from the server, null if not set
+     */
+    @Getter
+    private Priority priority;
+
+    /**
+     * Creates a message, the priority is read from the payload if it has one
+     */
     public FirebaseMessage(String username, JSONObject payload, String recipientToken) {
         super(username);
         this.to = recipientToken;
         this.payload = payload;
+        if (payload != null) {
+            priority = Priority.fromValue(payload.optString("priority", null));
+        }
+    }
+
+    /**
+     * Creates a message with the given priority, which is also set as the
+     * priority of the payload
+     */
+    public FirebaseMessage(String username, JSONObject payload, String recipientToken, Priority priority) {
+        this(username, payload, recipientToken);
+        if (priority != null && payload != null) {
+            try {
+                payload.put("priority", priority.getValue());
+                this.priority = priority;
+            } catch (JSONException e) {
+                // keeps the priority of the payload
+            }
+        }
+    }
+
+    @Override
+    public boolean isHighPriority() {
+        return priority == Priority.high;
     }
 
     @Override
@@ -28,6 +67,32 @@ public class FirebaseMessage extends Message {
         return to.equals("STOP");
     }
 
+    /**
+     * @return the token of the device this message is sent to
+     */
+    public String getRecipientToken() {
+        return to;
+    }
+
+    /**
+     * The payload of the message without any recipient, messages with equal
+     * bodies can be sent together in one multicast request
+     * 
+     * @return the body as json string
+     */
+    public String getBody() {
+        if (body == null) {
+            try {
+                JSONObject copy = new JSONObject(payload.toString());
+                copy.remove("to");
+                body = copy.toString();
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return body;
+    }
+
     @Override
     public String[] getRecipientTokens() {
         return new String[] { to };
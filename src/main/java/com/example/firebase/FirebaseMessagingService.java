@@ -6,6 +6,7 @@ import lombok.Getter;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -38,16 +39,19 @@ public class FirebaseMessagingService extends HttpMessagingService {
          *            the requested message
          * @param status
          *            the response HTTP Status
+         * @param headers
+         *            the response headers, e.g. Retry-After
          * @param results
-         *            the results as per in docs
+         *            the results as per in docs, empty if the server did not
+         *            send any
          */
-        void handleResponse(Message message, HttpStatus status, JSONArray results);
+        void handleResponse(Message message, HttpStatus status, HttpHeaders headers, JSONArray results);
     }
 
     /**
      * The standard google api url
      */
-    private static final String url = "https://fcm.googleapis.com/fcm/send";
+    public static final String DEFAULT_URL = "https://fcm.googleapis.com/fcm/send";
 
     /**
      * The standard google api method
@@ -79,10 +83,36 @@ public class FirebaseMessagingService extends HttpMessagingService {
         private Priority(String value) {
             this.value = value;
         }
+
+        /**
+         * @param value
+         *            the value as sent to the server
+         * @return the priority or null if unknown
+         */
+        public static Priority fromValue(String value) {
+            for (Priority priority : values()) {
+                if (priority.value.equals(value)) {
+                    return priority;
+                }
+            }
+            return null;
+        }
+    }
+
+    public FirebaseMessagingService(
+            RestTemplate template,
+            String serverKey,
+            FirebaseResponseHandler firebaseErrorHandler) {
+        this(template, DEFAULT_URL, serverKey, firebaseErrorHandler);
     }
 
+    /**
+     * Sends the messages to a server other than the google api, useful when
+     * testing against a local server
+     */
     public FirebaseMessagingService(
             RestTemplate template,
+            String url,
             String serverKey,
             FirebaseResponseHandler firebaseErrorHandler) {
         super(template, url, method);
@@ -98,9 +128,30 @@ public class FirebaseMessagingService extends HttpMessagingService {
         // make the request
         ResponseEntity<String> responseString = sendHttpMessage(authorizationHeaders, message);
         if (responseString != null) {
-            JSONObject response = new JSONObject(responseString.getBody());
-            errorHandler.handleResponse(message, responseString.getStatusCode(), response.getJSONArray("results"));
+            errorHandler.handleResponse(message, responseString.getStatusCode(), responseString.getHeaders(),
+                    parseResults(responseString.getBody()));
+        }
+    }
+
+    /**
+     * Reads the results from the response body, errors such as 5xx may not be
+     * sent with a json body
+     * 
+     * @param body
+     *            the response body
+     * @return the results, empty if there are none
+     * @throws JSONException
+     *             if the body is malformed json
+     */
+    static JSONArray parseResults(String body) throws JSONException {
+        if (body != null && body.trim()
+                .startsWith("{")) {
+            JSONObject response = new JSONObject(body);
+            if (response.has("results")) {
+                return response.getJSONArray("results");
+            }
         }
+        return new JSONArray();
     }
 
     @Override
@@ -0,0 +1,92 @@
+package com.example.firebase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Several firebase messages with identical payloads sent as a single request
+ * using registration_ids. The n-th result of the response belongs to the
+ * n-th message of this batch. A token is only sent once per batch, so each
+ * result is known to belong to a single message.
+ * 
+ * @author aanal
+ *
+ */
+public class FirebaseMulticastMessage extends Message {
+
+    /**
+     * The maximum number of registration ids accepted by FCM in one request
+     */
+    public static final int MAX_RECIPIENTS = 1000;
+
+    private List<FirebaseMessage> messages;
+
+    /**
+     * The tokens of the batch
+     */
+    private Set<String> tokens;
+
+    public FirebaseMulticastMessage(FirebaseMessage first) {
+        super(first.getUsername());
+        messages = new ArrayList<FirebaseMessage>();
+        messages.add(first);
+        tokens = new HashSet<String>();
+        tokens.add(first.getRecipientToken());
+    }
+
+    /**
+     * Adds a message to this batch
+     * 
+     * @param message
+     *            a message with the same body as the first message
+     * @return false if the batch is already full or already sent to the
+     *         token of the message
+     */
+    public boolean add(FirebaseMessage message) {
+        if (messages.size() >= MAX_RECIPIENTS || !tokens.add(message.getRecipientToken())) {
+            return false;
+        }
+        messages.add(message);
+        return true;
+    }
+
+    /**
+     * @return the messages of this batch, in the order of the results
+     */
+    public List<FirebaseMessage> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    @Override
+    public boolean isStopMessage() {
+        return false;
+    }
+
+    @Override
+    public String[] getRecipientTokens() {
+        String[] tokens = new String[messages.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = messages.get(i)
+                    .getRecipientToken();
+        }
+        return tokens;
+    }
+
+    @Override
+    public String generateRequest() {
+        try {
+            JSONObject request = new JSONObject(messages.get(0)
+                    .getBody());
+            request.put("registration_ids", new JSONArray(getRecipientTokens()));
+            return request.toString();
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
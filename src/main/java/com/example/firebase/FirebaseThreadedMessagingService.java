@@ -1,47 +1,78 @@
 package com.example.firebase;
 
 import com.example.firebase.FirebaseMessagingService.FirebaseResponseHandler;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-public class FirebaseThreadedMessagingService extends Thread implements MessagingService, FirebaseResponseHandler {
+/**
+ * A messaging service that hands messages over to a fixed pool of worker
+ * threads. Messages are partitioned by username, so every message for a
+ * single user is sent by the same worker in the order it was queued, while
+ * messages for different users are sent in parallel.
+ * 
+ * A worker collects whatever is queued in its partition, waiting up to the
+ * batch linger for more, and sends messages with identical payloads as one
+ * multicast request. A request the server did not answer, or answered with
+ * a server error, is retried message by message with the
+ * {@link RetryScheduler}.
+ * 
+ * Each partition has a lane for high priority and one for normal messages,
+ * see {@link MessageLanes}. Each lane is a bounded {@link RingBuffer}, its
+ * wait strategy and the policy for a full lane are chosen when creating the
+ * service.
+ * 
+ * With an {@link OutboxJournal} every queued message is journaled until it
+ * is sent or abandoned, and the messages left over from the last run are sent
+ * again on start.
+ * 
+ * @author aanal
+ *
+ */
+public class FirebaseThreadedMessagingService implements MessagingService, FirebaseResponseHandler {
 
     /**
-     * The delay generator that is used to create random delay
+     * The logger to log any errors
      */
-    private Random delayGenerator;
+    private Logger logger = LogManager.getLogger(FirebaseThreadedMessagingService.class);
 
     /**
-     * The logger to log any errors
+     * Schedules the messages the server could not handle for another attempt
      */
-    private Logger logger = LogManager.getLogger(FirebaseThreadedMessagingService.class);
+    private RetryScheduler retryScheduler;
 
     /**
-     * A timer used to delay any subsequent tasks.
+     * Records the queued messages so they survive a restart, may be null
      */
-    private Timer delayScheduler;
+    private OutboxJournal journal;
 
     /**
-     * The blocking Firebase messaging service
+     * Receives the token updates sent by the server, may be null
+     */
+    private TokenRegistry tokenRegistry;
+
+    /**
+     * The blocking Firebase messaging service, shared by all the workers
      */
     private FirebaseMessagingService messagingService;
 
     /**
-     * The message queue
+     * The workers, each owning one partition of the users
      */
-    private BlockingQueue<Message> messageQueue;
+    private Worker[] workers;
 
     /**
      * The template used to access HTTP messaging
@@ -49,77 +80,527 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
     private RestTemplate restTemplate;
 
     /**
-     * Useful when testing this threaded service
+     * The server key provided by google
+     */
+    private String serverKey;
+
+    /**
+     * How long a worker waits for more messages to batch with, in nano seconds
+     */
+    private long batchLingerNanos;
+
+    /**
+     * The default number of messages a single partition can hold
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+    /**
+     * The default time in milli seconds a caller waits for space in a full
+     * partition
+     */
+    public static final long DEFAULT_FULL_TIMEOUT = 1000;
+
+    /**
+     * The default number of high priority messages sent in a row while normal
+     * messages are waiting
+     */
+    public static final int DEFAULT_LANE_WEIGHT = 4;
+
+    /**
+     * The default time in milli seconds after which a waiting normal message
+     * is sent ahead of high priority ones
+     */
+    public static final long DEFAULT_LANE_MAX_WAIT = 1000;
+
+    /**
+     * Records the time messages spend queued and sending, and the errors of
+     * the server
+     */
+    private DeliveryMetrics metrics = new DeliveryMetrics();
+
+    /**
+     * Useful when testing this threaded service, uses a single worker
      * 
      * @param serverKey
      * @param template
      */
     public FirebaseThreadedMessagingService(String serverKey, RestTemplate template) {
+        this(serverKey, template, 1);
+    }
+
+    /**
+     * Creates a service that sends messages using the given number of workers
+     * 
+     * @param serverKey
+     *            the server key provided by google
+     * @param template
+     *            the template used to access HTTP messaging
+     * @param workerCount
+     *            the number of messages that can be in flight at once
+     */
+    public FirebaseThreadedMessagingService(String serverKey, RestTemplate template, int workerCount) {
+        this(serverKey, template, workerCount, DEFAULT_QUEUE_CAPACITY, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.BLOCK, DEFAULT_FULL_TIMEOUT);
+    }
+
+    /**
+     * Creates a service that sends messages using the given number of workers
+     * 
+     * @param serverKey
+     *            the server key provided by google
+     * @param template
+     *            the template used to access HTTP messaging
+     * @param workerCount
+     *            the number of messages that can be in flight at once
+     * @param queueCapacity
+     *            the number of messages each lane of a partition can hold
+     * @param waitStrategy
+     *            how the workers wait for messages
+     * @param fullPolicy
+     *            what happens to messages sent to a full partition
+     * @param fullTimeout
+     *            the time in milli seconds to wait for space with
+     *            {@link RingBuffer.FullPolicy#BLOCK}
+     */
+    public FirebaseThreadedMessagingService(String serverKey, RestTemplate template, int workerCount,
+            int queueCapacity, RingBuffer.WaitStrategy waitStrategy, RingBuffer.FullPolicy fullPolicy,
+            long fullTimeout) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
         this.restTemplate = template;
+        this.serverKey = serverKey;
         messagingService = new FirebaseMessagingService(restTemplate, serverKey, this);
-        messageQueue = new LinkedBlockingQueue<Message>();
-        delayScheduler = new Timer();
-        delayGenerator = new Random(new Date().getTime());
+        messagingService.setMetrics(metrics);
+        retryScheduler = new RetryScheduler(1000, 300000, 8);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            MessageLanes queue = new MessageLanes(queueCapacity, waitStrategy, fullPolicy, fullTimeout, metrics);
+            queue.setDropListener(message -> {
+                logger.error("Dropped the oldest message because the queue was full");
+                logger.error(message.generateRequest());
+                abandon(message);
+            });
+            workers[i] = new Worker(i, queue);
+        }
     }
 
-    @Override
-    public void run() {
-        logger.debug("Starting Messaging service: ");
-        while (true) {
-            try {
-                Message message = messageQueue.take();
-                if (message.isStopMessage()) {
-                    logger.warn("Stopping message service");
-                    break;
-                } else {
-                    if (message instanceof FirebaseMessage) {
-                        messagingService.sendMessage(message);
-                    } else {
-                        logger.error("Trying to send a non firebase message to a firebase server");
-                    }
-                }
-            } catch (InterruptedException e) {
-                logger.warn("The thread was interrupted while waiting for message queue");
-                logger.warn(e.getStackTrace()
-                        .toString());
-            } catch (JSONException e) {
-                logger.error("Could not parse JSON");
-                logger.error(Arrays.toString(e.getStackTrace()));
+    /**
+     * Starts all the workers, then queues the messages recovered from the
+     * journal
+     */
+    public void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        if (journal != null) {
+            for (FirebaseMessage message : journal.takeRecovered()) {
+                sendMessage(message);
             }
         }
     }
 
+    /**
+     * Waits for all the workers to stop, see {@link #sendStopMessage()}
+     * 
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        for (Worker worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Sets how long a worker waits for further messages before sending the
+     * messages collected so far. Zero only batches what is already queued.
+     * 
+     * @param linger
+     *            the time to wait
+     * @param unit
+     *            the unit of the linger
+     */
+    public void setBatchLinger(long linger, TimeUnit unit) {
+        if (linger < 0) {
+            throw new IllegalArgumentException("The linger cannot be negative");
+        }
+        batchLingerNanos = unit.toNanos(linger);
+    }
+
+    /**
+     * Sends the messages to another server than the google api, such as a
+     * local stand-in when load testing. Set before starting the service.
+     * 
+     * @param url
+     *            the url of the FCM send endpoint
+     */
+    public void setUrl(String url) {
+        messagingService = new FirebaseMessagingService(restTemplate, url, serverKey, this);
+        messagingService.setMetrics(metrics);
+    }
+
+    /**
+     * Sets how many high priority messages are sent in a row while normal
+     * messages are waiting, and after how long a normal message is sent
+     * regardless
+     * 
+     * @param weight
+     *            the number of high priority messages
+     * @param maxWait
+     *            the longest time a normal message waits for high priority
+     *            ones
+     * @param unit
+     *            the unit of the wait
+     */
+    public void setLaneWeight(int weight, long maxWait, TimeUnit unit) {
+        if (weight < 1 || maxWait < 0) {
+            throw new IllegalArgumentException("Invalid lane configuration");
+        }
+        for (Worker worker : workers) {
+            worker.queue.setWeight(weight);
+            worker.queue.setMaxWait(maxWait, unit);
+        }
+    }
+
+    /**
+     * Replaces the metrics created with the service, e.g. to share them with
+     * other services
+     * 
+     * @param metrics
+     *            the metrics to record into
+     */
+    public void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+        messagingService.setMetrics(metrics);
+        for (Worker worker : workers) {
+            worker.queue.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * @return the metrics recorded by this service
+     */
+    public DeliveryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Replaces the default retry scheduler, which retries up to 8 times
+     * starting at 1 second and backing off up to 5 minutes
+     * 
+     * @param retryScheduler
+     *            the scheduler used for retries
+     */
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Journals every queued message until it is acknowledged, set before
+     * starting the service
+     * 
+     * @param journal
+     *            the journal to record the messages in
+     */
+    public void setJournal(OutboxJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the registry updated with removed and canonical tokens, messages
+     * to tokens it knows to be dead are not sent
+     * 
+     * @param tokenRegistry
+     *            the registry of the push tokens
+     */
+    public void setTokenRegistry(TokenRegistry tokenRegistry) {
+        this.tokenRegistry = tokenRegistry;
+    }
+
+    /**
+     * @return the number of workers sending messages
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
     public void sendMessage(Message message) {
-        if (!messageQueue.offer(message)) {
+        if (tokenRegistry != null && message instanceof FirebaseMessage
+                && tokenRegistry.isDead(((FirebaseMessage) message).getRecipientToken())) {
+            logger.warn("Not sending the message for " + message.getUsername() + " to a dead token");
+            abandon(message);
+            return;
+        }
+        // retried and recovered messages are journaled already
+        if (journal != null && message.getId() == 0 && message instanceof FirebaseMessage) {
+            journal.enqueued((FirebaseMessage) message);
+        }
+        Worker worker = partitionFor(message.getUsername());
+        if (!worker.queue.offer(message)) {
             logger.error("The message could not be send because the queue was full");
             logger.error(message.generateRequest());
+            abandon(message);
         }
     }
 
     /**
-     * Sends a stop message to the thread, useful in testing conditions, for the
-     * thread to stop
+     * Sends a stop message to every worker, useful in testing conditions, for
+     * the threads to stop. Messages queued before the stop message are still
+     * sent.
      */
     public void sendStopMessage() {
-        // A default stop type message
-        FirebaseMessage stopMessage = new FirebaseMessage("STOP", null, "STOP");
-        if (!messageQueue.offer(stopMessage)) {
-            logger.error("The stop message could not be sent");
+        for (Worker worker : workers) {
+            // A default stop type message
+            FirebaseMessage stopMessage = new FirebaseMessage("STOP", null, "STOP");
+            try {
+                worker.queue.put(stopMessage);
+            } catch (InterruptedException e) {
+                logger.error("The stop message could not be sent");
+                Thread.currentThread()
+                        .interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages waiting in all the partitions
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Converts the state of the lanes into json
+     * 
+     * @return the number of queued messages and the time they waited in the
+     *         queue, per lane
+     * @throws JSONException
+     */
+    public JSONObject lanesToJSON() throws JSONException {
+        int highSize = 0;
+        int normalSize = 0;
+        for (Worker worker : workers) {
+            highSize += worker.queue.highSize();
+            normalSize += worker.queue.normalSize();
+        }
+        JSONObject high = new JSONObject();
+        high.put("queued", highSize);
+        high.put("wait", metrics.getHighQueueTime()
+                .toJSON());
+        JSONObject normal = new JSONObject();
+        normal.put("queued", normalSize);
+        normal.put("wait", metrics.getNormalQueueTime()
+                .toJSON());
+        JSONObject obj = new JSONObject();
+        obj.put("high", high);
+        obj.put("normal", normal);
+        return obj;
+    }
+
+    /**
+     * Find the worker responsible for the user, the same user always maps to
+     * the same worker
+     * 
+     * @param username
+     *            the recipient of the message
+     * @return the worker
+     */
+    private Worker partitionFor(String username) {
+        if (username == null) {
+            return workers[0];
+        }
+        return workers[(username.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * Merges messages with identical bodies into multicast messages. A
+     * message only joins a multicast if no later request already holds a
+     * message of the same user, so every user still receives its messages in
+     * the order they were queued, and if it holds no message to the same
+     * token, as the results could not be told apart.
+     * 
+     * @param batch
+     *            the messages in the order they were queued
+     * @return the requests to be made, in order
+     */
+    List<Message> coalesce(List<Message> batch) {
+        if (batch.size() < 2) {
+            return batch;
+        }
+        List<Message> requests = new ArrayList<Message>(batch.size());
+        // the request currently open for a body and the last request per user
+        Map<String, Integer> openRequests = new HashMap<String, Integer>();
+        Map<String, Integer> lastRequestOfUser = new HashMap<String, Integer>();
+        for (Message message : batch) {
+            String body = message instanceof FirebaseMessage ? ((FirebaseMessage) message).getBody() : null;
+            Integer open = body == null ? null : openRequests.get(body);
+            Integer last = lastRequestOfUser.get(message.getUsername());
+            int index;
+            if (open != null && (last == null || last <= open) && join(requests, open, (FirebaseMessage) message)) {
+                index = open;
+            } else {
+                requests.add(message);
+                index = requests.size() - 1;
+                if (body != null) {
+                    openRequests.put(body, index);
+                }
+            }
+            lastRequestOfUser.put(message.getUsername(), index);
+        }
+        return requests;
+    }
+
+    /**
+     * Adds the message to the request at the index, turning it into a
+     * multicast if required
+     * 
+     * @return false if the request is already full or holds the token
+     */
+    private boolean join(List<Message> requests, int index, FirebaseMessage message) {
+        Message request = requests.get(index);
+        if (request instanceof FirebaseMessage) {
+            if (((FirebaseMessage) request).getRecipientToken()
+                    .equals(message.getRecipientToken())) {
+                return false;
+            }
+            request = new FirebaseMulticastMessage((FirebaseMessage) request);
+            requests.set(index, request);
+        }
+        return ((FirebaseMulticastMessage) request).add(message);
+    }
+
+    /**
+     * A worker sending the messages of its own partition one after the other
+     * 
+     * @author aanal
+     *
+     */
+    private class Worker extends Thread {
+
+        /**
+         * The message queue of this partition
+         */
+        private final MessageLanes queue;
+
+        private Worker(int index, MessageLanes queue) {
+            super("firebase-worker-" + index);
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            logger.debug("Starting Messaging service: " + getName());
+            List<Message> batch = new ArrayList<Message>();
+            boolean stopped = false;
+            while (!stopped) {
+                try {
+                    batch.add(queue.take());
+                    collect(batch);
+                } catch (InterruptedException e) {
+                    logger.warn("The thread was interrupted while waiting for message queue");
+                    logger.warn(Arrays.toString(e.getStackTrace()));
+                }
+                if (!batch.isEmpty() && batch.get(batch.size() - 1)
+                        .isStopMessage()) {
+                    batch.remove(batch.size() - 1);
+                    stopped = true;
+                    // high priority messages may still be queued behind it
+                    Message rest;
+                    while ((rest = queue.poll()) != null) {
+                        batch.add(rest);
+                    }
+                }
+                for (Message request : coalesce(batch)) {
+                    send(request);
+                }
+                batch.clear();
+            }
+            logger.warn("Stopping message service: " + getName());
+        }
+
+        /**
+         * Collects the queued messages following the first one in the batch,
+         * lingering for more until the batch is full. Stops after a stop
+         * message.
+         */
+        private void collect(List<Message> batch) throws InterruptedException {
+            if (batch.get(0)
+                    .isStopMessage()) {
+                return;
+            }
+            long deadline = System.nanoTime() + batchLingerNanos;
+            while (batch.size() < FirebaseMulticastMessage.MAX_RECIPIENTS) {
+                Message next = queue.poll();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                }
+                batch.add(next);
+                if (next.isStopMessage()) {
+                    break;
+                }
+            }
+        }
+
+        private void send(Message message) {
+            try {
+                if (message instanceof FirebaseMessage || message instanceof FirebaseMulticastMessage) {
+                    messagingService.sendMessage(message);
+                } else {
+                    logger.error("Trying to send a non firebase message to a firebase server");
+                }
+            } catch (JSONException e) {
+                logger.error("Could not parse JSON");
+                logger.error(Arrays.toString(e.getStackTrace()));
+                abandon(message);
+            } catch (RestClientException e) {
+                // the server could not be reached or did not answer
+                logger.warn("Could not reach the FCM server, retrying: " + e.getMessage());
+                retry(message);
+            } catch (RuntimeException e) {
+                // a failing request must not take the whole partition down
+                logger.error("Could not send the message", e);
+                abandon(message);
+            }
         }
     }
 
     /**
      * Handle the response sent by the FCM server
      */
-    public void handleResponse(final Message message, HttpStatus status, JSONArray results) {
+    public void handleResponse(final Message message, HttpStatus status, HttpHeaders headers, JSONArray results) {
+        if (message instanceof FirebaseMulticastMessage) {
+            handleMulticastResponse((FirebaseMulticastMessage) message, status, headers, results);
+            return;
+        }
+        // only parsed for those waiting for the outcome
+        DeliveryResult deliveryResult = message.hasDeliveryListener() ? resultOf(message, status, results) : null;
         // check for the simplest mistake
         if (status == HttpStatus.BAD_REQUEST) {
             // the request json was malformed
             logger.error("The JSON message was ill-formed");
             logger.error("Request: " + message.generateRequest());
+            abandon(message, deliveryResult);
             return;
         } else if (status == HttpStatus.UNAUTHORIZED) {
             logger.error("Server Key was incorrect.");
+            abandon(message, deliveryResult);
+            return;
+        } else if (status.is5xxServerError()) {
+            // the server could not handle the request at all
+            logger.warn("The FCM server responded with " + status + ", retrying");
+            retry(message, headers, deliveryResult);
             return;
         }
 
@@ -127,6 +608,7 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
         if (registrationIds == null) {
             logger.error("The registration ids were null for customer: " + message.getUsername());
             logger.error("With message: " + message.generateRequest());
+            abandon(message, deliveryResult);
             return;
         }
 
@@ -135,16 +617,20 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
             logger.error("Mismatched request and response");
             logger.error("Request: " + message.generateRequest());
             logger.error("Response: " + results.toString());
+            abandon(message, deliveryResult);
             return;
         }
 
         // everything okay, start processing the response
+        boolean retrying = false;
+        boolean delivered = false;
         try {
             for (int i = 0; i < results.length(); i++) {
                 JSONObject result = results.getJSONObject(i);
                 if (result.has("error")) {
                     // the result has an error
                     String error = result.getString("error");
+                    metrics.error(error);
                     if (status == HttpStatus.OK) {
                         if (error.equals("MissingRegistration")) {
                             logger.error("The request was missing registration id");
@@ -193,21 +679,18 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
                     }
                     // these errors are common to multiple types of statuses
                     if (error.equals("Unavailable") || error.equals("InternalServerError")) {
-                        // TODO retry exponentially
-                        delayScheduler.schedule(new TimerTask() {
-
-                            @Override
-                            public void run() {
-                                sendMessage(message);
-
-                            }
-                        }, delayGenerator.nextInt(50000) + 10000);
-                        // delay of random to 10000 to 50000 milli seconds
+                        retry(message, headers, deliveryResult);
+                        retrying = true;
                     }
-                } else if (result.has("registration_id")) {
-                    // the message sent was successful but need to update the
-                    // key
-                    replaceToken(message.getUsername(), result.getString("registration_id"), registrationIds[i]);
+                } else {
+                    if (result.has("registration_id")) {
+                        // the message sent was successful but need to update
+                        // the key
+                        replaceToken(message.getUsername(), result.getString("registration_id"), registrationIds[i]);
+                    }
+                    retryScheduler.delivered(message);
+                    metrics.delivered();
+                    delivered = true;
                 }
             }
         } catch (JSONException e) {
@@ -215,6 +698,133 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
             logger.error("The response message could not be parsed: ");
             logger.error(Arrays.toString(e.getStackTrace()));
         }
+        if (delivered) {
+            acknowledge(message, deliveryResult);
+        } else if (!retrying) {
+            abandon(message, deliveryResult);
+        }
+    }
+
+    /**
+     * Hands every result of a multicast response to the message it belongs
+     * to, so retries and token updates happen per recipient
+     */
+    private void handleMulticastResponse(FirebaseMulticastMessage multicast, HttpStatus status, HttpHeaders headers,
+            JSONArray results) {
+        if (status == HttpStatus.BAD_REQUEST) {
+            logger.error("The JSON message was ill-formed");
+            logger.error("Request: " + multicast.generateRequest());
+            abandon(multicast.getMessages(), 0);
+            return;
+        } else if (status == HttpStatus.UNAUTHORIZED) {
+            logger.error("Server Key was incorrect.");
+            abandon(multicast.getMessages(), 0);
+            return;
+        }
+
+        List<FirebaseMessage> messages = multicast.getMessages();
+        if (status.is5xxServerError()) {
+            // retried one by one, they may be batched again
+            logger.warn("The FCM server responded with " + status + ", retrying");
+            for (FirebaseMessage message : messages) {
+                retry(message, headers, message.hasDeliveryListener() ? resultOf(message, status, null) : null);
+            }
+            return;
+        }
+        if (results == null || messages.size() != results.length()) {
+            logger.error("Mismatched multicast request and response");
+            logger.error("Request: " + multicast.generateRequest());
+            logger.error("Response: " + results);
+            abandon(messages, 0);
+            return;
+        }
+
+        int handled = 0;
+        try {
+            for (; handled < messages.size(); handled++) {
+                JSONArray result = new JSONArray();
+                result.put(results.getJSONObject(handled));
+                handleResponse(messages.get(handled), status, headers, result);
+            }
+        } catch (JSONException e) {
+            logger.error("The response message could not be parsed: ");
+            logger.error(Arrays.toString(e.getStackTrace()));
+            abandon(messages, handled);
+        }
+    }
+
+    /**
+     * Schedules the messages of a request that got no response for another
+     * attempt, one by one as they may be batched again
+     */
+    private void retry(Message message) {
+        if (message instanceof FirebaseMulticastMessage) {
+            for (FirebaseMessage single : ((FirebaseMulticastMessage) message).getMessages()) {
+                retry(single, null, null);
+            }
+        } else {
+            retry(message, null, null);
+        }
+    }
+
+    /**
+     * Schedules the message for another attempt, abandoning it after too many
+     */
+    private void retry(Message message, HttpHeaders headers, DeliveryResult result) {
+        if (retryScheduler.schedule(message, RetryScheduler.retryAfter(headers), this)) {
+            message.complete(Message.Outcome.RETRYING, result);
+        } else {
+            abandon(message, result);
+        }
+    }
+
+    /**
+     * Records in the journal that the message was delivered
+     */
+    private void acknowledge(Message message, DeliveryResult result) {
+        if (journal != null) {
+            journal.sent(message);
+        }
+        message.complete(Message.Outcome.DELIVERED, result);
+    }
+
+    /**
+     * Records in the journal that the message will not be delivered
+     */
+    private void abandon(Message message) {
+        if (message instanceof FirebaseMulticastMessage) {
+            abandon(((FirebaseMulticastMessage) message).getMessages(), 0);
+        } else {
+            abandon(message, null);
+        }
+    }
+
+    private void abandon(Message message, DeliveryResult result) {
+        if (journal != null) {
+            journal.abandoned(message);
+        }
+        message.complete(Message.Outcome.ABANDONED, result);
+    }
+
+    /**
+     * @return the response of the server to the message, without recipients
+     *         if it sent no results for it
+     */
+    private DeliveryResult resultOf(Message message, HttpStatus status, JSONArray results) {
+        if (results != null) {
+            try {
+                return DeliveryResult.fromResults(message, status, results);
+            } catch (JSONException e) {
+                logger.warn("Could not read the results of the message: " + e.getMessage());
+            }
+        }
+        return new DeliveryResult(status, Collections.<DeliveryResult.Recipient> emptyList());
+    }
+
+    private void abandon(List<FirebaseMessage> messages, int from) {
+        for (int i = from; i < messages.size(); i++) {
+            abandon(messages.get(i));
+        }
     }
 
     /**
@@ -226,7 +836,9 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
      *            the token to be removed
      */
     private void removeToken(String customerId, String token) {
-        // TODO remove the token
+        if (tokenRegistry != null) {
+            tokenRegistry.removeToken(customerId, token);
+        }
     }
 
     /**
@@ -234,14 +846,14 @@ public class FirebaseThreadedMessagingService extends Thread implements Messagin
      * 
      * @param customerId
      *            the customer reference
-     * @param agent
-     *            the agent, used to store token in database
      * @param token
-     *            the token present in the database
+     *            the canonical token returned by the fcm server
      * @param tokenToReplace
-     *            the actual token returned by the fcm server
+     *            the token present in the database
      */
     private void replaceToken(String customerId, String token, String tokenToReplace) {
-        // TODO replace the token
+        if (tokenRegistry != null) {
+            tokenRegistry.replaceToken(customerId, token, tokenToReplace);
+        }
     }
 }
@@ -34,6 +34,11 @@ public abstract class HttpMessagingService implements ResponseErrorHandler, Mess
      */
     private HttpMethod method;
 
+    /**
+     * Records the time and outcome of the requests, may be null
+     */
+    private DeliveryMetrics metrics;
+
     /**
      * A constructor that initializes the messaging service with the defined
      * rest template
@@ -49,6 +54,16 @@ public abstract class HttpMessagingService implements ResponseErrorHandler, Mess
         this.method = method;
     }
 
+    /**
+     * Records the time and outcome of every request
+     * 
+     * @param metrics
+     *            the metrics to record into
+     */
+    public void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Sends the message to the previously defined url using the predefined
      * method
@@ -68,7 +83,18 @@ public abstract class HttpMessagingService implements ResponseErrorHandler, Mess
         String request = message.generateRequest();
         if (request != null) {
             HttpEntity<String> requestEntity = new HttpEntity<String>(request, httpHeaders);
-            ResponseEntity<String> response = template.exchange(url, method, requestEntity, String.class);
+            if (metrics == null) {
+                return template.exchange(url, method, requestEntity, String.class);
+            }
+            long startedAt = metrics.requestStarted();
+            ResponseEntity<String> response;
+            try {
+                response = template.exchange(url, method, requestEntity, String.class);
+            } catch (RuntimeException e) {
+                metrics.requestFailed(startedAt);
+                throw e;
+            }
+            metrics.requestCompleted(startedAt, response.getStatusCodeValue());
             return response;
         }
         return null;
@@ -0,0 +1,165 @@
+package com.example.firebase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A histogram of durations with buckets growing exponentially, every power of
+ * two is split into 16 linear buckets, so any value is known to within about
+ * 6 percent. Recording is a few atomic increments, without locks or
+ * allocation, so it can be done on every message.
+ *
+ * @author aanal
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration
+     *
+     * @param nanos
+     *            the duration in nano seconds, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised the maximum meanwhile, try again
+        }
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the longest duration in nano seconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The duration below which the given percentage of the recorded durations
+     * lie
+     *
+     * @param percentile
+     *            the percentage, from 0 to 100
+     * @return the duration in nano seconds, zero if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        return percentiles(new double[] { percentile })[0];
+    }
+
+    /**
+     * Converts the histogram into json, durations in micro seconds
+     *
+     * @return the count, mean, max and the 50th, 90th, 99th and 99.9th
+     *         percentile
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        long recorded = count.get();
+        obj.put("count", recorded);
+        obj.put("mean", recorded == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sum.get() / recorded));
+        long[] values = percentiles(PERCENTILES);
+        for (int i = 0; i < values.length; i++) {
+            obj.put(PERCENTILE_NAMES[i], TimeUnit.NANOSECONDS.toMicros(values[i]));
+        }
+        obj.put("max", TimeUnit.NANOSECONDS.toMicros(max.get()));
+        return obj;
+    }
+
+    /**
+     * Computes several percentiles in one pass over the buckets, taking the
+     * highest value of the bucket the percentile falls into
+     */
+    private long[] percentiles(double[] percentiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        long highest = max.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            long target = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += snapshot[i];
+                if (cumulative >= target) {
+                    values[p] = Math.min(highestValueOf(i), highest);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The bucket of a value, the first 16 values have a bucket each, after
+     * that every power of two has 16 buckets
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The lowest value falling into the bucket
+     */
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * The highest value falling into the bucket
+     */
+    static long highestValueOf(int index) {
+        if (index + 1 >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueOf(index + 1) - 1;
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.firebase;
 
+import java.util.concurrent.atomic.AtomicReference;
 import lombok.Getter;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,9 +14,68 @@ import org.json.JSONObject;
  */
 public abstract class Message {
 
+    /**
+     * What became of a message
+     */
+    public enum Outcome {
+        /**
+         * Accepted by the FCM server, or written to the socket of the user
+         */
+        DELIVERED,
+        /**
+         * Not accepted yet, another attempt is scheduled
+         */
+        RETRYING,
+        /**
+         * Given up on, it will not be delivered
+         */
+        ABANDONED
+    }
+
+    /**
+     * Told what became of a message, on the thread that found out
+     */
+    public interface DeliveryListener {
+
+        /**
+         * @param result
+         *            the response of the FCM server for the message, null if
+         *            the server did not respond to it, as when it was written
+         *            to a socket or dropped before being sent
+         */
+        void completed(Message message, Outcome outcome, DeliveryResult result);
+    }
+
     @Getter
     private String username;
 
+    /**
+     * The number of times this message has been retried
+     */
+    @Getter
+    private volatile int attempts;
+
+    /**
+     * The id of the message in the {@link OutboxJournal}, zero if it was not
+     * journaled
+     */
+    @Getter
+    private volatile long id;
+
+    /**
+     * The session whose member the message is sent to, zero if it is not
+     * sent within a session
+     */
+    @Getter
+    private volatile long sessionId;
+
+    /**
+     * When the message was last queued, in nano seconds
+     */
+    long queuedAt;
+
+    private final AtomicReference<DeliveryListener> deliveryListener = new AtomicReference<>();
+
     public Message(String username) {
         this.username = username;
     }
@@ -24,6 +84,60 @@ public abstract class Message {
         object.put(key, value);
     }
     
+    /**
+     * Counts another attempt to send this message
+     * 
+     * @return the number of the attempt
+     */
+    int nextAttempt() {
+        return ++attempts;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * Sends the message within the session, so it may be written to the
+     * socket the user registered for that session
+     */
+    public void setSessionId(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Tells the listener the first outcome of the message, so a retry is told
+     * but not whether the retry succeeded. Set before sending the message.
+     */
+    public void setDeliveryListener(DeliveryListener listener) {
+        deliveryListener.set(listener);
+    }
+
+    /**
+     * @return true if the outcome of the message is still to be told
+     */
+    boolean hasDeliveryListener() {
+        return deliveryListener.get() != null;
+    }
+
+    /**
+     * Tells the listener what became of the message, unless it was told
+     * already
+     */
+    void complete(Outcome outcome, DeliveryResult result) {
+        DeliveryListener listener = deliveryListener.getAndSet(null);
+        if (listener != null) {
+            listener.completed(this, outcome, result);
+        }
+    }
+
+    /**
+     * @return true if the message is sent ahead of normal messages
+     */
+    public boolean isHighPriority() {
+        return false;
+    }
+
     /**
      * The payload of the message
      * @return
@@ -0,0 +1,246 @@
+package com.example.firebase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The queue of a single worker, made of a lane for high priority messages and
+ * a lane for normal ones, each a {@link RingBuffer}.
+ *
+ * High priority messages are taken first, but after a number of them in a
+ * row, the weight, a waiting normal message is taken, so the normal lane
+ * keeps a share of the worker. A normal message waiting longer than the
+ * maximum wait is taken next regardless.
+ *
+ * Only the worker owning the lanes may take messages.
+ *
+ * @author aanal
+ *
+ */
+class MessageLanes {
+
+    private static final int SPINS = 100;
+
+    private final RingBuffer<Message> high;
+
+    private final RingBuffer<Message> normal;
+
+    private final RingBuffer.WaitStrategy waitStrategy;
+
+    /**
+     * Records the time the messages spent queued
+     */
+    private volatile DeliveryMetrics metrics;
+
+    /**
+     * The number of high priority messages taken in a row while normal ones
+     * wait
+     */
+    private volatile int weight;
+
+    private volatile long maxWaitNanos;
+
+    /**
+     * The high priority messages taken since the last normal one, only used
+     * by the worker
+     */
+    private int highStreak;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Set by the worker about to park, as in the {@link RingBuffer}
+     */
+    private final AtomicInteger consumersWaiting = new AtomicInteger();
+
+    /**
+     * Creates both lanes with the same configuration
+     *
+     * @param capacity
+     *            the number of messages each lane can hold
+     * @param waitStrategy
+     *            how the worker, and blocking producers, wait
+     * @param fullPolicy
+     *            what happens with messages offered to a full lane
+     * @param fullTimeout
+     *            the time in milli seconds a producer waits with
+     *            {@link RingBuffer.FullPolicy#BLOCK}
+     * @param metrics
+     *            records the time the messages spent queued
+     */
+    MessageLanes(int capacity, RingBuffer.WaitStrategy waitStrategy, RingBuffer.FullPolicy fullPolicy,
+            long fullTimeout, DeliveryMetrics metrics) {
+        high = new RingBuffer<Message>(capacity, waitStrategy, fullPolicy, fullTimeout, TimeUnit.MILLISECONDS);
+        normal = new RingBuffer<Message>(capacity, waitStrategy, fullPolicy, fullTimeout, TimeUnit.MILLISECONDS);
+        this.waitStrategy = waitStrategy;
+        this.metrics = metrics;
+        this.weight = FirebaseThreadedMessagingService.DEFAULT_LANE_WEIGHT;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(FirebaseThreadedMessagingService.DEFAULT_LANE_MAX_WAIT);
+    }
+
+    void setDropListener(Consumer<? super Message> dropListener) {
+        high.setDropListener(dropListener);
+        normal.setDropListener(dropListener);
+    }
+
+    void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    void setMaxWait(long maxWait, TimeUnit unit) {
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Adds the message to its lane as per the full policy
+     *
+     * @return false if the message was rejected
+     */
+    boolean offer(Message message) {
+        message.queuedAt = System.nanoTime();
+        if (!laneOf(message).offer(message)) {
+            return false;
+        }
+        signal();
+        return true;
+    }
+
+    /**
+     * Adds the message to its lane, waiting for space regardless of the full
+     * policy
+     */
+    void put(Message message) throws InterruptedException {
+        message.queuedAt = System.nanoTime();
+        laneOf(message).put(message);
+        signal();
+    }
+
+    /**
+     * Takes the next message, waiting as per the wait strategy
+     */
+    Message take() throws InterruptedException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the next message if there is any
+     *
+     * @return the message or null if both lanes are empty
+     */
+    Message poll() {
+        Message message;
+        if (normalIsDue()) {
+            message = normal.poll();
+            if (message == null) {
+                message = high.poll();
+            }
+        } else {
+            message = high.poll();
+            if (message == null) {
+                message = normal.poll();
+            }
+        }
+        if (message != null) {
+            taken(message);
+        }
+        return message;
+    }
+
+    /**
+     * Takes the next message, waiting up to the timeout
+     *
+     * @return the message or null if the time elapsed
+     */
+    Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(unit.toNanos(timeout));
+    }
+
+    /**
+     * @return the approximate number of messages in both lanes
+     */
+    int size() {
+        return high.size() + normal.size();
+    }
+
+    int highSize() {
+        return high.size();
+    }
+
+    int normalSize() {
+        return normal.size();
+    }
+
+    private RingBuffer<Message> laneOf(Message message) {
+        return message.isHighPriority() ? high : normal;
+    }
+
+    /**
+     * Whether a waiting normal message goes ahead of the high priority ones
+     */
+    private boolean normalIsDue() {
+        if (highStreak >= weight) {
+            return true;
+        }
+        Message oldest = normal.peek();
+        return oldest != null && System.nanoTime() - oldest.queuedAt > maxWaitNanos;
+    }
+
+    private void taken(Message message) {
+        boolean highPriority = message.isHighPriority();
+        highStreak = highPriority ? highStreak + 1 : 0;
+        metrics.recordQueueTime(highPriority, System.nanoTime() - message.queuedAt);
+    }
+
+    private Message poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int spins = 0;
+        Message message;
+        while ((message = poll()) == null) {
+            long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (waitStrategy == RingBuffer.WaitStrategy.BLOCKING) {
+                consumersWaiting.incrementAndGet();
+                lock.lockInterruptibly();
+                try {
+                    if (size() == 0) {
+                        notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (waitStrategy == RingBuffer.WaitStrategy.YIELDING && spins >= SPINS) {
+                    Thread.yield();
+                } else {
+                    spins++;
+                }
+            }
+        }
+        return message;
+    }
+
+    private void signal() {
+        if (consumersWaiting.get() > 0 && consumersWaiting.getAndSet(0) > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
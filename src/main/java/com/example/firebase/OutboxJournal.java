@@ -0,0 +1,514 @@
+package com.example.firebase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An append-only journal of the messages handed to the messaging service, so
+ * messages still queued or waiting for a retry survive a restart.
+ *
+ * Every queued message is recorded as enqueued, and later as sent or
+ * abandoned. The journal is split into fixed size segment files which are
+ * memory-mapped, so appending is a copy into memory and a record is safe
+ * from a crash of the JVM as soon as it is written. A background thread
+ * forces the written segments to disk every flush interval, committing all
+ * records appended since in one go. A segment is deleted once every message
+ * enqueued in it, and in the segments before, has been acknowledged.
+ *
+ * When opened the journal reads all the segments, copies the messages
+ * without acknowledgement into a fresh segment and deletes the old ones.
+ * The recovered messages are then sent again, so a message may be delivered
+ * twice but is never lost.
+ *
+ * Record layout: length, crc32 of the body, then the body made of the type,
+ * the id and for enqueued messages the username, token and payload. A zero
+ * length marks the end of a segment, a bad checksum a torn write.
+ *
+ * @author aanal
+ *
+ */
+public class OutboxJournal implements Closeable {
+
+    private static final byte ENQUEUED = 1;
+
+    private static final byte SENT = 2;
+
+    private static final byte ABANDONED = 3;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final String PREFIX = "outbox-";
+
+    private static final String SUFFIX = ".journal";
+
+    /**
+     * The default size of a segment file in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default time in milli seconds between two forces to disk
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 10;
+
+    private Logger logger = LogManager.getLogger(OutboxJournal.class);
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    /**
+     * The segments still holding messages without acknowledgement, by
+     * sequence, the last one is appended to
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    private Segment current;
+
+    /**
+     * The messages read from the journal when opened, until taken
+     */
+    private List<FirebaseMessage> recovered;
+
+    private final ScheduledExecutorService flusher;
+
+    private final CRC32 crc = new CRC32();
+
+    private boolean closed;
+
+    private final AtomicLong appended = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * A single memory-mapped segment file
+     */
+    private static class Segment {
+
+        private final long sequence;
+
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The number of enqueued messages in this segment not acknowledged
+         */
+        private int live;
+
+        /**
+         * The number of enqueued messages, used to number them
+         */
+        private int count;
+
+        /**
+         * Set when written to, cleared by the flusher
+         */
+        private volatile boolean dirty;
+
+        private Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens the journal in the directory, recovering any messages without
+     * acknowledgement
+     *
+     * @param directory
+     *            the directory holding the segments, created if missing
+     * @param segmentSize
+     *            the size of a segment file in bytes
+     * @param flushInterval
+     *            the time in milli seconds between two forces to disk
+     * @throws IOException
+     *             if the journal could not be read or created
+     */
+    public OutboxJournal(File directory, int segmentSize, long flushInterval) throws IOException {
+        if (segmentSize < 1024 || flushInterval <= 0) {
+            throw new IllegalArgumentException("Invalid journal configuration");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        recover();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "firebase-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the messages recovered when opening the journal, they keep their
+     * ids and must not be recorded as enqueued again
+     *
+     * @return the messages in the order they were enqueued
+     */
+    public synchronized List<FirebaseMessage> takeRecovered() {
+        List<FirebaseMessage> messages = recovered;
+        recovered = Collections.emptyList();
+        return messages;
+    }
+
+    /**
+     * Records the message as enqueued and gives it its id
+     *
+     * @param message
+     *            the message about to be queued
+     * @return false if the message could not be recorded
+     */
+    public boolean enqueued(FirebaseMessage message) {
+        byte[] username = encode(message.getUsername());
+        byte[] token = encode(message.getRecipientToken());
+        byte[] payload = encode(message.getPayload() == null ? null : message.getPayload()
+                .toString());
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + size(username) + size(token) + size(payload));
+        body.put(ENQUEUED)
+                .putLong(0);
+        put(body, username);
+        put(body, token);
+        put(body, payload);
+        synchronized (this) {
+            try {
+                Segment segment = reserve(body.capacity());
+                long id = (segment.sequence << 32) | ++segment.count;
+                body.putLong(1, id);
+                write(segment, body.array());
+                segment.live++;
+                message.setId(id);
+                return true;
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                logger.error("Could not journal the message for " + message.getUsername(), e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Records that the message was delivered or failed for good
+     */
+    public void sent(Message message) {
+        acknowledge(message, SENT);
+    }
+
+    /**
+     * Records that the message was given up on
+     */
+    public void abandoned(Message message) {
+        acknowledge(message, ABANDONED);
+    }
+
+    /**
+     * Forces all written segments to disk
+     */
+    public void flush() {
+        List<Segment> dirty = new ArrayList<Segment>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (Segment segment : dirty) {
+            // a concurrent append sets the flag again and is forced next time
+            segment.buffer.force();
+        }
+        if (!dirty.isEmpty()) {
+            flushes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of segment files in use
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of messages enqueued and not acknowledged
+     */
+    public synchronized long getPending() {
+        long pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.live;
+        }
+        return pending;
+    }
+
+    /**
+     * Converts the statistics into json
+     *
+     * @return the segments, pending messages, appended records, group commits
+     *         and failed writes
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("segments", getSegmentCount());
+        obj.put("pending", getPending());
+        obj.put("appended", appended.get());
+        obj.put("flushes", flushes.get());
+        obj.put("failures", failures.get());
+        return obj;
+    }
+
+    /**
+     * Forces the journal to disk and stops the flusher, the segments are kept
+     * for the next start
+     */
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+        synchronized (this) {
+            closed = true;
+        }
+    }
+
+    private void acknowledge(Message message, byte type) {
+        long id = message.getId();
+        if (id == 0) {
+            return;
+        }
+        byte[] body = ByteBuffer.allocate(9)
+                .put(type)
+                .putLong(id)
+                .array();
+        synchronized (this) {
+            try {
+                write(reserve(body.length), body);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                logger.error("Could not journal the acknowledgement of " + id, e);
+                return;
+            }
+            // acknowledged once only
+            message.setId(0);
+            Segment segment = segments.get(id >>> 32);
+            if (segment != null && segment.live > 0) {
+                segment.live--;
+                reclaim();
+            }
+        }
+    }
+
+    /**
+     * Finds space for a record, starting a new segment if the current one is
+     * full
+     */
+    private Segment reserve(int bodySize) throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+        if (HEADER_SIZE + bodySize > segmentSize - HEADER_SIZE) {
+            throw new IOException("The record of " + bodySize + " bytes does not fit into a segment");
+        }
+        if (current.buffer.position() + HEADER_SIZE + bodySize > segmentSize - HEADER_SIZE) {
+            current = createSegment(current.sequence + 1);
+            reclaim();
+        }
+        return current;
+    }
+
+    /**
+     * Writes the body first and the length last, so a reader never sees a
+     * length without its record
+     */
+    private void write(Segment segment, byte[] body) {
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        crc.reset();
+        crc.update(body, 0, body.length);
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, body.length);
+        segment.dirty = true;
+        appended.incrementAndGet();
+    }
+
+    /**
+     * Deletes the oldest segments as long as all their messages have been
+     * acknowledged. Acknowledgements only refer to the same or older
+     * segments, so none is lost this way.
+     */
+    private void reclaim() {
+        Iterator<Segment> iterator = segments.values()
+                .iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == current || segment.live > 0) {
+                return;
+            }
+            iterator.remove();
+            if (!segment.file.delete()) {
+                logger.warn("Could not delete the journal segment " + segment.file);
+            }
+        }
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            Segment segment = new Segment(sequence, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segments.put(sequence, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Reads all the segments, then starts a new segment with the messages
+     * without acknowledgement and removes the old ones
+     */
+    private synchronized void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        Arrays.sort(files);
+        Map<Long, FirebaseMessage> pending = new LinkedHashMap<Long, FirebaseMessage>();
+        long lastSequence = 0;
+        for (File file : files) {
+            lastSequence = Math.max(lastSequence, sequenceOf(file));
+            read(file, pending);
+        }
+
+        current = createSegment(lastSequence + 1);
+        recovered = new ArrayList<FirebaseMessage>(pending.size());
+        for (FirebaseMessage message : pending.values()) {
+            if (enqueued(message)) {
+                recovered.add(message);
+            }
+        }
+        current.buffer.force();
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.warn("Could not delete the journal segment " + file);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            logger.warn("Recovered " + recovered.size() + " messages from the journal");
+        }
+    }
+
+    private void read(File file, Map<Long, FirebaseMessage> pending) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 checksum = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.get(body);
+                checksum.reset();
+                checksum.update(body, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    logger.warn("Ignoring the torn end of the journal segment " + file);
+                    break;
+                }
+                try {
+                    readRecord(ByteBuffer.wrap(body), pending);
+                } catch (JSONException e) {
+                    logger.error("Skipping a corrupt record in the journal segment " + file);
+                } catch (BufferUnderflowException e) {
+                    logger.error("Skipping a corrupt record in the journal segment " + file);
+                }
+            }
+        }
+    }
+
+    private void readRecord(ByteBuffer body, Map<Long, FirebaseMessage> pending) throws JSONException {
+        byte type = body.get();
+        long id = body.getLong();
+        if (type == ENQUEUED) {
+            String username = decode(body);
+            String token = decode(body);
+            String payload = decode(body);
+            pending.put(id, new FirebaseMessage(username, payload == null ? null : new JSONObject(payload), token));
+        } else {
+            pending.remove(id);
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The size of the encoded value including its length
+     */
+    private static int size(byte[] value) {
+        return 4 + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Puts the length, -1 for null, followed by the bytes
+     */
+    private static void put(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length)
+                    .put(value);
+        }
+    }
+
+    private static String decode(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.firebase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * A HTTP transport keeping a pool of keep-alive connections, so requests to
+ * the same server reuse the TCP and TLS connection instead of opening a new
+ * one each time. A non-blocking client with the same limits serves the
+ * asynchronous requests, its idle connections are closed by a background
+ * thread as the client does not do it by itself.
+ * 
+ * @author aanal
+ *
+ */
+public class PooledHttpTransport implements Closeable {
+
+    /**
+     * Idle connections are checked before being reused after this time
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient httpClient;
+
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+    private CloseableHttpAsyncClient httpAsyncClient;
+
+    /**
+     * Closes the expired and idle connections of the non-blocking client
+     */
+    private ScheduledExecutorService asyncEvictor;
+
+    /**
+     * Creates the connection pool
+     * 
+     * @param maxTotal
+     *            the maximum number of connections in the pool
+     * @param maxPerRoute
+     *            the maximum number of connections to a single server
+     * @param connectTimeout
+     *            the time in milli seconds to establish a connection, also
+     *            used as time to wait for a connection from the pool
+     * @param readTimeout
+     *            the time in milli seconds to wait for data
+     * @param idleTimeout
+     *            the time in milli seconds after which idle connections are
+     *            closed
+     */
+    public PooledHttpTransport(int maxTotal, int maxPerRoute, int connectTimeout, int readTimeout,
+            long idleTimeout) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+
+        try {
+            asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Could not create the non-blocking client", e);
+        }
+        asyncConnectionManager.setMaxTotal(maxTotal);
+        asyncConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        // started by the request factory on the first request
+        httpAsyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        asyncEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-async-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        asyncEvictor.scheduleWithFixedDelay(() -> {
+            asyncConnectionManager.closeExpiredConnections();
+            asyncConnectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a request factory for a rest template using this pool
+     */
+    public ClientHttpRequestFactory createRequestFactory() {
+        return new HttpComponentsClientHttpRequestFactory(httpClient);
+    }
+
+    /**
+     * @return a request factory for an async rest template using the
+     *         non-blocking client
+     */
+    public AsyncClientHttpRequestFactory createAsyncRequestFactory() {
+        return new HttpComponentsAsyncClientHttpRequestFactory(httpClient, httpAsyncClient);
+    }
+
+    /**
+     * @return the statistics of the whole pool
+     */
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return the statistics of the connections of the non-blocking client
+     */
+    public PoolStats getAsyncTotalStats() {
+        return asyncConnectionManager.getTotalStats();
+    }
+
+    /**
+     * Converts the pool statistics into json
+     * 
+     * @return the leased, available and pending connections with the limit,
+     *         and those of the non-blocking client
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        PoolStats stats = connectionManager.getTotalStats();
+        JSONObject obj = new JSONObject();
+        obj.put("leased", stats.getLeased());
+        obj.put("available", stats.getAvailable());
+        obj.put("pending", stats.getPending());
+        obj.put("max", stats.getMax());
+        obj.put("maxPerRoute", connectionManager.getDefaultMaxPerRoute());
+        obj.put("routes", connectionManager.getRoutes()
+                .size());
+        PoolStats asyncStats = asyncConnectionManager.getTotalStats();
+        JSONObject async = new JSONObject();
+        async.put("leased", asyncStats.getLeased());
+        async.put("available", asyncStats.getAvailable());
+        async.put("pending", asyncStats.getPending());
+        obj.put("async", async);
+        return obj;
+    }
+
+    @Override
+    public void close() throws IOException {
+        asyncEvictor.shutdownNow();
+        try {
+            httpAsyncClient.close();
+        } finally {
+            httpClient.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.firebase;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Schedules messages the FCM server could not handle for another attempt.
+ * The delay grows exponentially with every attempt up to a cap, is jittered
+ * so retries do not arrive at the server together, and is never shorter than
+ * the Retry-After sent by the server. Messages are abandoned after the
+ * maximum number of attempts.
+ * 
+ * @author aanal
+ *
+ */
+public class RetryScheduler {
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private Logger logger = LogManager.getLogger(RetryScheduler.class);
+
+    /**
+     * The delay of the first retry in milli seconds
+     */
+    private long baseDelay;
+
+    /**
+     * The maximum delay of any retry in milli seconds
+     */
+    private long maxDelay;
+
+    /**
+     * The number of retries after which a message is abandoned
+     */
+    private int maxAttempts;
+
+    private ScheduledExecutorService executor;
+
+    private AtomicLong retriesScheduled = new AtomicLong();
+
+    private AtomicLong retriesSucceeded = new AtomicLong();
+
+    private AtomicLong messagesAbandoned = new AtomicLong();
+
+    public RetryScheduler(long baseDelay, long maxDelay, int maxAttempts) {
+        if (baseDelay <= 0 || maxDelay < baseDelay || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid retry configuration");
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "firebase-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends the message again through the service after the backoff delay
+     * 
+     * @param message
+     *            the message that could not be delivered
+     * @param retryAfter
+     *            the minimum delay requested by the server in milli seconds,
+     *            zero if none
+     * @param service
+     *            the service to send the message with
+     * @return false if the message was abandoned instead
+     */
+    public boolean schedule(final Message message, long retryAfter, final MessagingService service) {
+        if (message.getAttempts() >= maxAttempts) {
+            messagesAbandoned.incrementAndGet();
+            logger.error("Giving up on the message for " + message.getUsername() + " after " + message.getAttempts()
+                    + " retries");
+            return false;
+        }
+        int attempt = message.nextAttempt();
+        long delay = Math.max(backoff(attempt), retryAfter);
+        retriesScheduled.incrementAndGet();
+        executor.schedule(() -> {
+            try {
+                service.sendMessage(message);
+            } catch (JSONException e) {
+                logger.error("Could not retry the message", e);
+            } catch (RuntimeException e) {
+                logger.error("Could not retry the message", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Records that the message was delivered, counted when it took retries
+     */
+    public void delivered(Message message) {
+        if (message.getAttempts() > 0) {
+            retriesSucceeded.incrementAndGet();
+        }
+    }
+
+    /**
+     * The delay of the attempt, exponential up to the maximum delay with
+     * jitter taking away up to half of it
+     * 
+     * @param attempt
+     *            the attempt starting at 1
+     * @return the delay in milli seconds
+     */
+    long backoff(int attempt) {
+        long delay = maxDelay;
+        if (attempt < 63 && baseDelay <= (maxDelay >> Math.min(attempt - 1, 62))) {
+            delay = Math.min(maxDelay, baseDelay << (attempt - 1));
+        }
+        return delay / 2 + ThreadLocalRandom.current()
+                .nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Reads the Retry-After header, either in seconds or as a date
+     * 
+     * @param headers
+     *            the response headers, may be null
+     * @return the requested delay in milli seconds, zero if none
+     */
+    public static long retryAfter(HttpHeaders headers) {
+        if (headers == null) {
+            return 0;
+        }
+        String value = headers.getFirst(RETRY_AFTER);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, headers.getFirstDate(RETRY_AFTER) - new Date().getTime());
+            } catch (IllegalArgumentException ex) {
+                return 0;
+            }
+        }
+    }
+
+    public long getRetriesScheduled() {
+        return retriesScheduled.get();
+    }
+
+    public long getRetriesSucceeded() {
+        return retriesSucceeded.get();
+    }
+
+    public long getMessagesAbandoned() {
+        return messagesAbandoned.get();
+    }
+
+    /**
+     * Converts the counters into json
+     * 
+     * @return the scheduled, succeeded and abandoned retries
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("scheduled", retriesScheduled.get());
+        obj.put("succeeded", retriesSucceeded.get());
+        obj.put("abandoned", messagesAbandoned.get());
+        return obj;
+    }
+
+    /**
+     * Stops scheduling, pending retries are dropped
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
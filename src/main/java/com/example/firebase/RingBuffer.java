@@ -0,0 +1,414 @@
+package com.example.firebase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, preallocated queue for handing messages from many producers
+ * over to the workers. Producers and consumers claim slots with a single
+ * compare and set, every slot carries a sequence telling whether it is free
+ * or filled, so no lock is taken and nothing is allocated while enqueuing.
+ *
+ * How a consumer waits for an empty buffer is decided by the
+ * {@link WaitStrategy}, what a producer does with a full buffer by the
+ * {@link FullPolicy}.
+ *
+ * @author aanal
+ *
+ * @param <E>
+ *            the type of the elements
+ */
+public class RingBuffer<E> {
+
+    /**
+     * How a thread waits for the buffer to change
+     *
+     * @author aanal
+     *
+     */
+    public enum WaitStrategy {
+        /**
+         * Parks on a condition and is woken up by the other side, lowest cpu
+         * usage at the cost of latency
+         */
+        BLOCKING,
+        /**
+         * Spins for a while then yields the cpu between checks
+         */
+        YIELDING,
+        /**
+         * Keeps checking, lowest latency but occupies a core per waiting
+         * thread
+         */
+        BUSY_SPIN
+    }
+
+    /**
+     * What happens when a producer finds the buffer full
+     *
+     * @author aanal
+     *
+     */
+    public enum FullPolicy {
+        /**
+         * The element is rejected immediately
+         */
+        REJECT,
+        /**
+         * The producer waits up to the timeout for space, then rejects
+         */
+        BLOCK,
+        /**
+         * The oldest element is dropped to make space
+         */
+        DROP_OLDEST
+    }
+
+    private static final int SPINS = 100;
+
+    private final Object[] buffer;
+
+    /**
+     * For slot i, sequence == position means free for the producer at that
+     * position, sequence == position + 1 means filled for the consumer
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    /**
+     * The next position to be filled
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to be consumed
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final WaitStrategy waitStrategy;
+
+    private final FullPolicy fullPolicy;
+
+    private final long blockTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * The threads parked on a condition, only when there are any the other
+     * side takes the lock to wake them up. A thread counts itself and checks
+     * the buffer again while holding the lock, and stops counting itself
+     * once awake, so a change made before it parked is either seen by the
+     * check or followed by a signal.
+     */
+    private final AtomicInteger consumersWaiting = new AtomicInteger();
+
+    private final AtomicInteger producersWaiting = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Consumer<? super E> dropListener;
+
+    /**
+     * Creates the buffer
+     *
+     * @param capacity
+     *            the number of elements, rounded up to a power of two of at
+     *            least two, a single slot cannot tell full from empty
+     * @param waitStrategy
+     *            how consumers, and blocking producers, wait
+     * @param fullPolicy
+     *            what happens with elements offered to a full buffer
+     * @param blockTimeout
+     *            the time a producer waits with {@link FullPolicy#BLOCK}
+     * @param unit
+     *            the unit of the timeout
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy, FullPolicy fullPolicy, long blockTimeout,
+            TimeUnit unit) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.fullPolicy = fullPolicy;
+        this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+    }
+
+    /**
+     * Sets a listener called with every element dropped by
+     * {@link FullPolicy#DROP_OLDEST}
+     */
+    public void setDropListener(Consumer<? super E> dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Adds the element as per the full policy
+     *
+     * @param element
+     *            the element to add
+     * @return false if the element was rejected
+     */
+    public boolean offer(E element) {
+        if (tryOffer(element)) {
+            return true;
+        }
+        switch (fullPolicy) {
+        case DROP_OLDEST:
+            while (!tryOffer(element)) {
+                E oldest = tryPoll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    Consumer<? super E> listener = dropListener;
+                    if (listener != null) {
+                        listener.accept(oldest);
+                    }
+                }
+            }
+            return true;
+        case BLOCK:
+            try {
+                return offer(element, blockTimeoutNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                        .interrupt();
+                return false;
+            }
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Adds the element, waiting for space regardless of the full policy
+     *
+     * @param element
+     *            the element to add
+     * @throws InterruptedException
+     */
+    public void put(E element) throws InterruptedException {
+        offer(element, Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the oldest element, waiting as per the wait strategy
+     *
+     * @return the element
+     * @throws InterruptedException
+     */
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the oldest element if there is any
+     *
+     * @return the element or null if empty
+     */
+    public E poll() {
+        return tryPoll();
+    }
+
+    /**
+     * Looks at the oldest element without taking it. Meant for the single
+     * consumer, with other threads taking elements the result may already be
+     * gone.
+     *
+     * @return the element or null if empty
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return (E) buffer[index];
+    }
+
+    /**
+     * Takes the oldest element, waiting up to the timeout
+     *
+     * @return the element or null if the time elapsed
+     * @throws InterruptedException
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(unit.toNanos(timeout));
+    }
+
+    /**
+     * @return the approximate number of elements
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, buffer.length));
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return the number of elements dropped to make space
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private boolean tryOffer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = element;
+                    sequences.set(index, position + 1);
+                    if (consumersWaiting.get() > 0) {
+                        signal(notEmpty);
+                    }
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element of the previous round
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E tryPoll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    if (producersWaiting.get() > 0) {
+                        signal(notFull);
+                    }
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                // nothing published in the slot yet
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    private boolean offer(E element, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int spins = 0;
+        while (!tryOffer(element)) {
+            long remaining = remaining(deadline, timeoutNanos);
+            if (remaining <= 0) {
+                return false;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                lock.lockInterruptibly();
+                producersWaiting.incrementAndGet();
+                try {
+                    if (size() >= buffer.length) {
+                        notFull.awaitNanos(remaining);
+                    }
+                } finally {
+                    producersWaiting.decrementAndGet();
+                    lock.unlock();
+                }
+            } else {
+                spins = idle(spins);
+            }
+        }
+        return true;
+    }
+
+    private E poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int spins = 0;
+        E element;
+        while ((element = tryPoll()) == null) {
+            long remaining = remaining(deadline, timeoutNanos);
+            if (remaining <= 0) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                lock.lockInterruptibly();
+                consumersWaiting.incrementAndGet();
+                try {
+                    if (size() == 0) {
+                        notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    consumersWaiting.decrementAndGet();
+                    lock.unlock();
+                }
+            } else {
+                spins = idle(spins);
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Waits once as per the spinning strategies
+     *
+     * @return the number of spins so far
+     */
+    private int idle(int spins) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waitStrategy == WaitStrategy.YIELDING && spins >= SPINS) {
+            Thread.yield();
+            return spins;
+        }
+        return spins + 1;
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The time left until the deadline, waits without timeout never end
+     */
+    private static long remaining(long deadline, long timeoutNanos) {
+        if (timeoutNanos == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return deadline - System.nanoTime();
+    }
+}
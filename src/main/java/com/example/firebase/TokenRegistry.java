@@ -0,0 +1,42 @@
+package com.example.firebase;
+
+/**
+ * Keeps the push tokens of the users up to date with what the FCM server
+ * reports about them
+ * 
+ * @author aanal
+ *
+ */
+public interface TokenRegistry {
+
+    /**
+     * The token is no longer valid, it is removed from its user and
+     * remembered as dead
+     * 
+     * @param username
+     *            the user the message was sent to
+     * @param token
+     *            the token the server rejected
+     */
+    void removeToken(String username, String token);
+
+    /**
+     * The server returned a canonical token to be used instead of the one the
+     * message was sent to
+     * 
+     * @param username
+     *            the user the message was sent to
+     * @param canonicalToken
+     *            the token returned by the server
+     * @param token
+     *            the token the message was sent to
+     */
+    void replaceToken(String username, String canonicalToken, String token);
+
+    /**
+     * @param token
+     *            the token to check
+     * @return true if the server is known to reject the token
+     */
+    boolean isDead(String token);
+}
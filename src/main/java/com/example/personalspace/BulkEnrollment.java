@@ -0,0 +1,230 @@
+package com.example.personalspace;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Adds a cohort of users to a session from a single json array, in the
+ * format of the request adding one user:
+ *
+ * <pre>
+ * [{"name": "alice", "pushToken": "...", "pref": {"distance": 1.5}},
+ *  {"name": "bob", "pushToken": "...", "pref": {"distance": 2}}]
+ * </pre>
+ *
+ * The array is read with a streaming parser, one user at a time, so only the
+ * user being read is held in memory however large the cohort. Each user is
+ * added on its own, as by the single request: a user that is invalid or
+ * whose name is taken is reported with its position in the array, and the
+ * others are added regardless. A body that stops being json stops the
+ * enrollment there, the users before it stay added.
+ *
+ * @author aanal
+ *
+ */
+public class BulkEnrollment {
+
+    /**
+     * The number of failed users reported by position, the others are only
+     * counted
+     */
+    public static final int MAX_REPORTED_FAILURES = 100;
+
+    private final JsonFactory factory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private final AtomicLong enrollments = new AtomicLong();
+
+    private final AtomicLong added = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * The outcome of an enrollment
+     *
+     * @author aanal
+     *
+     */
+    @Getter
+    public static class Result {
+
+        private int added;
+
+        private int duplicates;
+
+        private int invalid;
+
+        /**
+         * The first failed users, by position in the array
+         */
+        private final JSONArray failures = new JSONArray();
+
+        /**
+         * Why the body could not be read to the end, null if it was
+         */
+        private String error;
+
+        private void fail(int index, String name, String reason) throws JSONException {
+            if (failures.length() < MAX_REPORTED_FAILURES) {
+                JSONObject failure = new JSONObject();
+                failure.put("index", index);
+                if (name != null) {
+                    failure.put("name", name);
+                }
+                failure.put("reason", reason);
+                failures.put(failure);
+            }
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("added", added);
+            obj.put("duplicates", duplicates);
+            obj.put("invalid", invalid);
+            obj.put("failures", failures);
+            if (error != null) {
+                obj.put("error", error);
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Adds the users of the array to the session
+     *
+     * @param session
+     *            the session the users join
+     * @param in
+     *            the array of users, it is not closed
+     * @param onAdded
+     *            called with every user added
+     * @return the numbers of users added and failed
+     * @throws IOException
+     *             if the body could not be read
+     */
+    public Result enroll(Session session, InputStream in, Consumer<User> onAdded) throws IOException {
+        Result result = new Result();
+        try (JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                result.error = "The body must be an array of users";
+                return result;
+            }
+            JsonToken token;
+            for (int index = 0; (token = parser.nextToken()) != JsonToken.END_ARRAY; index++) {
+                if (token == null) {
+                    result.error = "Unexpected end of the array";
+                    break;
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    result.invalid++;
+                    result.fail(index, null, "not an object");
+                    continue;
+                }
+                User user = new User();
+                String reason = readUser(parser, user);
+                if (reason != null) {
+                    result.invalid++;
+                    result.fail(index, user.getName(), reason);
+                } else if (!session.addUser(user)) {
+                    result.duplicates++;
+                    result.fail(index, user.getName(), "already added");
+                } else {
+                    result.added++;
+                    onAdded.accept(user);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            result.error = e.getOriginalMessage();
+        } finally {
+            enrollments.incrementAndGet();
+            added.addAndGet(result.added);
+            failed.addAndGet(result.duplicates + result.invalid);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the fields of a user up to the end of its object
+     *
+     * @return why the user is invalid, null if it is valid
+     */
+    private static String readUser(JsonParser parser, User user) throws IOException {
+        String reason = null;
+        boolean hasToken = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("name".equals(field) && value == JsonToken.VALUE_STRING) {
+                user.setName(parser.getText());
+            } else if ("pushToken".equals(field)
+                    && (value == JsonToken.VALUE_STRING || value == JsonToken.VALUE_NULL)) {
+                user.setPushToken(value == JsonToken.VALUE_NULL ? null : parser.getText());
+                hasToken = true;
+            } else if ("pref".equals(field) && value == JsonToken.START_OBJECT) {
+                Preference pref = readPreference(parser);
+                if (pref == null) {
+                    reason = "pref must have a non negative distance";
+                }
+                user.setPref(pref);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (user.getName() == null || user.getName()
+                .isEmpty()) {
+            return "name missing";
+        }
+        if (!hasToken) {
+            return "pushToken missing";
+        }
+        if (reason != null) {
+            return reason;
+        }
+        if (user.getPref() == null) {
+            return "pref missing";
+        }
+        return null;
+    }
+
+    /**
+     * @return the preference, null if it has no valid distance
+     */
+    private static Preference readPreference(JsonParser parser) throws IOException {
+        Preference pref = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("distance".equals(field) && value.isNumeric() && parser.getDoubleValue() >= 0) {
+                pref = new Preference();
+                pref.setDistance(parser.getDoubleValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return pref;
+    }
+
+    /**
+     * Converts the statistics into json
+     *
+     * @return the enrollments, the users added and failed
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("enrollments", enrollments.get());
+        obj.put("added", added.get());
+        obj.put("failed", failed.get());
+        return obj;
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.personalspace;
+
+/**
+ * The serialized body of a response at a revision of its session, so polls
+ * between two changes are answered with the same bytes instead of writing
+ * the session again. Only the latest revision is kept, a body written for an
+ * older revision, by a poll that raced a change, never replaces it.
+ *
+ * @author aanal
+ *
+ */
+public class CachedBody {
+
+    private static final class Entry {
+
+        private final long revision;
+
+        private final byte[] bytes;
+
+        private Entry(long revision, byte[] bytes) {
+            this.revision = revision;
+            this.bytes = bytes;
+        }
+    }
+
+    private volatile Entry entry;
+
+    /**
+     * @return the body written at the revision, null if it was not kept
+     */
+    public byte[] get(long revision) {
+        Entry current = entry;
+        return current != null && current.revision == revision ? current.bytes : null;
+    }
+
+    /**
+     * Keeps the body written at the revision, unless one of a later revision
+     * is kept already
+     */
+    public synchronized void put(long revision, byte[] bytes) {
+        Entry current = entry;
+        if (current == null || current.revision <= revision) {
+            entry = new Entry(revision, bytes);
+        }
+    }
+}
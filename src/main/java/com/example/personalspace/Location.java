@@ -0,0 +1,46 @@
+package com.example.personalspace;
+
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * Where a user stands, in the same unit as the distance of the preference.
+ * Replaced as a whole when the user moves.
+ *
+ * @author aanal
+ *
+ */
+@Data
+public class Location {
+
+    private final double x;
+
+    private final double y;
+
+    /**
+     * @return the distance between the two locations
+     */
+    public double distanceTo(double otherX, double otherY) {
+        double dx = x - otherX;
+        double dy = y - otherY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Reads the location from a request
+     *
+     * @throws IllegalArgumentException
+     *             if x or y is missing or not a finite number
+     */
+    public static Location fromMap(Map<String, Object> map) {
+        if (!(map.get("x") instanceof Number) || !(map.get("y") instanceof Number)) {
+            throw new IllegalArgumentException("The input map is invalid");
+        }
+        double x = ((Number) map.get("x")).doubleValue();
+        double y = ((Number) map.get("y")).doubleValue();
+        if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y)) {
+            throw new IllegalArgumentException("The location is not finite");
+        }
+        return new Location(x, y);
+    }
+}
@@ -0,0 +1,496 @@
+package com.example.personalspace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Every preferred distance a user had, with the time it was set, appended to
+ * a compact series: a few bytes per change instead of an object each.
+ *
+ * The series is cut into blocks of about {@link #BLOCK_SIZE} bytes. Within a
+ * block each time is written as the difference between its gap to the
+ * previous time and the gap before, a zig zag varint of one or two bytes for
+ * changes at a steady pace, and each distance as its bits xor the previous
+ * ones, only the bytes that differ, a single byte for an unchanged distance.
+ * Distances of whole millimetres, as most are, are rather written as the
+ * varint of their change in millimetres, two or three bytes where the xor of
+ * two decimals differs in all bytes. A full block is trimmed
+ * and kept with the range of its times, so a query only decodes the blocks
+ * overlapping it.
+ *
+ * Appends and reads are synchronized, the session appends within the update
+ * of the user so the changes are in the order they were made in. The history
+ * remembers the version of the user at its last change, so the changes read
+ * back from the journal are appended once.
+ *
+ * @author aanal
+ *
+ */
+public class PreferenceHistory {
+
+    /**
+     * The size in bytes at which a block is closed
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    /**
+     * A time of ten bytes and a distance of nine at most
+     */
+    private static final int MAX_POINT_SIZE = 19;
+
+    private static final int INITIAL_SIZE = 32;
+
+    /**
+     * The first byte of a distance written in millimetres, never the first
+     * byte of a xor
+     */
+    private static final byte MILLIMETRES = (byte) 0x80;
+
+    /**
+     * The changes in millimetres written as such, in three bytes at most
+     */
+    private static final long MAX_CHANGE = 1 << 20;
+
+    private static class Block {
+
+        private byte[] data = new byte[INITIAL_SIZE];
+
+        private int length;
+
+        private int count;
+
+        private long minTime = Long.MAX_VALUE;
+
+        private long maxTime = Long.MIN_VALUE;
+
+        private boolean overlaps(long from, long to) {
+            return count > 0 && minTime <= to && maxTime >= from;
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+
+    private Block current;
+
+    /**
+     * The state of the encoder within the current block
+     */
+    private long lastTime;
+
+    private long lastDelta;
+
+    private long lastBits;
+
+    private long count;
+
+    /**
+     * The version of the user at the last change, zero if not known
+     */
+    private long version;
+
+    public PreferenceHistory() {
+        newBlock();
+    }
+
+    /**
+     * Appends a change of the preferred distance
+     *
+     * @param time
+     *            when the change was made, in milli seconds
+     * @param distance
+     *            the distance preferred from then on
+     */
+    public synchronized void append(long time, double distance) {
+        Block block = current;
+        if (block.length >= BLOCK_SIZE) {
+            block.data = Arrays.copyOf(block.data, block.length);
+            block = newBlock();
+        }
+        if (block.length + MAX_POINT_SIZE > block.data.length) {
+            block.data = Arrays.copyOf(block.data, Math.min(block.data.length * 2, BLOCK_SIZE + MAX_POINT_SIZE));
+        }
+        long bits = Double.doubleToRawLongBits(distance);
+        if (block.count == 0) {
+            // the first time of a block is written as is
+            block.length = writeVarLong(block.data, block.length, zigZag(time));
+            lastDelta = 0;
+        } else {
+            long delta = time - lastTime;
+            block.length = writeVarLong(block.data, block.length, zigZag(delta - lastDelta));
+            lastDelta = delta;
+        }
+        block.length = writeDistance(block.data, block.length, bits, lastBits);
+        lastTime = time;
+        lastBits = bits;
+        block.count++;
+        block.minTime = Math.min(block.minTime, time);
+        block.maxTime = Math.max(block.maxTime, time);
+        count++;
+    }
+
+    /**
+     * Appends a change of the preferred distance made at the version of the
+     * user
+     *
+     * @param time
+     *            when the change was made, in milli seconds
+     * @param distance
+     *            the distance preferred from then on
+     * @param version
+     *            the version the session gave the change
+     */
+    public synchronized void append(long time, double distance, long version) {
+        append(time, distance);
+        this.version = Math.max(this.version, version);
+    }
+
+    /**
+     * Appends a change read back from the journal, unless the history holds
+     * it already
+     *
+     * @param version
+     *            the version the session gave the change, zero to append it
+     *            regardless
+     * @return false if the change was older than the last one appended
+     */
+    synchronized boolean restore(long time, double distance, long version) {
+        if (version != 0 && version <= this.version) {
+            return false;
+        }
+        append(time, distance, version);
+        return true;
+    }
+
+    private Block newBlock() {
+        current = new Block();
+        blocks.add(current);
+        lastTime = 0;
+        lastDelta = 0;
+        lastBits = 0;
+        return current;
+    }
+
+    /**
+     * Reads the changes within the range of time
+     *
+     * @param from
+     *            the earliest time, inclusive
+     * @param to
+     *            the latest time, inclusive
+     * @return the changes found, ordered by time
+     */
+    public synchronized Series range(long from, long to) {
+        Series series = new Series(16);
+        for (Block block : blocks) {
+            if (!block.overlaps(from, to)) {
+                continue;
+            }
+            byte[] data = block.data;
+            int position = 0;
+            long time = 0;
+            long delta = 0;
+            long bits = 0;
+            long[] read = new long[1];
+            for (int i = 0; i < block.count; i++) {
+                position = readVarLong(data, position, read);
+                if (i == 0) {
+                    time = unZigZag(read[0]);
+                } else {
+                    delta += unZigZag(read[0]);
+                    time += delta;
+                }
+                position = readDistance(data, position, bits, read);
+                bits = read[0];
+                if (time >= from && time <= to) {
+                    series.add(time, Double.longBitsToDouble(bits));
+                }
+            }
+        }
+        series.sort();
+        return series;
+    }
+
+    /**
+     * Reads every change along with the version of the last one, at once
+     *
+     * @return the changes, ordered by time
+     */
+    public synchronized Series all() {
+        Series series = range(Long.MIN_VALUE, Long.MAX_VALUE);
+        series.version = version;
+        return series;
+    }
+
+    /**
+     * Reduces the changes within the range of time to one bucket per
+     * interval, starting from the beginning of the range. Only the intervals
+     * with changes have a bucket.
+     *
+     * @param from
+     *            the earliest time, inclusive
+     * @param to
+     *            the latest time, inclusive
+     * @param interval
+     *            the length of a bucket in milli seconds
+     * @return the buckets, ordered by time
+     */
+    public Buckets downsample(long from, long to, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        Series series = range(from, to);
+        Buckets buckets = new Buckets();
+        for (int i = 0; i < series.size; i++) {
+            long start = from + (series.times[i] - from) / interval * interval;
+            buckets.add(start, series.distances[i]);
+        }
+        buckets.trim();
+        return buckets;
+    }
+
+    /**
+     * @return the number of changes appended
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes of the encoded changes, without the
+     *         headers of the blocks
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (Block block : blocks) {
+            bytes += block.data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Changes of the preferred distance, one array per field
+     *
+     * @author aanal
+     *
+     */
+    public static class Series {
+
+        private long[] times;
+
+        private double[] distances;
+
+        private int size;
+
+        private long version;
+
+        Series(int capacity) {
+            times = new long[capacity];
+            distances = new double[capacity];
+        }
+
+        private void add(long time, double distance) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            times[size] = time;
+            distances[size] = distance;
+            size++;
+        }
+
+        /**
+         * Orders the changes by time, the clock may have gone back. They are
+         * almost always in order already, which an insertion sort passes
+         * through once.
+         */
+        private void sort() {
+            for (int i = 1; i < size; i++) {
+                long time = times[i];
+                double distance = distances[i];
+                int j = i - 1;
+                while (j >= 0 && times[j] > time) {
+                    times[j + 1] = times[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                times[j + 1] = time;
+                distances[j + 1] = distance;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTime(int i) {
+            return times[i];
+        }
+
+        public double getDistance(int i) {
+            return distances[i];
+        }
+
+        /**
+         * @return the version of the user at the last change, when read with
+         *         {@link PreferenceHistory#all()}, zero otherwise
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * The changes of the preferred distance by interval, with the smallest,
+     * largest and last distance of each interval
+     *
+     * @author aanal
+     *
+     */
+    @Getter
+    public static class Buckets {
+
+        private long[] times = new long[16];
+
+        private double[] min = new double[16];
+
+        private double[] max = new double[16];
+
+        private double[] last = new double[16];
+
+        private int[] counts = new int[16];
+
+        private int size;
+
+        private void add(long time, double distance) {
+            if (size > 0 && times[size - 1] == time) {
+                int i = size - 1;
+                min[i] = Math.min(min[i], distance);
+                max[i] = Math.max(max[i], distance);
+                last[i] = distance;
+                counts[i]++;
+                return;
+            }
+            if (size == times.length) {
+                grow(size * 2);
+            }
+            times[size] = time;
+            min[size] = distance;
+            max[size] = distance;
+            last[size] = distance;
+            counts[size] = 1;
+            size++;
+        }
+
+        private void trim() {
+            grow(size);
+        }
+
+        private void grow(int capacity) {
+            times = Arrays.copyOf(times, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            last = Arrays.copyOf(last, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarLong(byte[] data, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarLong(byte[] data, int position, long[] value) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        value[0] = result;
+        return position;
+    }
+
+    /**
+     * Writes the distance as its change in millimetres, after the byte
+     * {@link #MILLIMETRES}, when it is a whole number of millimetres and the
+     * change is small, else as its xor with the previous distance
+     */
+    private static int writeDistance(byte[] data, int position, long bits, long lastBits) {
+        if (bits == lastBits) {
+            data[position++] = 0;
+            return position;
+        }
+        double distance = Double.longBitsToDouble(bits);
+        long millimetres = Math.round(distance * 1000);
+        long change = millimetres - Math.round(Double.longBitsToDouble(lastBits) * 1000);
+        if (Double.doubleToRawLongBits(millimetres / 1000.0) == bits && change > -MAX_CHANGE && change < MAX_CHANGE) {
+            data[position++] = MILLIMETRES;
+            return writeVarLong(data, position, zigZag(change));
+        }
+        return writeXor(data, position, bits ^ lastBits);
+    }
+
+    /**
+     * Reads a distance written by {@link #writeDistance}
+     */
+    private static int readDistance(byte[] data, int position, long lastBits, long[] bits) {
+        if (data[position] != MILLIMETRES) {
+            position = readXor(data, position, bits);
+            bits[0] ^= lastBits;
+            return position;
+        }
+        position = readVarLong(data, position + 1, bits);
+        long millimetres = Math.round(Double.longBitsToDouble(lastBits) * 1000) + unZigZag(bits[0]);
+        bits[0] = Double.doubleToRawLongBits(millimetres / 1000.0);
+        return position;
+    }
+
+    /**
+     * Writes the bytes of the xor between the leading and trailing zero
+     * bytes, after a byte of the number of trailing zero bytes and the number
+     * of bytes written. Zero is the single byte 0.
+     */
+    private static int writeXor(byte[] data, int position, long xor) {
+        if (xor == 0) {
+            data[position++] = 0;
+            return position;
+        }
+        int trailing = Long.numberOfTrailingZeros(xor) >>> 3;
+        int bytes = 8 - (Long.numberOfLeadingZeros(xor) >>> 3) - trailing;
+        data[position++] = (byte) (trailing << 4 | bytes);
+        xor >>>= trailing << 3;
+        for (int i = 0; i < bytes; i++) {
+            data[position++] = (byte) xor;
+            xor >>>= 8;
+        }
+        return position;
+    }
+
+    private static int readXor(byte[] data, int position, long[] xor) {
+        int header = data[position++];
+        long result = 0;
+        int trailing = header >>> 4;
+        int bytes = header & 0xF;
+        for (int i = 0; i < bytes; i++) {
+            result |= (data[position++] & 0xFFL) << (i << 3);
+        }
+        xor[0] = result << (trailing << 3);
+        return position;
+    }
+}
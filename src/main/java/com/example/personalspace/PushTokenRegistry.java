@@ -0,0 +1,145 @@
+package com.example.personalspace;
+
+import com.example.firebase.TokenRegistry;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Applies the token updates of the FCM server to the users of the sessions.
+ * The users are indexed by their push token, so the owner of a token is
+ * found without going through every user.
+ * 
+ * Removed tokens are remembered in a bounded cache, the oldest are forgotten
+ * first, so messages to them are not sent at all.
+ * 
+ * @author aanal
+ *
+ */
+public class PushTokenRegistry implements TokenRegistry {
+
+    /**
+     * The default number of dead tokens remembered
+     */
+    public static final int DEFAULT_DEAD_TOKEN_CAPACITY = 10000;
+
+    private Logger logger = LogManager.getLogger(PushTokenRegistry.class);
+
+    /**
+     * The users by push token
+     */
+    private final Map<String, User> owners = new ConcurrentHashMap<>();
+
+    /**
+     * The dead tokens in the order they were removed, the oldest are evicted
+     */
+    private final Map<String, Boolean> deadTokens;
+
+    public PushTokenRegistry(final int deadTokenCapacity) {
+        if (deadTokenCapacity < 1) {
+            throw new IllegalArgumentException("Invalid dead token capacity: " + deadTokenCapacity);
+        }
+        deadTokens = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > deadTokenCapacity;
+            }
+        });
+    }
+
+    /**
+     * Indexes the user by its push token. A token registered again is no
+     * longer considered dead.
+     * 
+     * @param user
+     *            the user added to the session
+     */
+    public void register(User user) {
+        String token = user.getPushToken();
+        if (token == null) {
+            return;
+        }
+        owners.put(token, user);
+        deadTokens.remove(token);
+    }
+
+    /**
+     * Removes the user from the index
+     * 
+     * @param user
+     *            the user removed from the session
+     */
+    public void unregister(User user) {
+        String token = user.getPushToken();
+        if (token != null) {
+            owners.remove(token, user);
+        }
+    }
+
+    @Override
+    public void removeToken(String username, String token) {
+        if (token == null) {
+            return;
+        }
+        deadTokens.put(token, Boolean.TRUE);
+        User user = owners.get(token);
+        if (user == null || !user.getName()
+                .equals(username)) {
+            return;
+        }
+        synchronized (user) {
+            if (token.equals(user.getPushToken())) {
+                user.setPushToken(null);
+            }
+        }
+        owners.remove(token, user);
+        logger.info("Removed the push token of " + username);
+    }
+
+    @Override
+    public void replaceToken(String username, String canonicalToken, String token) {
+        if (canonicalToken == null || canonicalToken.equals(token)) {
+            return;
+        }
+        User user = owners.get(token);
+        if (user == null || !user.getName()
+                .equals(username)) {
+            return;
+        }
+        synchronized (user) {
+            if (!token.equals(user.getPushToken())) {
+                // already replaced or removed
+                return;
+            }
+            user.setPushToken(canonicalToken);
+        }
+        owners.put(canonicalToken, user);
+        owners.remove(token, user);
+        logger.info("Replaced the push token of " + username + " with the canonical token");
+    }
+
+    @Override
+    public boolean isDead(String token) {
+        return token != null && deadTokens.containsKey(token);
+    }
+
+    /**
+     * @return the number of users indexed
+     */
+    public int getTokenCount() {
+        return owners.size();
+    }
+
+    /**
+     * @return the number of dead tokens remembered
+     */
+    public int getDeadTokenCount() {
+        return deadTokens.size();
+    }
+}
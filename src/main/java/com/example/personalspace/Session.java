@@ -1,11 +1,17 @@
 package com.example.personalspace;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.security.SecureRandom;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,12 +19,32 @@ import org.json.JSONObject;
 /**
  * Represents a Single HCI research session
  * 
+ * The users are kept in a concurrent map, as the request threads add, remove
+ * and update them at the same time. The status and the end date are read by
+ * every request, and written once when the session is closed.
+ * 
+ * Every change to a user is given the next version of the session, within
+ * the update of the map, so the versions of the changes to a user follow the
+ * order the changes were made in. The listener is told of each change
+ * afterwards.
+ * 
+ * Every change, closing included, also bumps the revision of the session once
+ * it is made, after the update of the map. A response written after reading
+ * the revision holds at least the changes it counts, so the revision tags the
+ * responses polled and their cached bodies.
+ * 
  * @author aanal
  *
  */
 @Data
+@EqualsAndHashCode(callSuper = false, of = "id")
 public class Session {
 
+    /**
+     * The ids are part of the urls of the session, they must not be guessed
+     */
+    private static final SecureRandom IDS = new SecureRandom();
+
     public enum Status {
         ACTIVE("ACTIVE"), INACTIVE("INACTIVE");
 
@@ -48,43 +74,342 @@ public class Session {
     /**
      * The date when this session concluded
      */
-    private Date endDate;
+    private volatile Date endDate;
 
     /**
      * The status of the session, active or inactive
      */
-    private Status status;
-    
+    private volatile Status status;
+
+    @JsonIgnore
+    private final ConcurrentMap<String, User> activeUsers = new ConcurrentHashMap<>();
+
+    /**
+     * The same users by name in order, for listing them page by page. The
+     * hash map stays the one looked up and updated, this one follows it
+     * within its updates.
+     */
+    @JsonIgnore
+    private final ConcurrentNavigableMap<String, User> usersByName = new ConcurrentSkipListMap<>();
+
+    /**
+     * The version of the last change to a user
+     */
+    @JsonIgnore
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The number of changes made to the session
+     */
+    @JsonIgnore
+    private final AtomicLong revision = new AtomicLong();
+
+    /**
+     * The session as last served, at its revision
+     */
+    @JsonIgnore
+    private final CachedBody sessionBody = new CachedBody();
+
+    /**
+     * The users as last listed, at the revision of the session
+     */
+    @JsonIgnore
+    private final CachedBody usersBody = new CachedBody();
+
+    /**
+     * The locations of the users
+     */
+    @JsonIgnore
+    private final SpatialIndex index = new SpatialIndex(SpatialIndex.DEFAULT_CELL_SIZE);
+
+    /**
+     * The samples of the users that sent telemetry, by user name
+     */
     @JsonIgnore
-    private Map<String, User> activeUsers;
+    private final ConcurrentMap<String, TelemetryBuffer> telemetry = new ConcurrentHashMap<>();
+
+    /**
+     * The preferences every user had, by user name, kept after the user left
+     */
+    @JsonIgnore
+    private final ConcurrentMap<String, PreferenceHistory> preferenceHistory = new ConcurrentHashMap<>();
+
+    @JsonIgnore
+    private volatile SessionListener listener = SessionListener.NONE;
 
     public Session() {
-        Random rnd = new Random(new Date().getTime());
-        id = Math.abs(rnd.nextLong());
+        id = nextId();
         startDate = new Date();
         status = Status.ACTIVE;
-        activeUsers = new HashMap<>();
     }
-    
-    public boolean addUser(User user){
-        if(activeUsers.containsKey(user.getName())){
+
+    /**
+     * Recreates a session read back from the journal
+     */
+    Session(long id, String name, Date startDate) {
+        this.id = id;
+        this.name = name;
+        this.startDate = startDate;
+        status = Status.ACTIVE;
+    }
+
+    /**
+     * @return a random positive id
+     */
+    static long nextId() {
+        long id;
+        do {
+            id = IDS.nextLong() & Long.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Adds the user unless a user with the same name is already in the
+     * session, atomically
+     * 
+     * @param user
+     *            the user joining
+     * @return false if the name is taken
+     */
+    public boolean addUser(User user) {
+        User result = activeUsers.compute(user.getName(), (name, existing) -> {
+            if (existing != null) {
+                return existing;
+            }
+            user.setVersion(version.incrementAndGet());
+            recordPreference(name, user.getPref(), user.getVersion());
+            usersByName.put(name, user);
+            return user;
+        });
+        if (result != user) {
             return false;
         }
-        activeUsers.put(user.getName(), user);
+        revision.incrementAndGet();
+        listener.userAdded(this, user);
+        return true;
+    }
+
+    /**
+     * Removes the user from the session
+     * 
+     * @param userName
+     *            the name of the user
+     * @return the removed user, null if there was none
+     */
+    public User removeUser(String userName) {
+        User[] removed = new User[1];
+        activeUsers.computeIfPresent(userName, (name, user) -> {
+            index.move(user, user.getLocation(), null);
+            telemetry.remove(name);
+            usersByName.remove(name);
+            user.setVersion(version.incrementAndGet());
+            removed[0] = user;
+            return null;
+        });
+        if (removed[0] != null) {
+            revision.incrementAndGet();
+            listener.userRemoved(this, removed[0]);
+        }
+        return removed[0];
+    }
+
+    public boolean updatePreference(String userName, Preference pref) {
+        User user = activeUsers.computeIfPresent(userName, (name, existing) -> {
+            // the preference before the version, see SessionJournal
+            existing.setPref(pref);
+            existing.setVersion(version.incrementAndGet());
+            recordPreference(name, pref, existing.getVersion());
+            return existing;
+        });
+        if (user == null) {
+            return false;
+        }
+        revision.incrementAndGet();
+        listener.preferenceUpdated(this, user);
         return true;
     }
-    
-    public void removeUser(String userName){
+
+    /**
+     * Appends the preference to the history of the user and tells the
+     * listener, called within the update of the user
+     */
+    private void recordPreference(String userName, Preference pref, long userVersion) {
+        if (pref != null) {
+            long time = System.currentTimeMillis();
+            preferenceHistory.computeIfAbsent(userName, name -> new PreferenceHistory())
+                    .append(time, pref.getDistance(), userVersion);
+            listener.preferenceRecorded(this, userName, time, pref.getDistance(), userVersion);
+        }
+    }
+
+    /**
+     * Appends a preference read back from the journal to the history of the
+     * user, unless the history holds it already
+     * 
+     * @param version
+     *            the version of the user at the change, zero to append it
+     *            regardless
+     */
+    void restorePreference(String userName, long time, double distance, long version) {
+        preferenceHistory.computeIfAbsent(userName, name -> new PreferenceHistory())
+                .restore(time, distance, version);
+        this.version.accumulateAndGet(version, Math::max);
+    }
+
+    /**
+     * Moves the user, within the update of the user so its moves are never
+     * concurrent
+     * 
+     * @param userName
+     *            the name of the user
+     * @param location
+     *            where the user stands now
+     * @return false if there is no such user
+     */
+    public boolean updateLocation(String userName, Location location) {
+        User user = activeUsers.computeIfPresent(userName, (name, existing) -> {
+            index.move(existing, existing.getLocation(), location);
+            existing.setLocation(location);
+            existing.setVersion(version.incrementAndGet());
+            return existing;
+        });
+        if (user == null) {
+            return false;
+        }
+        revision.incrementAndGet();
+        listener.locationUpdated(this, user);
+        return true;
+    }
+
+    /**
+     * Gives the telemetry buffer of the user, created on its first sample,
+     * within the update of the user so no buffer outlives its user
+     * 
+     * @param userName
+     *            the name of the user
+     * @param capacity
+     *            the number of samples kept if the buffer is created
+     * @return the buffer, null if there is no such user
+     */
+    public TelemetryBuffer telemetryOf(String userName, int capacity) {
+        TelemetryBuffer buffer = telemetry.get(userName);
+        if (buffer != null) {
+            return buffer;
+        }
+        TelemetryBuffer[] created = new TelemetryBuffer[1];
+        activeUsers.computeIfPresent(userName, (name, existing) -> {
+            created[0] = telemetry.computeIfAbsent(name, key -> new TelemetryBuffer(capacity));
+            return existing;
+        });
+        return created[0];
+    }
+
+    /**
+     * Finds the users within the personal space of the user, that is within
+     * the distance of its preference from its location
+     * 
+     * @param userName
+     *            the name of the user
+     * @param count
+     *            the number of nearest users wanted, zero or less for all
+     * @return the users found, nearest first, null if there is no such user
+     *         or its location is not known
+     */
+    public List<SpatialIndex.Neighbour> getNeighbours(String userName, int count) {
+        User user = activeUsers.get(userName);
+        Location location = user == null ? null : user.getLocation();
+        if (location == null) {
+            return null;
+        }
+        Preference pref = user.getPref();
+        double distance = pref == null ? 0 : pref.getDistance();
+        if (count <= 0) {
+            return index.within(location.getX(), location.getY(), distance, user);
+        }
+        return index.nearest(location.getX(), location.getY(), count, distance, user);
+    }
+
+    /**
+     * @return the version of the last change to a user
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the number of changes made to the session, each visible to the
+     *         reads that follow
+     */
+    @JsonIgnore
+    public long getRevision() {
+        return revision.get();
+    }
+
+    /**
+     * Puts a user read back from the journal, keeping its version
+     */
+    void restoreUser(User user) {
+        activeUsers.put(user.getName(), user);
+        usersByName.put(user.getName(), user);
+        version.accumulateAndGet(user.getVersion(), Math::max);
+        revision.incrementAndGet();
+    }
+
+    /**
+     * Drops a user whose removal was read back from the journal, from the
+     * users and from their listing
+     */
+    void restoreRemoval(String userName, long userVersion) {
         activeUsers.remove(userName);
+        usersByName.remove(userName);
+        version.accumulateAndGet(userVersion, Math::max);
+        revision.incrementAndGet();
     }
-    
-    public boolean updatePreference(String userName, Preference pref){
-        if(activeUsers.containsKey(userName)){
-            User user = activeUsers.get(userName);
-            user.setPref(pref);
-            return true;
+
+    /**
+     * Copies the users of the session for listing. Users joining or leaving
+     * meanwhile may or may not be part of it, but every user is listed once
+     * and no user that stayed in the session is missed.
+     * 
+     * @return the users at the time of the call
+     */
+    public User[] getUsers() {
+        return activeUsers.values()
+                .toArray(new User[0]);
+    }
+
+    /**
+     * Lists the users in the order of their names without copying them, for
+     * listing a large session page by page or as a stream. As with
+     * {@link #getUsers()}, users joining or leaving meanwhile may or may not
+     * be listed, but every user that stayed in the session is listed once.
+     * 
+     * @param after
+     *            the name the listing starts after, null to start from the
+     *            first user
+     * @return a live view of the users
+     */
+    public Collection<User> usersAfter(String after) {
+        return after == null ? usersByName.values()
+                : usersByName.tailMap(after, false)
+                        .values();
+    }
+
+    /**
+     * Closes the session, only the first call takes effect
+     * 
+     * @return false if the session was already closed
+     */
+    public synchronized boolean close() {
+        if (status == Status.INACTIVE) {
+            return false;
         }
-        return false;
+        endDate = new Date();
+        status = Status.INACTIVE;
+        revision.incrementAndGet();
+        return true;
     }
 
     /**
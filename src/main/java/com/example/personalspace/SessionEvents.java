@@ -0,0 +1,555 @@
+package com.example.personalspace;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pushes the changes of a session to its subscribers, so clients learn of
+ * users joining, leaving and changing their preference without polling.
+ *
+ * Each change is written as an event once, from the request thread that
+ * made it, and offered to the buffer of every subscriber of the session.
+ * The buffers are bounded and drained by a few workers, one subscriber at a
+ * time each, so a request never waits for a client. A worker writes at most
+ * {@link #BATCH_SIZE} events of a subscriber before moving on to the others.
+ * A subscriber too slow to keep up fills its buffer and is evicted, it may
+ * subscribe again and read the session afresh. A write blocked for longer
+ * than the send timeout evicts its subscriber as well, and another worker
+ * takes the place of the blocked one until the write returns, so a stalled
+ * client never holds up the others. The moves of the users are not pushed,
+ * they are far too frequent.
+ *
+ * A subscriber is first sent the revision of the session it starts at. It
+ * is registered before the revision is read, so no change after the revision
+ * is missed, and may be sent a few changes the revision already counts, each
+ * with the version of its user to tell them apart.
+ *
+ * When the session is closed, its subscribers are sent a closed event and
+ * then let go.
+ *
+ * @author aanal
+ *
+ */
+public class SessionEvents implements SessionListener {
+
+    /**
+     * The default number of events buffered for a subscriber
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * The default number of threads writing the events
+     */
+    public static final int DEFAULT_WORKERS = 2;
+
+    /**
+     * The default time in milli seconds a stream is kept open
+     */
+    public static final long DEFAULT_TIMEOUT = 600000;
+
+    /**
+     * The default time in milli seconds a single write may block before its
+     * subscriber is evicted
+     */
+    public static final long DEFAULT_SEND_TIMEOUT = 10000;
+
+    /**
+     * The number of events a worker writes to a subscriber before letting
+     * the other subscribers have their turn
+     */
+    public static final int BATCH_SIZE = 64;
+
+    /**
+     * Marks a subscriber not writing
+     */
+    private static final long IDLE = Long.MIN_VALUE;
+
+    /**
+     * Marks a subscriber whose write took too long, its worker is replaced
+     */
+    private static final long STALLED = Long.MAX_VALUE;
+
+    private Logger logger = LogManager.getLogger(SessionEvents.class);
+
+    /**
+     * Writes events to a client
+     */
+    public interface Sink {
+
+        /**
+         * Writes the event, blocking while the client is slow. A write
+         * blocking past the send timeout evicts the subscriber.
+         *
+         * @throws IOException
+         *             if the client is gone
+         */
+        void send(Event event) throws IOException;
+
+        /**
+         * Ends the stream, called once
+         */
+        void close();
+    }
+
+    /**
+     * A change, written once for every subscriber
+     */
+    @Getter
+    public static class Event {
+
+        /**
+         * The version of the change to a user, zero for the session events
+         */
+        private final long id;
+
+        private final String name;
+
+        /**
+         * The json of the change
+         */
+        private final String data;
+
+        public Event(long id, String name, String data) {
+            this.id = id;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private final int bufferSize;
+
+    private final int workerCount;
+
+    private final long sendTimeoutNanos;
+
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Evicts the subscribers whose write takes too long
+     */
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * The subscribers in the middle of a write, looked at by the watchdog
+     */
+    private final Set<Subscriber> writing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The workers added in place of those blocked in a write
+     */
+    private int replacements;
+
+    private final ConcurrentMap<Long, Set<Subscriber>> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    private final AtomicLong disconnected = new AtomicLong();
+
+    private final AtomicLong stalled = new AtomicLong();
+
+    /**
+     * Creates the streams with the {@link #DEFAULT_SEND_TIMEOUT}
+     */
+    public SessionEvents(int bufferSize, int workerCount) {
+        this(bufferSize, workerCount, DEFAULT_SEND_TIMEOUT);
+    }
+
+    /**
+     * @param bufferSize
+     *            the number of events buffered for a subscriber before it
+     *            is evicted
+     * @param workerCount
+     *            the number of threads writing the events
+     * @param sendTimeout
+     *            the time in milli seconds a write may block before its
+     *            subscriber is evicted
+     */
+    public SessionEvents(int bufferSize, int workerCount, long sendTimeout) {
+        if (bufferSize <= 0 || workerCount <= 0 || sendTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid event buffers: " + bufferSize + ", " + workerCount + ", " + sendTimeout);
+        }
+        this.bufferSize = bufferSize;
+        this.workerCount = workerCount;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeout);
+        AtomicInteger threads = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "session-events-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-events-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, sendTimeout / 4);
+        watchdog.scheduleWithFixedDelay(this::evictStalled, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A client of a session, with its buffer of events not written yet. Only
+     * the worker draining the buffer touches the sink, a request thread
+     * evicting the subscriber never waits for a write in progress.
+     */
+    public class Subscriber {
+
+        private final long sessionId;
+
+        private final Sink sink;
+
+        private final BlockingQueue<Event> buffer = new ArrayBlockingQueue<>(bufferSize);
+
+        /**
+         * Set while a worker drains the buffer, so the events of a
+         * subscriber are written one at a time and in order
+         */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        /**
+         * When the write in progress started, {@link #IDLE} between writes,
+         * {@link #STALLED} once the watchdog replaced its worker
+         */
+        private final AtomicLong sendStarted = new AtomicLong(IDLE);
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Set when the session is closed, the stream ends once the buffer is
+         * written
+         */
+        private volatile boolean ending;
+
+        /**
+         * Set once the sink is closed, by the worker draining
+         */
+        private boolean ended;
+
+        /**
+         * The event written ahead of the buffer, set before the drain
+         * starts
+         */
+        private volatile Event first;
+
+        /**
+         * Set once the first event is, the buffer is not drained before
+         */
+        private volatile boolean started;
+
+        private Subscriber(long sessionId, Sink sink) {
+            this.sessionId = sessionId;
+            this.sink = sink;
+        }
+
+        private void offer(Event event) {
+            if (closed.get()) {
+                return;
+            }
+            if (!buffer.offer(event)) {
+                logger.warn("Evicting a subscriber of session " + sessionId + " too slow to keep up");
+                evicted.incrementAndGet();
+                close();
+                return;
+            }
+            schedule();
+        }
+
+        private void end() {
+            ending = true;
+            schedule();
+        }
+
+        /**
+         * Writes the event ahead of those buffered so far, then the buffer
+         */
+        private void start(Event event) {
+            first = event;
+            started = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (started && draining.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                    draining.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            int written = 0;
+            do {
+                Event event;
+                while (!closed.get() && written < BATCH_SIZE && (event = next()) != null) {
+                    written++;
+                    send(event);
+                }
+                if (ending && buffer.isEmpty()) {
+                    close();
+                }
+                if (closed.get() && !ended) {
+                    ended = true;
+                    buffer.clear();
+                    try {
+                        sink.close();
+                    } catch (RuntimeException e) {
+                        logger.warn("Could not end the event stream", e);
+                    }
+                }
+                draining.set(false);
+                if (written >= BATCH_SIZE) {
+                    // the others have their turn before the rest is written
+                    schedule();
+                    return;
+                }
+                // whatever was offered after the last poll found the flag set
+                // and left it to this drain
+            } while (pending() && draining.compareAndSet(false, true));
+        }
+
+        private void send(Event event) {
+            sendStarted.set(System.nanoTime());
+            writing.add(this);
+            try {
+                sink.send(event);
+                delivered.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                disconnected.incrementAndGet();
+                close();
+            } finally {
+                writing.remove(this);
+                if (sendStarted.getAndSet(IDLE) == STALLED) {
+                    // the replacement of this worker is no longer needed
+                    resize(-1);
+                }
+            }
+        }
+
+        /**
+         * Evicts the subscriber if its write has blocked for too long, and
+         * replaces the worker blocked in it
+         */
+        private void evictIfStalled(long now) {
+            long started = sendStarted.get();
+            if (started == IDLE || started == STALLED || now - started < sendTimeoutNanos
+                    || !sendStarted.compareAndSet(started, STALLED)) {
+                return;
+            }
+            logger.warn("Evicting a subscriber of session " + sessionId + " blocked in a write");
+            stalled.incrementAndGet();
+            evicted.incrementAndGet();
+            resize(1);
+            close();
+        }
+
+        private Event next() {
+            Event event = first;
+            if (event != null) {
+                first = null;
+                return event;
+            }
+            return buffer.poll();
+        }
+
+        private boolean pending() {
+            return closed.get() ? !ended : ending || first != null || !buffer.isEmpty();
+        }
+
+        /**
+         * Stops the events and ends the stream, the client left or was
+         * evicted
+         */
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            Set<Subscriber> subscribed = sessions.get(sessionId);
+            if (subscribed != null) {
+                subscribed.remove(this);
+            }
+            subscribers.decrementAndGet();
+            schedule();
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+    }
+
+    private void evictStalled() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : writing) {
+            subscriber.evictIfStalled(now);
+        }
+    }
+
+    /**
+     * Adds or removes a worker in place of one blocked in a write
+     */
+    private synchronized void resize(int delta) {
+        replacements += delta;
+        int size = workerCount + replacements;
+        if (delta > 0) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Subscribes a client to the changes of the session
+     *
+     * @return the subscriber, to close when the client leaves, null if the
+     *         session is closed
+     */
+    public Subscriber subscribe(Session session, Sink sink) throws JSONException {
+        Subscriber subscriber = new Subscriber(session.getId(), sink);
+        subscribers.incrementAndGet();
+        sessions.computeIfAbsent(session.getId(), id -> ConcurrentHashMap.newKeySet())
+                .add(subscriber);
+        // the first event tells where the stream starts, read once the
+        // changes are buffered for the subscriber
+        JSONObject json = session.toJSON();
+        json.put("revision", session.getRevision());
+        subscriber.start(new Event(0, "subscribed", json.toString()));
+        if (session.getStatus() == Session.Status.INACTIVE) {
+            // closed meanwhile, its subscribers may have been let go already
+            subscriber.close();
+            sessions.remove(session.getId());
+            return null;
+        }
+        return subscriber;
+    }
+
+    /**
+     * @return the number of subscribers of the session
+     */
+    public int subscriberCount(Session session) {
+        Set<Subscriber> subscribed = sessions.get(session.getId());
+        return subscribed == null ? 0 : subscribed.size();
+    }
+
+    private void publish(Session session, Event event) {
+        Set<Subscriber> subscribed = sessions.get(session.getId());
+        if (subscribed == null || subscribed.isEmpty()) {
+            return;
+        }
+        published.incrementAndGet();
+        for (Subscriber subscriber : subscribed) {
+            subscriber.offer(event);
+        }
+    }
+
+    private void publish(Session session, String name, User user) {
+        if (!sessions.containsKey(session.getId())) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject();
+            json.put("name", user.getName());
+            if (user.getPref() != null) {
+                json.put("distance", user.getPref()
+                        .getDistance());
+            }
+            json.put("version", user.getVersion());
+            publish(session, new Event(user.getVersion(), name, json.toString()));
+        } catch (JSONException e) {
+            logger.error("Could not write the event", e);
+        }
+    }
+
+    @Override
+    public void userAdded(Session session, User user) {
+        publish(session, "userAdded", user);
+    }
+
+    @Override
+    public void userRemoved(Session session, User user) {
+        publish(session, "userRemoved", user);
+    }
+
+    @Override
+    public void preferenceUpdated(Session session, User user) {
+        publish(session, "preferenceUpdated", user);
+    }
+
+    @Override
+    public void closed(Session session) {
+        Set<Subscriber> subscribed = sessions.remove(session.getId());
+        if (subscribed == null) {
+            return;
+        }
+        String data;
+        try {
+            data = session.toJSON()
+                    .toString();
+        } catch (JSONException e) {
+            logger.error("Could not write the event", e);
+            data = "{}";
+        }
+        Event event = new Event(0, "closed", data);
+        published.incrementAndGet();
+        for (Subscriber subscriber : subscribed) {
+            subscriber.offer(event);
+            subscriber.end();
+        }
+    }
+
+    /**
+     * @return the statistics of the event streams
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("subscribers", subscribers.get());
+        obj.put("published", published.get());
+        obj.put("delivered", delivered.get());
+        obj.put("evicted", evicted.get());
+        obj.put("disconnected", disconnected.get());
+        obj.put("stalled", stalled.get());
+        return obj;
+    }
+
+    /**
+     * Ends every stream and stops the workers
+     */
+    public void close() {
+        for (Set<Subscriber> subscribed : sessions.values()) {
+            for (Subscriber subscriber : subscribed) {
+                subscriber.close();
+            }
+        }
+        sessions.clear();
+        watchdog.shutdownNow();
+        workers.shutdownNow();
+    }
+}
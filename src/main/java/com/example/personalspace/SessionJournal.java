@@ -0,0 +1,868 @@
+package com.example.personalspace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A write-ahead log of the sessions, their users and preferences, so a
+ * restart does not end the studies in progress.
+ *
+ * Every change is appended to a buffer in memory, and a background thread
+ * writes the buffer to the log file and forces it to disk every flush
+ * interval, committing all changes made since in one go. Once the log has
+ * grown past the snapshot size, or the snapshot interval has passed, a new
+ * log is started and the active sessions are written to a snapshot of the
+ * same generation, after which the older logs and snapshots are deleted.
+ * When opened, the latest snapshot is loaded and the logs from its
+ * generation on are replayed.
+ *
+ * The snapshot is taken while requests keep changing the sessions, and
+ * changes to the same user may be appended in another order than they were
+ * made. Each change to a user therefore carries the version the session gave
+ * it, and is only replayed over an older version of the user, or over the
+ * removal of an older version. A change is appended after it is made, so by
+ * the time a new log is started, every change in the older logs is visible
+ * to the snapshot. A user is snapshot by reading its version before its
+ * preference, which is set before the version, so the snapshot never holds a
+ * version newer than its preference.
+ *
+ * The history of the preferences is journaled too, each change with the
+ * time and version it was recorded with, and snapshot per user including the
+ * users that left. A change is replayed into a history only if newer than
+ * the last change of that history, so the changes both snapshot and logged
+ * are appended once. A user restored without any history, as journaled
+ * before the histories were, starts one with its preference at the time of
+ * the restart.
+ *
+ * The locations of the users change too often to journal, the clients report
+ * them again after a restart.
+ *
+ * Record layout: length, crc32 of the body, then the body made of the type,
+ * the session id, the version and the fields of the change. A bad checksum
+ * or a short record marks the torn end of a log.
+ *
+ * @author aanal
+ *
+ */
+public class SessionJournal implements SessionListener, Closeable {
+
+    private static final byte STARTED = 1;
+
+    private static final byte CLOSED = 2;
+
+    private static final byte USER_ADDED = 3;
+
+    private static final byte USER_REMOVED = 4;
+
+    private static final byte PREFERENCE_UPDATED = 5;
+
+    private static final byte PREFERENCE_RECORDED = 6;
+
+    private static final byte HISTORY = 7;
+
+    /**
+     * The number of changes of a history per record of a snapshot
+     */
+    private static final int HISTORY_CHUNK = 4096;
+
+    private static final String PREFIX = "sessions-";
+
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The default time in milli seconds between two writes to disk
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 10;
+
+    /**
+     * The default size in bytes of the log before a snapshot is taken
+     */
+    public static final long DEFAULT_SNAPSHOT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default time in milli seconds after which changes are snapshot
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+
+    private Logger logger = LogManager.getLogger(SessionJournal.class);
+
+    private final File directory;
+
+    private final SessionRegistry registry;
+
+    private final long snapshotSize;
+
+    private final long snapshotIntervalNanos;
+
+    /**
+     * The changes appended since the last write, swapped with the spare
+     * buffer when written
+     */
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(64 * 1024);
+
+    /**
+     * Encodes the body of a record, guarded by this journal
+     */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+    private final DataOutputStream bodyOut = new DataOutputStream(body);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Held while writing to the log and while starting a new one, so the
+     * buffers are written in order
+     */
+    private final Object writeLock = new Object();
+
+    private FileChannel log;
+
+    private long generation;
+
+    /**
+     * The bytes appended to the current log, including the buffer
+     */
+    private long logSize;
+
+    private long lastSnapshot;
+
+    private boolean closed;
+
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong appended = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong snapshots = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Opens the journal in the directory, restoring the sessions into the
+     * registry and journaling every change to them from then on
+     *
+     * @param directory
+     *            the directory holding the logs and snapshots, created if
+     *            missing
+     * @param registry
+     *            the empty registry to restore the sessions into
+     * @param flushInterval
+     *            the time in milli seconds between two writes to disk
+     * @param snapshotSize
+     *            the size in bytes of the log before a snapshot is taken
+     * @param snapshotInterval
+     *            the time in milli seconds after which changes are snapshot
+     * @throws IOException
+     *             if the journal could not be read or created
+     */
+    public SessionJournal(File directory, SessionRegistry registry, long flushInterval, long snapshotSize,
+            long snapshotInterval) throws IOException {
+        if (flushInterval <= 0 || snapshotSize <= 0 || snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Invalid journal configuration");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the journal directory " + directory);
+        }
+        this.directory = directory;
+        this.registry = registry;
+        this.snapshotSize = snapshotSize;
+        this.snapshotIntervalNanos = TimeUnit.MILLISECONDS.toNanos(snapshotInterval);
+        registry.addListener(this);
+        recover();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAndSnapshot, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void started(Session session) {
+        synchronized (this) {
+            if (begin(STARTED, session.getId(), 0)) {
+                try {
+                    bodyOut.writeUTF(session.getName());
+                    bodyOut.writeLong(session.getStartDate()
+                            .getTime());
+                } catch (IOException e) {
+                    // writing to memory
+                }
+                end();
+            }
+        }
+    }
+
+    @Override
+    public void closed(Session session) {
+        synchronized (this) {
+            if (begin(CLOSED, session.getId(), 0)) {
+                try {
+                    Date endDate = session.getEndDate();
+                    bodyOut.writeLong(endDate == null ? 0 : endDate.getTime());
+                } catch (IOException e) {
+                    // writing to memory
+                }
+                end();
+            }
+        }
+    }
+
+    @Override
+    public void userAdded(Session session, User user) {
+        appendUser(USER_ADDED, session, user);
+    }
+
+    @Override
+    public void userRemoved(Session session, User user) {
+        synchronized (this) {
+            if (begin(USER_REMOVED, session.getId(), user.getVersion())) {
+                try {
+                    bodyOut.writeUTF(user.getName());
+                } catch (IOException e) {
+                    // writing to memory
+                }
+                end();
+            }
+        }
+    }
+
+    @Override
+    public void preferenceUpdated(Session session, User user) {
+        appendUser(PREFERENCE_UPDATED, session, user);
+    }
+
+    @Override
+    public void preferenceRecorded(Session session, String userName, long time, double distance, long version) {
+        synchronized (this) {
+            if (begin(PREFERENCE_RECORDED, session.getId(), version)) {
+                try {
+                    bodyOut.writeUTF(userName);
+                    bodyOut.writeLong(time);
+                    bodyOut.writeDouble(distance);
+                } catch (IOException e) {
+                    // writing to memory
+                }
+                end();
+            }
+        }
+    }
+
+    /**
+     * Writes the changes appended so far to the log and forces it to disk
+     *
+     * @throws IOException
+     *             if the log could not be written
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            ByteArrayOutputStream written;
+            FileChannel channel;
+            synchronized (this) {
+                if (closed || buffer.size() == 0) {
+                    return;
+                }
+                written = swap();
+                channel = log;
+            }
+            write(channel, written);
+        }
+    }
+
+    /**
+     * Starts a new log and writes the active sessions to a snapshot, then
+     * deletes the older logs and snapshots
+     *
+     * @throws IOException
+     *             if the snapshot could not be written, the older files are
+     *             kept then
+     */
+    public void snapshot() throws IOException {
+        long snapshotGeneration;
+        synchronized (writeLock) {
+            ByteArrayOutputStream written;
+            FileChannel previous;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                written = swap();
+                previous = log;
+                generation++;
+                log = openLog(generation);
+                logSize = 0;
+                lastSnapshot = System.nanoTime();
+                snapshotGeneration = generation;
+            }
+            write(previous, written);
+            previous.close();
+        }
+        writeSnapshot(snapshotGeneration, registry.getSessions());
+        deleteBefore(snapshotGeneration);
+        snapshots.incrementAndGet();
+    }
+
+    /**
+     * Converts the statistics into json
+     *
+     * @return the generation, the size of the log, appended records, group
+     *         commits, snapshots and failed writes
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        synchronized (this) {
+            obj.put("generation", generation);
+            obj.put("logSize", logSize);
+        }
+        obj.put("appended", appended.get());
+        obj.put("flushes", flushes.get());
+        obj.put("snapshots", snapshots.get());
+        obj.put("failures", failures.get());
+        return obj;
+    }
+
+    /**
+     * Stops the flusher and writes a last snapshot, so the next start does
+     * not replay the log
+     */
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+            snapshot();
+        } catch (IOException e) {
+            logger.error("Could not snapshot the sessions on close", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                    .interrupt();
+        }
+        synchronized (writeLock) {
+            synchronized (this) {
+                closed = true;
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close the session log", e);
+                }
+            }
+        }
+    }
+
+    private void flushAndSnapshot() {
+        try {
+            flush();
+            boolean due;
+            synchronized (this) {
+                due = logSize >= snapshotSize || (logSize > 0
+                        && System.nanoTime() - lastSnapshot >= snapshotIntervalNanos);
+            }
+            if (due) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.error("Could not write the session journal", e);
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("Could not write the session journal", e);
+        }
+    }
+
+    private void appendUser(byte type, Session session, User user) {
+        // the version before the preference, see above
+        long version = user.getVersion();
+        Preference pref = user.getPref();
+        synchronized (this) {
+            if (begin(type, session.getId(), version)) {
+                try {
+                    writeUser(bodyOut, user, pref);
+                } catch (IOException e) {
+                    // writing to memory
+                }
+                end();
+            }
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, User user, Preference pref) throws IOException {
+        out.writeUTF(user.getName());
+        String token = user.getPushToken();
+        out.writeBoolean(token != null);
+        if (token != null) {
+            out.writeUTF(token);
+        }
+        out.writeBoolean(pref != null);
+        if (pref != null) {
+            out.writeDouble(pref.getDistance());
+        }
+    }
+
+    /**
+     * Starts the body of a record, holding the lock of the journal
+     *
+     * @return false if the journal is closed
+     */
+    private boolean begin(byte type, long sessionId, long version) {
+        if (closed) {
+            failures.incrementAndGet();
+            return false;
+        }
+        body.reset();
+        try {
+            bodyOut.writeByte(type);
+            bodyOut.writeLong(sessionId);
+            bodyOut.writeLong(version);
+        } catch (IOException e) {
+            // writing to memory
+        }
+        return true;
+    }
+
+    /**
+     * Appends the record begun to the buffer, holding the lock of the
+     * journal
+     */
+    private void end() {
+        try {
+            frame(body, crc, new DataOutputStream(buffer));
+        } catch (IOException e) {
+            // writing to memory
+        }
+        logSize += 8 + body.size();
+        appended.incrementAndGet();
+    }
+
+    /**
+     * Writes the length and the checksum of the body, then the body
+     */
+    private static void frame(ByteArrayOutputStream body, CRC32 crc, DataOutputStream out) throws IOException {
+        byte[] bytes = body.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    /**
+     * Swaps the buffer with the spare one, holding the lock of the journal
+     *
+     * @return the buffer with the changes to write
+     */
+    private ByteArrayOutputStream swap() {
+        ByteArrayOutputStream written = buffer;
+        buffer = spare;
+        spare = written;
+        return written;
+    }
+
+    /**
+     * Writes the buffer to the log and clears it, holding the write lock
+     */
+    private void write(FileChannel channel, ByteArrayOutputStream written) throws IOException {
+        if (written.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(written.toByteArray());
+        written.reset();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+        flushes.incrementAndGet();
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(file(logGeneration, LOG_SUFFIX).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File file(long fileGeneration, String suffix) {
+        return new File(directory, String.format("%s%020d%s", PREFIX, fileGeneration, suffix));
+    }
+
+    /**
+     * Writes the sessions to a temporary file, then renames it, so a snapshot
+     * is either complete or missing
+     */
+    private void writeSnapshot(long snapshotGeneration, Iterable<Session> sessions) throws IOException {
+        File temporary = file(snapshotGeneration, SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        CRC32 checksum = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            for (Session session : sessions) {
+                if (session.getStatus() != Session.Status.ACTIVE) {
+                    continue;
+                }
+                record.reset();
+                recordOut.writeByte(STARTED);
+                recordOut.writeLong(session.getId());
+                recordOut.writeLong(0);
+                recordOut.writeUTF(session.getName());
+                recordOut.writeLong(session.getStartDate()
+                        .getTime());
+                frame(record, checksum, out);
+                for (User user : session.getActiveUsers()
+                        .values()) {
+                    long version = user.getVersion();
+                    Preference pref = user.getPref();
+                    record.reset();
+                    recordOut.writeByte(USER_ADDED);
+                    recordOut.writeLong(session.getId());
+                    recordOut.writeLong(version);
+                    writeUser(recordOut, user, pref);
+                    frame(record, checksum, out);
+                }
+                for (Map.Entry<String, PreferenceHistory> history : session.getPreferenceHistory()
+                        .entrySet()) {
+                    writeHistory(session.getId(), history.getKey(), history.getValue()
+                            .all(), record, recordOut, checksum, out);
+                }
+            }
+            out.flush();
+            file.getFD()
+                    .sync();
+        }
+        Files.move(temporary.toPath(), file(snapshotGeneration, SNAPSHOT_SUFFIX).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the history of a user in records of {@link #HISTORY_CHUNK}
+     * changes, the last one carrying the version of the history
+     */
+    private static void writeHistory(long sessionId, String userName, PreferenceHistory.Series series,
+            ByteArrayOutputStream record, DataOutputStream recordOut, CRC32 checksum, DataOutputStream out)
+            throws IOException {
+        for (int from = 0; from < series.size(); from += HISTORY_CHUNK) {
+            int to = Math.min(series.size(), from + HISTORY_CHUNK);
+            record.reset();
+            recordOut.writeByte(HISTORY);
+            recordOut.writeLong(sessionId);
+            recordOut.writeLong(to == series.size() ? series.getVersion() : 0);
+            recordOut.writeUTF(userName);
+            recordOut.writeInt(to - from);
+            for (int i = from; i < to; i++) {
+                recordOut.writeLong(series.getTime(i));
+                recordOut.writeDouble(series.getDistance(i));
+            }
+            frame(record, checksum, out);
+        }
+    }
+
+    private void deleteBefore(long keptGeneration) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (generationOf(file) < keptGeneration && !file.delete()) {
+                logger.warn("Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * The state of the sessions while replaying, users are only replaced by
+     * newer versions
+     */
+    private static class Replay {
+
+        private final Map<Long, Session> sessions = new HashMap<>();
+
+        private final Set<Long> closed = new HashSet<>();
+
+        /**
+         * The version of the removal of each user, by session
+         */
+        private final Map<Long, Map<String, Long>> removed = new HashMap<>();
+
+        private void started(long id, String name, long startDate) {
+            if (!closed.contains(id) && !sessions.containsKey(id)) {
+                sessions.put(id, new Session(id, name, new Date(startDate)));
+            }
+        }
+
+        private void closed(long id) {
+            closed.add(id);
+            sessions.remove(id);
+            removed.remove(id);
+        }
+
+        private void put(long id, long version, User user) {
+            Session session = sessions.get(id);
+            if (session == null) {
+                return;
+            }
+            User existing = session.getActiveUsers()
+                    .get(user.getName());
+            if (existing != null && existing.getVersion() >= version) {
+                return;
+            }
+            Map<String, Long> removals = removed.get(id);
+            Long removal = removals == null ? null : removals.get(user.getName());
+            if (removal != null) {
+                if (removal >= version) {
+                    return;
+                }
+                removals.remove(user.getName());
+            }
+            user.setVersion(version);
+            session.restoreUser(user);
+        }
+
+        private void remove(long id, long version, String name) {
+            Session session = sessions.get(id);
+            if (session == null) {
+                return;
+            }
+            User existing = session.getActiveUsers()
+                    .get(name);
+            if (existing != null && existing.getVersion() > version) {
+                return;
+            }
+            session.restoreRemoval(name, version);
+            Map<String, Long> removals = removed.computeIfAbsent(id, key -> new HashMap<>());
+            Long removal = removals.get(name);
+            if (removal == null || removal < version) {
+                removals.put(name, version);
+            }
+        }
+
+        private void recorded(long id, long version, String name, long time, double distance) {
+            Session session = sessions.get(id);
+            if (session != null) {
+                session.restorePreference(name, time, distance, version);
+            }
+        }
+
+        /**
+         * Starts a history for the users restored with a preference but no
+         * history
+         */
+        private void seedHistories(long time) {
+            for (Session session : sessions.values()) {
+                for (User user : session.getActiveUsers()
+                        .values()) {
+                    if (user.getPref() != null && !session.getPreferenceHistory()
+                            .containsKey(user.getName())) {
+                        session.restorePreference(user.getName(), time, user.getPref()
+                                .getDistance(), user.getVersion());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and replays the logs from its generation on,
+     * restores the sessions into the registry, then writes them to a new
+     * snapshot and deletes the older files
+     */
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        long snapshotGeneration = -1;
+        long lastGeneration = 0;
+        List<File> logs = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                // an interrupted snapshot
+                if (!file.delete()) {
+                    logger.warn("Could not delete " + file);
+                }
+                continue;
+            }
+            long fileGeneration = generationOf(file);
+            lastGeneration = Math.max(lastGeneration, fileGeneration);
+            if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                snapshotGeneration = Math.max(snapshotGeneration, fileGeneration);
+            } else if (name.endsWith(LOG_SUFFIX)) {
+                logs.add(file);
+            }
+        }
+
+        Replay replay = new Replay();
+        long records = 0;
+        if (snapshotGeneration >= 0) {
+            records += read(file(snapshotGeneration, SNAPSHOT_SUFFIX), replay);
+        }
+        logs.sort(Comparator.comparingLong(SessionJournal::generationOf));
+        for (File file : logs) {
+            if (generationOf(file) >= snapshotGeneration) {
+                records += read(file, replay);
+            }
+        }
+
+        replay.seedHistories(System.currentTimeMillis());
+        List<Session> restored = new ArrayList<>(replay.sessions.values());
+        restored.sort(Comparator.comparing(Session::getStartDate));
+        int users = 0;
+        for (Session session : restored) {
+            registry.restore(session);
+            users += session.getActiveUsers()
+                    .size();
+        }
+
+        generation = lastGeneration + 1;
+        log = openLog(generation);
+        writeSnapshot(generation, restored);
+        deleteBefore(generation);
+        lastSnapshot = System.nanoTime();
+        if (records > 0) {
+            logger.warn(String.format("Restored %d sessions with %d users from %d records in %d ms",
+                    restored.size(), users, records,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+        }
+    }
+
+    /**
+     * Replays the records of a log or snapshot, up to its torn end
+     *
+     * @return the number of records read
+     */
+    private long read(File file, Replay replay) throws IOException {
+        long records = 0;
+        CRC32 checksum = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                64 * 1024))) {
+            byte[] bytes = new byte[256];
+            while (true) {
+                int length;
+                int expected;
+                try {
+                    length = in.readInt();
+                    expected = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > 1024 * 1024) {
+                    logger.warn("Ignoring the torn end of " + file);
+                    break;
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                try {
+                    in.readFully(bytes, 0, length);
+                } catch (EOFException e) {
+                    logger.warn("Ignoring the torn end of " + file);
+                    break;
+                }
+                checksum.reset();
+                checksum.update(bytes, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    logger.warn("Ignoring the torn end of " + file);
+                    break;
+                }
+                try {
+                    readRecord(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)), replay);
+                    records++;
+                } catch (IOException e) {
+                    logger.error("Skipping a corrupt record in " + file);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static void readRecord(DataInputStream in, Replay replay) throws IOException {
+        byte type = in.readByte();
+        long id = in.readLong();
+        long version = in.readLong();
+        switch (type) {
+        case STARTED:
+            replay.started(id, in.readUTF(), in.readLong());
+            break;
+        case CLOSED:
+            replay.closed(id);
+            break;
+        case USER_ADDED:
+        case PREFERENCE_UPDATED:
+            User user = new User();
+            user.setName(in.readUTF());
+            if (in.readBoolean()) {
+                user.setPushToken(in.readUTF());
+            }
+            if (in.readBoolean()) {
+                Preference pref = new Preference();
+                pref.setDistance(in.readDouble());
+                user.setPref(pref);
+            }
+            replay.put(id, version, user);
+            break;
+        case USER_REMOVED:
+            replay.remove(id, version, in.readUTF());
+            break;
+        case PREFERENCE_RECORDED:
+            replay.recorded(id, version, in.readUTF(), in.readLong(), in.readDouble());
+            break;
+        case HISTORY:
+            String name = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                // the version of the history once all its changes are read
+                replay.recorded(id, i == count - 1 ? version : 0, name, in.readLong(), in.readDouble());
+            }
+            break;
+        default:
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static long generationOf(File file) {
+        String name = file.getName();
+        int end = name.indexOf('.');
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return 0;
+        } catch (StringIndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+}
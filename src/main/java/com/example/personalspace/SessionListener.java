@@ -0,0 +1,114 @@
+package com.example.personalspace;
+
+/**
+ * Notified of every change to the sessions and their users, e.g. to journal
+ * them.
+ * 
+ * The listener is called after the change, from the request thread. Changes
+ * to users carry the version the change was given by the session, set on the
+ * user, as calls for the same user may arrive out of order.
+ * 
+ * @author aanal
+ *
+ */
+public interface SessionListener {
+
+    /**
+     * A listener ignoring every change
+     */
+    SessionListener NONE = new SessionListener() {
+    };
+
+    /**
+     * @return a listener telling the first listener of each change, then the
+     *         second
+     */
+    static SessionListener of(SessionListener first, SessionListener second) {
+        if (first == NONE) {
+            return second;
+        }
+        if (second == NONE) {
+            return first;
+        }
+        return new SessionListener() {
+
+            @Override
+            public void started(Session session) {
+                first.started(session);
+                second.started(session);
+            }
+
+            @Override
+            public void closed(Session session) {
+                first.closed(session);
+                second.closed(session);
+            }
+
+            @Override
+            public void userAdded(Session session, User user) {
+                first.userAdded(session, user);
+                second.userAdded(session, user);
+            }
+
+            @Override
+            public void userRemoved(Session session, User user) {
+                first.userRemoved(session, user);
+                second.userRemoved(session, user);
+            }
+
+            @Override
+            public void preferenceUpdated(Session session, User user) {
+                first.preferenceUpdated(session, user);
+                second.preferenceUpdated(session, user);
+            }
+
+            @Override
+            public void preferenceRecorded(Session session, String userName, long time, double distance,
+                    long version) {
+                first.preferenceRecorded(session, userName, time, distance, version);
+                second.preferenceRecorded(session, userName, time, distance, version);
+            }
+
+            @Override
+            public void locationUpdated(Session session, User user) {
+                first.locationUpdated(session, user);
+                second.locationUpdated(session, user);
+            }
+        };
+    }
+
+    default void started(Session session) {
+    }
+
+    default void closed(Session session) {
+    }
+
+    default void userAdded(Session session, User user) {
+    }
+
+    default void userRemoved(Session session, User user) {
+    }
+
+    default void preferenceUpdated(Session session, User user) {
+    }
+
+    /**
+     * The preference was appended to the history of the user, when the user
+     * joined with one or changed it. Unlike the other calls this one is made
+     * within the update of the user, so the calls for a user are in the order
+     * of its history; it must not block.
+     * 
+     * @param time
+     *            the time of the change in the history
+     * @param version
+     *            the version the change was given
+     */
+    default void preferenceRecorded(Session session, String userName, long time, double distance, long version) {
+    }
+
+    /**
+     * The user moved, far more often than anything else changes
+     */
+    default void locationUpdated(Session session, User user) {
+    }
+}
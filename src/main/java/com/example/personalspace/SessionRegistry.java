@@ -0,0 +1,185 @@
+package com.example.personalspace;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * The active sessions of the node, indexed by id, so any number of study
+ * sessions can run in parallel and each request finds its session in
+ * constant time.
+ *
+ * Only one session of a name can be active at once, starting it again
+ * returns nothing. A closed session is dropped from the registry, so the
+ * memory held is bounded by the number of active sessions, which is limited.
+ * The latest session started is the current session, used by the endpoints
+ * that are not scoped by a session id.
+ *
+ * @author aanal
+ *
+ */
+public class SessionRegistry {
+
+    /**
+     * The default number of sessions that can be active at once
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+    private Logger logger = LogManager.getLogger(SessionRegistry.class);
+
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Session> activeByName = new ConcurrentHashMap<>();
+
+    /**
+     * The latest session started, it stays current once closed until another
+     * session is started
+     */
+    private final AtomicReference<Session> current = new AtomicReference<>();
+
+    /**
+     * The sessions active or being started, reserved before a session is
+     * added so the limit holds under concurrent starts
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final int maxSessions;
+
+    private volatile SessionListener listener = SessionListener.NONE;
+
+    public SessionRegistry(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of sessions: " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Adds a listener told of every change to the sessions, after the
+     * listeners added before. Meant to be called while starting up, a session
+     * started meanwhile may miss the listener.
+     */
+    public synchronized void addListener(SessionListener added) {
+        listener = SessionListener.of(listener, added);
+        for (Session session : sessions.values()) {
+            session.setListener(listener);
+        }
+    }
+
+    /**
+     * Starts a new session and makes it the current session
+     *
+     * @param name
+     *            the name of the session
+     * @return the session, null if a session of the name is active already
+     * @throws IllegalStateException
+     *             if the maximum number of sessions are active
+     */
+    public Session start(String name) {
+        Session session = new Session();
+        session.setName(name);
+        session.setListener(listener);
+        if (activeByName.putIfAbsent(name, session) != null) {
+            return null;
+        }
+        if (count.incrementAndGet() > maxSessions) {
+            count.decrementAndGet();
+            activeByName.remove(name, session);
+            throw new IllegalStateException("Too many active sessions");
+        }
+        while (sessions.putIfAbsent(session.getId(), session) != null) {
+            // the random id is taken, draw another one
+            session.setId(Session.nextId());
+        }
+        listener.started(session);
+        current.set(session);
+        logger.info("Started session " + session.getId());
+        return session;
+    }
+
+    /**
+     * Closes the session and removes it from the registry
+     *
+     * @param session
+     *            the session to close
+     * @return false if the session was already closed
+     */
+    public boolean close(Session session) {
+        if (!session.close()) {
+            return false;
+        }
+        if (sessions.remove(session.getId(), session)) {
+            count.decrementAndGet();
+        }
+        activeByName.remove(session.getName(), session);
+        session.getListener()
+                .closed(session);
+        logger.info("Closed session " + session.getId());
+        return true;
+    }
+
+    /**
+     * Adds a session read back from the journal, the latest started becomes
+     * the current session
+     */
+    void restore(Session session) {
+        session.setListener(listener);
+        sessions.put(session.getId(), session);
+        activeByName.put(session.getName(), session);
+        count.incrementAndGet();
+        Session latest = current.get();
+        if (latest == null || !latest.getStartDate()
+                .after(session.getStartDate())) {
+            current.set(session);
+        }
+    }
+
+    /**
+     * @param id
+     *            the id of the session
+     * @return the active session, null if there is none with the id
+     */
+    public Session get(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * @param name
+     *            the name of the session
+     * @return the active session of the name, null if there is none
+     */
+    public Session getByName(String name) {
+        return activeByName.get(name);
+    }
+
+    /**
+     * @return the latest session started, which may be closed, null if no
+     *         session was started yet
+     */
+    public Session getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * @return the active sessions, changing with the registry
+     */
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * @return the number of active sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+}
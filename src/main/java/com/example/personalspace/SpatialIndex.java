@@ -0,0 +1,259 @@
+package com.example.personalspace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.Getter;
+
+/**
+ * A uniform grid over the locations of the users of a session, answering
+ * who is within a distance of a point, or nearest to it, by looking at the
+ * cells around the point only, instead of every user.
+ *
+ * Each cell holds the users located in it, empty cells are dropped. A user is
+ * moved by the session within the update of its user, so the moves of a user
+ * are never concurrent. Queries run while users move: a user moving meanwhile
+ * is found at its old or its new location, or missed, but listed once.
+ *
+ * Queries are cheapest when the cells are about as large as the distances
+ * asked for. Once a query would look at more cells than there are occupied
+ * cells, it walks the occupied cells instead.
+ *
+ * @author aanal
+ *
+ */
+public class SpatialIndex {
+
+    /**
+     * The default width of a cell, a typical personal space radius
+     */
+    public static final double DEFAULT_CELL_SIZE = 2.0;
+
+    /**
+     * A user found by a query, with its distance to the point asked for
+     */
+    @Getter
+    public static class Neighbour {
+
+        private final User user;
+
+        private final double distance;
+
+        Neighbour(User user, double distance) {
+            this.user = user;
+            this.distance = distance;
+        }
+    }
+
+    private static final Comparator<Neighbour> NEAREST_FIRST = Comparator.comparingDouble(Neighbour::getDistance);
+
+    private final double cellSize;
+
+    private final ConcurrentMap<Long, Set<User>> cells = new ConcurrentHashMap<>();
+
+    public SpatialIndex(double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Moves the user from its previous location to the next, either may be
+     * null to add or remove the user. The caller makes sure a user is not
+     * moved by two threads at once.
+     */
+    void move(User user, Location previous, Location next) {
+        long from = previous == null ? 0 : key(previous.getX(), previous.getY());
+        long to = next == null ? 0 : key(next.getX(), next.getY());
+        if (previous != null && next != null && from == to) {
+            return;
+        }
+        if (next != null) {
+            cells.compute(to, (key, users) -> {
+                if (users == null) {
+                    users = ConcurrentHashMap.newKeySet();
+                }
+                users.add(user);
+                return users;
+            });
+        }
+        if (previous != null) {
+            cells.computeIfPresent(from, (key, users) -> {
+                users.remove(user);
+                return users.isEmpty() ? null : users;
+            });
+        }
+    }
+
+    /**
+     * Finds the users within the distance of the point
+     *
+     * @param x
+     *            the point
+     * @param y
+     *            the point
+     * @param distance
+     *            the largest distance, inclusive
+     * @param excluded
+     *            a user left out, usually the one asking, may be null
+     * @return the users found, nearest first
+     */
+    public List<Neighbour> within(double x, double y, double distance, User excluded) {
+        List<Neighbour> found = new ArrayList<>();
+        if (!(distance >= 0)) {
+            return found;
+        }
+        Set<User> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (excluded != null) {
+            seen.add(excluded);
+        }
+        double columns = Math.floor((x + distance) / cellSize) - Math.floor((x - distance) / cellSize) + 1;
+        double rows = Math.floor((y + distance) / cellSize) - Math.floor((y - distance) / cellSize) + 1;
+        if (columns * rows > cells.size()) {
+            for (Set<User> users : cells.values()) {
+                collect(users, x, y, distance, seen, found);
+            }
+        } else {
+            long maxX = cell(x + distance);
+            long maxY = cell(y + distance);
+            for (long cx = cell(x - distance); cx <= maxX; cx++) {
+                for (long cy = cell(y - distance); cy <= maxY; cy++) {
+                    Set<User> users = cells.get(key(cx, cy));
+                    if (users != null) {
+                        collect(users, x, y, distance, seen, found);
+                    }
+                }
+            }
+        }
+        found.sort(NEAREST_FIRST);
+        return found;
+    }
+
+    /**
+     * Finds the users nearest to the point, searching the rings of cells
+     * around it until no cell further out can hold a nearer user
+     *
+     * @param x
+     *            the point
+     * @param y
+     *            the point
+     * @param count
+     *            the number of users wanted
+     * @param distance
+     *            the largest distance, inclusive, infinite for any
+     * @param excluded
+     *            a user left out, usually the one asking, may be null
+     * @return up to count users, nearest first
+     */
+    public List<Neighbour> nearest(double x, double y, int count, double distance, User excluded) {
+        if (count <= 0 || !(distance >= 0)) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<Neighbour> best = new PriorityQueue<>(Math.min(count, 64), NEAREST_FIRST.reversed());
+        Set<User> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (excluded != null) {
+            seen.add(excluded);
+        }
+        long cx = cell(x);
+        long cy = cell(y);
+        for (long ring = 0;; ring++) {
+            long side = 2 * ring + 1;
+            if (side * side > cells.size()) {
+                // the rings cover more cells than are occupied
+                for (Set<User> users : cells.values()) {
+                    offer(users, x, y, count, distance, seen, best);
+                }
+                break;
+            }
+            if (ring == 0) {
+                offer(cells.get(key(cx, cy)), x, y, count, distance, seen, best);
+            } else {
+                for (long i = -ring; i <= ring; i++) {
+                    offer(cells.get(key(cx + i, cy - ring)), x, y, count, distance, seen, best);
+                    offer(cells.get(key(cx + i, cy + ring)), x, y, count, distance, seen, best);
+                }
+                for (long i = -ring + 1; i < ring; i++) {
+                    offer(cells.get(key(cx - ring, cy + i)), x, y, count, distance, seen, best);
+                    offer(cells.get(key(cx + ring, cy + i)), x, y, count, distance, seen, best);
+                }
+            }
+            // any user not seen yet is at least this far away
+            double reached = ring * cellSize;
+            if (reached > distance || (best.size() == count && best.peek()
+                    .getDistance() <= reached)) {
+                break;
+            }
+        }
+        List<Neighbour> found = new ArrayList<>(best);
+        found.sort(NEAREST_FIRST);
+        return found;
+    }
+
+    /**
+     * @return the number of occupied cells
+     */
+    public int getCellCount() {
+        return cells.size();
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    private static void collect(Set<User> users, double x, double y, double distance, Set<User> seen,
+            List<Neighbour> found) {
+        for (User user : users) {
+            Location location = user.getLocation();
+            if (location == null) {
+                continue;
+            }
+            double d = location.distanceTo(x, y);
+            if (d <= distance && seen.add(user)) {
+                found.add(new Neighbour(user, d));
+            }
+        }
+    }
+
+    private static void offer(Set<User> users, double x, double y, int count, double distance, Set<User> seen,
+            PriorityQueue<Neighbour> best) {
+        if (users == null) {
+            return;
+        }
+        for (User user : users) {
+            Location location = user.getLocation();
+            if (location == null) {
+                continue;
+            }
+            double d = location.distanceTo(x, y);
+            if (d > distance || (best.size() == count && d >= best.peek()
+                    .getDistance()) || !seen.add(user)) {
+                continue;
+            }
+            best.add(new Neighbour(user, d));
+            if (best.size() > count) {
+                seen.remove(best.poll()
+                        .getUser());
+            }
+        }
+    }
+
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / cellSize);
+    }
+
+    private long key(double x, double y) {
+        return key(cell(x), cell(y));
+    }
+
+    private static long key(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.personalspace;
+
+import lombok.Getter;
+
+/**
+ * The latest position and orientation samples of a user, in a ring of fixed
+ * size. The samples are kept in one primitive array per field, allocated
+ * once, so taking a sample neither boxes nor allocates and the garbage
+ * collector never sees the samples. When the ring is full the oldest sample
+ * is overwritten.
+ *
+ * The samples are kept in the order they arrived in, which is the order of
+ * their times as long as the device sends them in order. A window is read by
+ * time, so samples arriving out of order are still found.
+ *
+ * @author aanal
+ *
+ */
+public class TelemetryBuffer {
+
+    /**
+     * The default number of samples kept per user
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final long[] times;
+
+    private final float[] xs;
+
+    private final float[] ys;
+
+    private final float[] headings;
+
+    /**
+     * The slot the next sample goes to
+     */
+    private int next;
+
+    /**
+     * The number of samples taken since the buffer was created
+     */
+    private long written;
+
+    /**
+     * @param capacity
+     *            the number of samples kept
+     */
+    public TelemetryBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        times = new long[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        headings = new float[capacity];
+    }
+
+    /**
+     * Takes a sample, overwriting the oldest one if the buffer is full
+     *
+     * @param time
+     *            the time of the sample, in milli seconds
+     * @param x
+     *            the position
+     * @param y
+     * @param heading
+     *            the orientation, NaN if not known
+     */
+    public synchronized void add(long time, float x, float y, float heading) {
+        times[next] = time;
+        xs[next] = x;
+        ys[next] = y;
+        headings[next] = heading;
+        if (++next == times.length) {
+            next = 0;
+        }
+        written++;
+    }
+
+    /**
+     * Copies the samples within the window of time, in the order they arrived
+     * in
+     *
+     * @param from
+     *            the earliest time, inclusive
+     * @param to
+     *            the latest time, inclusive
+     * @param limit
+     *            the number of samples at most, the latest ones are kept
+     * @return the samples found
+     */
+    public synchronized Window read(long from, long to, int limit) {
+        int size = size();
+        int oldest = next - size;
+        if (oldest < 0) {
+            oldest += times.length;
+        }
+        // walk back from the latest to find where the window starts
+        int count = 0;
+        int first = size;
+        for (int i = size - 1; i >= 0 && count < limit; i--) {
+            long time = times[slot(oldest, i)];
+            if (time >= from && time <= to) {
+                count++;
+                first = i;
+            }
+        }
+        Window window = new Window(count, written);
+        int filled = 0;
+        for (int i = first; i < size && filled < count; i++) {
+            int slot = slot(oldest, i);
+            long time = times[slot];
+            if (time >= from && time <= to) {
+                window.times[filled] = time;
+                window.xs[filled] = xs[slot];
+                window.ys[filled] = ys[slot];
+                window.headings[filled] = headings[slot];
+                filled++;
+            }
+        }
+        return window;
+    }
+
+    private int slot(int oldest, int i) {
+        int slot = oldest + i;
+        return slot >= times.length ? slot - times.length : slot;
+    }
+
+    /**
+     * @return the number of samples held
+     */
+    public synchronized int size() {
+        return (int) Math.min(written, times.length);
+    }
+
+    /**
+     * @return the number of samples taken, including the overwritten ones
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    /**
+     * A copy of the samples within a window of time, one array per field
+     *
+     * @author aanal
+     *
+     */
+    @Getter
+    public static class Window {
+
+        private final long[] times;
+
+        private final float[] xs;
+
+        private final float[] ys;
+
+        private final float[] headings;
+
+        /**
+         * The number of samples taken by the buffer at the time of the read,
+         * tells the reader whether samples were added since
+         */
+        private final long written;
+
+        Window(int size, long written) {
+            times = new long[size];
+            xs = new float[size];
+            ys = new float[size];
+            headings = new float[size];
+            this.written = written;
+        }
+
+        public int size() {
+            return times.length;
+        }
+    }
+}
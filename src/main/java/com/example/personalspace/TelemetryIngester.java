@@ -0,0 +1,252 @@
+package com.example.personalspace;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Takes batches of telemetry samples into the buffers of the users. A batch
+ * holds the samples of any number of users of a session, by user name, each
+ * sample an array of its time in milli seconds, its position and optionally
+ * its heading:
+ *
+ * <pre>
+ * {"alice": [[1500000000000, 1.5, 2.0, 90], [1500000000050, 1.6, 2.0, 91]],
+ *  "bob": [[1500000000010, 4.0, 3.5]]}
+ * </pre>
+ *
+ * The batch is read with a streaming parser, straight from the request into
+ * the buffers, so no object is created per sample. The latest sample of each
+ * user in the batch becomes its location.
+ *
+ * Samples that are not an array of three or four numbers are rejected, as
+ * are the samples of users not in the session. A batch that is not json
+ * stops at the error, the samples before it are kept.
+ *
+ * @author aanal
+ *
+ */
+public class TelemetryIngester {
+
+    /**
+     * The decimals up to this number of digits are read without the parser
+     */
+    private static final int MAX_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = new double[MAX_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final JsonFactory factory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private final int capacity;
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            the number of samples kept per user
+     */
+    public TelemetryIngester(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * The outcome of a batch
+     *
+     * @author aanal
+     *
+     */
+    @Getter
+    public static class Result {
+
+        private int accepted;
+
+        private int rejected;
+
+        /**
+         * The number of users of the batch not in the session
+         */
+        private int unknownUsers;
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("accepted", accepted);
+            obj.put("rejected", rejected);
+            obj.put("unknownUsers", unknownUsers);
+            return obj;
+        }
+    }
+
+    /**
+     * Reads the batch into the buffers of the users of the session
+     *
+     * @param session
+     *            the session of the users
+     * @param in
+     *            the batch, it is not closed
+     * @return the number of samples accepted and rejected
+     * @throws IOException
+     *             if the batch is not json, or could not be read
+     * @throws IllegalArgumentException
+     *             if the batch is json but not an object of arrays
+     */
+    public Result ingest(Session session, InputStream in) throws IOException {
+        Result result = new Result();
+        try (JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("The batch must be an object of the samples by user");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String userName = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IllegalArgumentException("The samples of " + userName + " must be an array");
+                }
+                TelemetryBuffer buffer = session.telemetryOf(userName, capacity);
+                if (buffer == null) {
+                    result.unknownUsers++;
+                }
+                readSamples(parser, session, userName, buffer, result);
+            }
+        } finally {
+            batches.incrementAndGet();
+            accepted.addAndGet(result.accepted);
+            rejected.addAndGet(result.rejected);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the samples of a user up to the end of its array
+     *
+     * @param buffer
+     *            where the samples go, null to reject them
+     */
+    private static void readSamples(JsonParser parser, Session session, String userName, TelemetryBuffer buffer,
+            Result result) throws IOException {
+        boolean moved = false;
+        float lastX = 0;
+        float lastY = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new IOException("Unexpected end of the batch");
+            }
+            if (token != JsonToken.START_ARRAY || buffer == null) {
+                parser.skipChildren();
+                result.rejected++;
+                continue;
+            }
+            long time = 0;
+            float x = 0;
+            float y = 0;
+            float heading = Float.NaN;
+            int fields = 0;
+            boolean valid = true;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new IOException("Unexpected end of the batch");
+                }
+                if (!token.isNumeric()) {
+                    parser.skipChildren();
+                    valid = false;
+                } else if (fields == 0) {
+                    time = parser.getLongValue();
+                } else if (fields == 1) {
+                    x = floatValue(parser, token);
+                } else if (fields == 2) {
+                    y = floatValue(parser, token);
+                } else if (fields == 3) {
+                    heading = floatValue(parser, token);
+                }
+                fields++;
+            }
+            if (!valid || fields < 3 || fields > 4 || !Float.isFinite(x) || !Float.isFinite(y)) {
+                result.rejected++;
+                continue;
+            }
+            buffer.add(time, x, y, heading);
+            result.accepted++;
+            moved = true;
+            lastX = x;
+            lastY = y;
+        }
+        if (moved) {
+            session.updateLocation(userName, new Location(lastX, lastY));
+        }
+    }
+
+    /**
+     * Reads the number as a float. Plain decimals are read from the text of
+     * the parser, which turns every decimal into a string first, the others
+     * are left to the parser.
+     */
+    private static float floatValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        char[] text = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int end = offset + parser.getTextLength();
+        boolean negative = text[offset] == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (int i = negative ? offset + 1 : offset; i < end; i++) {
+            char c = text[i];
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9' && digits < MAX_DIGITS && scale < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                // an exponent or more digits than a double holds exactly
+                return parser.getFloatValue();
+            }
+        }
+        // both exact as doubles, so the division is rounded once
+        double value = mantissa / POWERS_OF_TEN[Math.max(scale, 0)];
+        return (float) (negative ? -value : value);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Converts the statistics into json
+     *
+     * @return the batches taken, the samples accepted and rejected
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("batches", batches.get());
+        obj.put("accepted", accepted.get());
+        obj.put("rejected", rejected.get());
+        return obj;
+    }
+}
@@ -18,12 +18,24 @@ public class User {
      * The push token related to the device
      */
     @JsonIgnore
-    private String pushToken;
+    private volatile String pushToken;
 
     /**
-     * The preference of the user
+     * The preference of the user, replaced as a whole by the request threads
      */
-    private Preference pref;
+    private volatile Preference pref;
+
+    /**
+     * Where the user stands, null until first reported, moved by the session
+     * so the spatial index follows
+     */
+    private volatile Location location;
+
+    /**
+     * The version of the session when the user was last changed
+     */
+    @JsonIgnore
+    private volatile long version;
 
     @SuppressWarnings("unchecked")
     public void fromMap(Map<String, Object> map) {
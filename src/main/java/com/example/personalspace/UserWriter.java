@@ -0,0 +1,247 @@
+package com.example.personalspace;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+
+/**
+ * Writes the users of a session as json straight to an output stream, one
+ * user at a time as they are read from the session, instead of copying them
+ * to an array first. The first bytes go out right away and the memory held
+ * does not grow with the session.
+ *
+ * The users are listed by name, either all of them, as the array the users
+ * were always listed as, or a page at a time:
+ *
+ * <pre>
+ * {"users": [...], "next": "..."}
+ * </pre>
+ *
+ * where next is the cursor of the following page, missing on the last page.
+ * A cursor is the last name of its page, encoded, so a page is found in
+ * logarithmic time and users joining or leaving between pages move no other
+ * user to another page.
+ *
+ * The whole array and the session are also written from the bodies cached
+ * at a revision of the session, when given one, see {@link CachedBody}.
+ *
+ * @author aanal
+ *
+ */
+public class UserWriter {
+
+    /**
+     * The largest page served
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * The size of a page not given one
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The largest body cached, a larger session is written again for every
+     * listing rather than held in memory
+     */
+    public static final int MAX_CACHED_BYTES = 1 << 20;
+
+    private final ObjectMapper mapper;
+
+    private final ObjectWriter usersWriter;
+
+    /**
+     * @param mapper
+     *            writes each user, as the users are written in the responses
+     *            of the other endpoints
+     */
+    public UserWriter(ObjectMapper mapper) {
+        this.mapper = mapper;
+        // written from an iterator, no array and no size needed, in a single
+        // call as the writer allocates for every call
+        this.usersWriter = mapper.writerFor(new TypeReference<Iterator<User>>() {
+        })
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Writes every user of the session as an array, the output stream is not
+     * closed
+     */
+    public void writeAll(Session session, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            usersWriter.writeValue(generator, session.usersAfter(null)
+                    .iterator());
+        }
+    }
+
+    /**
+     * Writes every user of the session as an array, the same bytes as long as
+     * the session stays at the revision. The first listing at a revision
+     * streams the users and keeps a copy of what it wrote, up to
+     * {@link #MAX_CACHED_BYTES}.
+     *
+     * @param revision
+     *            the revision of the session, read before the call
+     */
+    public void writeAll(Session session, long revision, OutputStream out) throws IOException {
+        byte[] cached = session.getUsersBody()
+                .get(revision);
+        if (cached != null) {
+            out.write(cached);
+            return;
+        }
+        Copy copy = new Copy(out);
+        writeAll(session, copy);
+        if (copy.bytes != null) {
+            session.getUsersBody()
+                    .put(revision, copy.toByteArray());
+        }
+    }
+
+    /**
+     * Writes the session, the same bytes as long as the session stays at the
+     * revision
+     *
+     * @param revision
+     *            the revision of the session, read before the call
+     */
+    public byte[] writeSession(Session session, long revision) throws IOException {
+        byte[] bytes = session.getSessionBody()
+                .get(revision);
+        if (bytes == null) {
+            bytes = mapper.writeValueAsBytes(session);
+            if (bytes.length <= MAX_CACHED_BYTES) {
+                session.getSessionBody()
+                        .put(revision, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Passes what is written on, keeping a copy until it grows past
+     * {@link #MAX_CACHED_BYTES}
+     */
+    private static class Copy extends OutputStream {
+
+        private final OutputStream out;
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private Copy(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (bytes != null) {
+                if (bytes.size() + len > MAX_CACHED_BYTES) {
+                    bytes = null;
+                } else {
+                    bytes.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Writes a page of users of the session, the output stream is not closed
+     *
+     * @param after
+     *            the name the page starts after, the decoded cursor given by
+     *            the previous page, null for the first page
+     * @param limit
+     *            the number of users of the page, up to
+     *            {@link #MAX_PAGE_SIZE}
+     */
+    public void writePage(Session session, String after, int limit, OutputStream out) throws IOException {
+        Page page = new Page(session.usersAfter(after)
+                .iterator(), Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeFieldName("users");
+            usersWriter.writeValue(generator, page);
+            if (page.last != null && page.users.hasNext()) {
+                generator.writeStringField("next", encodeCursor(page.last.getName()));
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * The users of a page, remembering the last one
+     */
+    private static class Page implements Iterator<User> {
+
+        private final Iterator<User> users;
+
+        private int remaining;
+
+        private User last;
+
+        private Page(Iterator<User> users, int size) {
+            this.users = users;
+            this.remaining = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0 && users.hasNext();
+        }
+
+        @Override
+        public User next() {
+            remaining--;
+            last = users.next();
+            return last;
+        }
+    }
+
+    private JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = mapper.getFactory()
+                .createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+
+    public static String encodeCursor(String name) {
+        return Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the name the page of the cursor starts after
+     * @throws IllegalArgumentException
+     *             if the cursor was not given by a page
+     */
+    public static String decodeCursor(String cursor) {
+        return new String(Base64.getUrlDecoder()
+                .decode(cursor), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.personalspace;
+
+import com.example.firebase.FirebaseMessage;
+import com.example.firebase.FirebaseMessagingService.Priority;
+import com.example.firebase.MessagingService;
+import com.example.firebase.TokenRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Notifies a user as soon as another user enters its personal space, that is
+ * comes within the distance of its preference.
+ *
+ * Whenever a user moves or changes its preference, only the users around it
+ * are looked at, through the spatial index of the session, up to the largest
+ * personal space in the session. Each pair of a user and an intruder is
+ * either inside or outside, and the user is notified when the pair goes from
+ * outside to inside. A pair notified is not notified again within the
+ * debounce interval, so a user stepping in and out at the edge does not
+ * flood the owner with messages. A pair outside is forgotten once its
+ * debounce interval has passed, so only the pairs inside or recently
+ * notified are kept, however many users ever met.
+ *
+ * The messages are high priority and sent through the messaging service,
+ * the users without a push token or with a token rejected by the server are
+ * skipped.
+ *
+ * @author aanal
+ *
+ */
+public class ViolationDetector implements SessionListener {
+
+    /**
+     * The default time in milli seconds before a pair is notified again
+     */
+    public static final long DEFAULT_DEBOUNCE = 30000;
+
+    private Logger logger = LogManager.getLogger(ViolationDetector.class);
+
+    private final MessagingService messagingService;
+
+    private final TokenRegistry tokenRegistry;
+
+    private final long debounceNanos;
+
+    private final ConcurrentMap<Long, Violations> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong evaluations = new AtomicLong();
+
+    private final AtomicLong violations = new AtomicLong();
+
+    private final AtomicLong notifications = new AtomicLong();
+
+    private final AtomicLong debounced = new AtomicLong();
+
+    /**
+     * @param messagingService
+     *            sends the notifications
+     * @param tokenRegistry
+     *            tells the tokens rejected by the server, may be null
+     * @param debounce
+     *            the time in milli seconds before a pair is notified again
+     */
+    public ViolationDetector(MessagingService messagingService, TokenRegistry tokenRegistry, long debounce) {
+        if (debounce < 0) {
+            throw new IllegalArgumentException("Invalid debounce interval: " + debounce);
+        }
+        this.messagingService = messagingService;
+        this.tokenRegistry = tokenRegistry;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounce);
+    }
+
+    /**
+     * A user and an intruder, inside or outside the personal space of the
+     * user
+     */
+    private static class Pair {
+
+        private final User owner;
+
+        private final User intruder;
+
+        private boolean inside;
+
+        private boolean notified;
+
+        private long lastNotified;
+
+        /**
+         * Forgotten by the session, a new pair is used instead
+         */
+        private boolean dropped;
+
+        private Pair(User owner, User intruder) {
+            this.owner = owner;
+            this.intruder = intruder;
+        }
+
+        /**
+         * @return 1 if the pair entered and is to be notified, 0 if it
+         *         entered within the debounce interval, -1 if it was inside,
+         *         -2 if the pair was dropped meanwhile
+         */
+        private synchronized int enter(long now, long debounceNanos) {
+            if (dropped) {
+                return -2;
+            }
+            if (inside) {
+                return -1;
+            }
+            inside = true;
+            if (notified && now - lastNotified < debounceNanos) {
+                return 0;
+            }
+            notified = true;
+            lastNotified = now;
+            return 1;
+        }
+
+        private synchronized void leave() {
+            inside = false;
+        }
+
+        private synchronized boolean isInside() {
+            return inside;
+        }
+
+        /**
+         * Marks the pair dropped if it holds nothing worth keeping, that is
+         * it is outside and would be notified on entering again
+         *
+         * @return true if dropped
+         */
+        private synchronized boolean drop(long now, long debounceNanos) {
+            if (!dropped && !inside && (!notified || now - lastNotified >= debounceNanos)) {
+                dropped = true;
+            }
+            return dropped;
+        }
+    }
+
+    /**
+     * The pairs of a session
+     */
+    private static class Violations {
+
+        /**
+         * The pairs by owner, then intruder
+         */
+        private final ConcurrentMap<User, ConcurrentMap<User, Pair>> pairs = new ConcurrentHashMap<>();
+
+        /**
+         * The pairs inside, by each of their users
+         */
+        private final ConcurrentMap<User, Set<Pair>> inside = new ConcurrentHashMap<>();
+
+        /**
+         * The pairs that left within their debounce interval, in the order
+         * they left
+         */
+        private final Queue<Pair> leaving = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The largest personal space seen in the session, it never shrinks
+         * so no neighbourhood is looked at too narrowly
+         */
+        private volatile double maxDistance;
+
+        private void raise(double distance) {
+            if (distance > maxDistance) {
+                synchronized (this) {
+                    if (distance > maxDistance) {
+                        maxDistance = distance;
+                    }
+                }
+            }
+        }
+
+        private Pair pair(User owner, User intruder) {
+            return pairs.computeIfAbsent(owner, key -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(intruder, key -> new Pair(owner, intruder));
+        }
+
+        private Set<Pair> inside(User user) {
+            return inside.computeIfAbsent(user, key -> ConcurrentHashMap.newKeySet());
+        }
+
+        private void leave(Pair pair, long now, long debounceNanos) {
+            pair.leave();
+            remove(pair.owner, pair);
+            remove(pair.intruder, pair);
+            if (!drop(pair, now, debounceNanos)) {
+                leaving.add(pair);
+            }
+        }
+
+        /**
+         * Forgets the pair if it may be, a pair inside again or still within
+         * its debounce interval is kept
+         *
+         * @return true if the pair is forgotten
+         */
+        private boolean drop(Pair pair, long now, long debounceNanos) {
+            if (!pair.drop(now, debounceNanos)) {
+                return false;
+            }
+            ConcurrentMap<User, Pair> intruders = pairs.get(pair.owner);
+            if (intruders != null) {
+                intruders.remove(pair.intruder, pair);
+            }
+            return true;
+        }
+
+        /**
+         * Forgets the pairs that left and whose debounce interval has passed
+         * since
+         */
+        private void sweep(long now, long debounceNanos) {
+            Pair pair;
+            while ((pair = leaving.peek()) != null) {
+                if (pair.isInside()) {
+                    // queued again once it leaves
+                    leaving.remove(pair);
+                } else if (drop(pair, now, debounceNanos)) {
+                    leaving.remove(pair);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private int size() {
+            int size = 0;
+            for (ConcurrentMap<User, Pair> intruders : pairs.values()) {
+                size += intruders.size();
+            }
+            return size;
+        }
+
+        private void remove(User user, Pair pair) {
+            Set<Pair> entered = inside.get(user);
+            if (entered != null) {
+                entered.remove(pair);
+            }
+        }
+
+        private void forget(User user) {
+            Set<Pair> entered = inside.remove(user);
+            if (entered != null) {
+                for (Pair pair : entered) {
+                    pair.leave();
+                    remove(pair.owner, pair);
+                    remove(pair.intruder, pair);
+                }
+            }
+            pairs.remove(user);
+            for (ConcurrentMap<User, Pair> intruders : pairs.values()) {
+                intruders.remove(user);
+            }
+        }
+    }
+
+    @Override
+    public void started(Session session) {
+        sessions.putIfAbsent(session.getId(), new Violations());
+    }
+
+    @Override
+    public void closed(Session session) {
+        sessions.remove(session.getId());
+    }
+
+    @Override
+    public void userRemoved(Session session, User user) {
+        Violations state = sessions.get(session.getId());
+        if (state != null) {
+            state.forget(user);
+        }
+    }
+
+    @Override
+    public void preferenceUpdated(Session session, User user) {
+        evaluate(session, user);
+    }
+
+    @Override
+    public void locationUpdated(Session session, User user) {
+        evaluate(session, user);
+    }
+
+    /**
+     * Finds the pairs of the user inside now, notifying the ones that entered
+     * and letting go of the ones that left
+     */
+    private void evaluate(Session session, User user) {
+        if (session.getStatus() != Session.Status.ACTIVE) {
+            return;
+        }
+        Violations state = sessions.computeIfAbsent(session.getId(), id -> new Violations());
+        evaluations.incrementAndGet();
+        Location location = user.getLocation();
+        double own = distanceOf(user);
+        state.raise(own);
+
+        Set<Pair> now = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (location != null && session.getActiveUsers()
+                .get(user.getName()) == user) {
+            List<SpatialIndex.Neighbour> around = session.getIndex()
+                    .within(location.getX(), location.getY(), Math.max(own, state.maxDistance), user);
+            for (SpatialIndex.Neighbour neighbour : around) {
+                User other = neighbour.getUser();
+                if (neighbour.getDistance() <= own) {
+                    now.add(state.pair(user, other));
+                }
+                if (neighbour.getDistance() <= distanceOf(other)) {
+                    now.add(state.pair(other, user));
+                }
+            }
+        }
+
+        long time = System.nanoTime();
+        Set<Pair> before = state.inside.get(user);
+        for (Pair pair : before == null ? Collections.<Pair> emptyList() : new ArrayList<>(before)) {
+            if (!now.contains(pair)) {
+                state.leave(pair, time, debounceNanos);
+            }
+        }
+        state.sweep(time, debounceNanos);
+        for (Pair found : now) {
+            Pair pair = found;
+            int entered;
+            while ((entered = pair.enter(time, debounceNanos)) == -2) {
+                // dropped since it was looked up
+                pair = state.pair(pair.owner, pair.intruder);
+            }
+            if (entered < 0) {
+                continue;
+            }
+            state.inside(pair.owner)
+                    .add(pair);
+            state.inside(pair.intruder)
+                    .add(pair);
+            violations.incrementAndGet();
+            if (entered == 0) {
+                debounced.incrementAndGet();
+            } else {
+                notifyOwner(session, pair);
+            }
+        }
+    }
+
+    private void notifyOwner(Session session, Pair pair) {
+        String token = pair.owner.getPushToken();
+        if (token == null || (tokenRegistry != null && tokenRegistry.isDead(token))) {
+            return;
+        }
+        Location owner = pair.owner.getLocation();
+        Location intruder = pair.intruder.getLocation();
+        try {
+            JSONObject data = new JSONObject();
+            data.put("type", "violation");
+            data.put("session", session.getId());
+            data.put("intruder", pair.intruder.getName());
+            if (owner != null && intruder != null) {
+                data.put("distance", owner.distanceTo(intruder.getX(), intruder.getY()));
+            }
+            JSONObject payload = new JSONObject();
+            payload.put("data", data);
+            FirebaseMessage message = new FirebaseMessage(pair.owner.getName(), payload, token, Priority.high);
+            message.setSessionId(session.getId());
+            messagingService.sendMessage(message);
+            notifications.incrementAndGet();
+        } catch (JSONException e) {
+            logger.error("Could not create the violation message", e);
+        } catch (RuntimeException e) {
+            logger.error("Could not send the violation message to " + pair.owner.getName(), e);
+        }
+    }
+
+    private static double distanceOf(User user) {
+        Preference pref = user.getPref();
+        return pref == null ? 0 : pref.getDistance();
+    }
+
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of times a user entered the personal space of
+     *         another
+     */
+    public long getViolations() {
+        return violations.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getDebounced() {
+        return debounced.get();
+    }
+
+    /**
+     * @return the number of pairs kept over all sessions, inside or within
+     *         their debounce interval
+     */
+    public int getPairCount() {
+        int count = 0;
+        for (Violations state : sessions.values()) {
+            count += state.size();
+        }
+        return count;
+    }
+
+    /**
+     * Converts the statistics into json
+     *
+     * @return the evaluations, violations, notifications sent and violations
+     *         not notified within the debounce interval, and the pairs kept
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("pairs", getPairCount());
+        obj.put("evaluations", evaluations.get());
+        obj.put("violations", violations.get());
+        obj.put("notifications", notifications.get());
+        obj.put("debounced", debounced.get());
+        return obj;
+    }
+}
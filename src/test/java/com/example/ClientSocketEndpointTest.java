@@ -0,0 +1,204 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.example.firebase.ClientSockets;
+import com.example.personalspace.SessionRegistry;
+import com.example.personalspace.User;
+import java.util.ArrayList;
+import java.util.List;
+import javax.websocket.CloseReason;
+import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class ClientSocketEndpointTest {
+
+    private ClientSockets sockets;
+
+    private SessionRegistry registry;
+
+    private com.example.personalspace.Session study;
+
+    private Session session;
+
+    private RemoteEndpoint.Async remote;
+
+    /**
+     * The writes not completed yet
+     */
+    private List<SendHandler> writing;
+
+    @Before
+    public void setUp() {
+        sockets = new ClientSockets();
+        registry = new SessionRegistry(10);
+        registry.addListener(ClientSocketEndpoint.sessionListener(sockets));
+        study = registry.start("study");
+        join(study, "alice");
+        join(study, "bob");
+        session = mock(Session.class);
+        remote = mock(RemoteEndpoint.Async.class);
+        writing = new ArrayList<>();
+        when(session.isOpen()).thenReturn(true);
+        when(session.getAsyncRemote()).thenReturn(remote);
+        doAnswer(invocation -> {
+            writing.add((SendHandler) invocation.getArguments()[1]);
+            return null;
+        }).when(remote)
+                .sendText(anyString(), any(SendHandler.class));
+    }
+
+    @Test
+    public void testRegistrationUntilClosed() throws Exception {
+        ClientSocketEndpoint endpoint = new ClientSocketEndpoint(sockets, registry, "pass");
+        MessageHandler.Whole<String> handler = open(endpoint);
+
+        handler.onMessage(registration(study, "alice", "token", "token-alice"));
+        assertNotNull(sockets.get(study.getId(), "alice"));
+        verify(remote).sendText(eq("{\"registered\":\"alice\"}"), any(SendHandler.class));
+
+        handler.onMessage(registration(study, "bob", "passkey", "pass"));
+        assertNull(sockets.get(study.getId(), "alice"));
+        assertNotNull(sockets.get(study.getId(), "bob"));
+
+        endpoint.onClose(session, new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, ""));
+        assertEquals(0, sockets.getConnectedCount());
+    }
+
+    @Test
+    public void testWrongTokenIsRefused() throws Exception {
+        MessageHandler.Whole<String> handler = open(new ClientSocketEndpoint(sockets, registry, "pass"));
+
+        send(handler, registration(study, "alice", "token", "token-bob"));
+        send(handler, registration(study, "alice", "passkey", "guess"));
+        send(handler, registration(study, "alice", "token", null));
+        send(handler, registration(study, "carol", "passkey", "pass"));
+        send(handler, "{\"user\": \"alice\", \"token\": \"token-alice\"}");
+
+        assertEquals(0, sockets.getConnectedCount());
+        verify(remote, times(4)).sendText(eq("{\"error\":\"Could not verify the user in the session\"}"),
+                any(SendHandler.class));
+
+        // nor once the session is closed
+        registry.close(study);
+        handler.onMessage(registration(study, "alice", "token", "token-alice"));
+        assertEquals(0, sockets.getConnectedCount());
+    }
+
+    @Test
+    public void testSameNameInTwoSessionsIsKeptApart() throws Exception {
+        com.example.personalspace.Session other = registry.start("other");
+        join(other, "alice");
+        ClientSocketEndpoint first = new ClientSocketEndpoint(sockets, registry, "pass");
+        ClientSocketEndpoint second = new ClientSocketEndpoint(sockets, registry, "pass");
+
+        open(first).onMessage(registration(study, "alice", "token", "token-alice"));
+        open(second).onMessage(registration(other, "alice", "token", "token-alice"));
+        assertEquals(2, sockets.getConnectedCount());
+
+        first.onClose(session, new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, ""));
+        assertNull(sockets.get(study.getId(), "alice"));
+        assertNotNull(sockets.get(other.getId(), "alice"));
+    }
+
+    @Test
+    public void testRegistrationEndsWhenTheUserLeaves() throws Exception {
+        open(new ClientSocketEndpoint(sockets, registry, "pass")).onMessage(registration(study, "alice", "token",
+                "token-alice"));
+        open(new ClientSocketEndpoint(sockets, registry, "pass")).onMessage(registration(study, "bob", "token",
+                "token-bob"));
+        assertEquals(2, sockets.getConnectedCount());
+
+        // another alice joining is not written to the socket of the first
+        study.removeUser("alice");
+        join(study, "alice");
+        assertNull(sockets.get(study.getId(), "alice"));
+        assertNotNull(sockets.get(study.getId(), "bob"));
+
+        registry.close(study);
+        assertNull(sockets.get(study.getId(), "bob"));
+        assertEquals(0, sockets.getConnectedCount());
+    }
+
+    @Test
+    public void testWritesOneAtATime() throws Exception {
+        ClientSocketEndpoint.SocketConnection connection = new ClientSocketEndpoint.SocketConnection(session);
+        List<Throwable> results = new ArrayList<>();
+        for (int i = 0; i < ClientSocketEndpoint.MAX_PENDING + 1; i++) {
+            connection.send("message " + i, results::add);
+        }
+        // the first is being written, the last was refused
+        verify(remote, times(1)).sendText(anyString(), any(SendHandler.class));
+        assertEquals(1, results.size());
+        assertNotNull(results.get(0));
+
+        writing.get(0)
+                .onResult(new SendResult());
+        verify(remote).sendText(eq("message 1"), any(SendHandler.class));
+        assertEquals(2, results.size());
+        assertNull(results.get(1));
+
+        Exception broken = new Exception("Broken pipe");
+        writing.get(1)
+                .onResult(new SendResult(broken));
+        assertSame(broken, results.get(2));
+    }
+
+    /**
+     * Hands the text to the endpoint and completes its reply
+     */
+    private void send(MessageHandler.Whole<String> handler, String text) {
+        handler.onMessage(text);
+        writing.get(writing.size() - 1)
+                .onResult(new SendResult());
+    }
+
+    @SuppressWarnings("unchecked")
+    private MessageHandler.Whole<String> open(ClientSocketEndpoint endpoint) {
+        reset(session);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getAsyncRemote()).thenReturn(remote);
+        endpoint.onOpen(session, null);
+        ArgumentCaptor<MessageHandler.Whole<String>> handler = ArgumentCaptor.forClass(
+                (Class<MessageHandler.Whole<String>>) (Class<?>) MessageHandler.Whole.class);
+        verify(session).addMessageHandler(eq(String.class), handler.capture());
+        return handler.getValue();
+    }
+
+    private static String registration(com.example.personalspace.Session session, String name, String key,
+            String secret) throws Exception {
+        JSONObject request = new JSONObject();
+        request.put("session", session.getId());
+        request.put("user", name);
+        if (secret != null) {
+            request.put(key, secret);
+        }
+        return request.toString();
+    }
+
+    private static void join(com.example.personalspace.Session session, String name) {
+        User user = new User();
+        user.setName(name);
+        user.setPushToken("token-" + name);
+        session.addUser(user);
+    }
+}
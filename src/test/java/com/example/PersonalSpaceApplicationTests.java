@@ -1,36 +1,61 @@
 package com.example;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 
+import com.example.firebase.FirebaseMessage;
+import com.example.firebase.FirebaseMessagingService.Priority;
+import com.example.firebase.FirebaseThreadedMessagingService;
+import com.example.firebase.Message;
 import com.example.firebase.MessagingService;
+import com.example.firebase.RetryScheduler;
+import com.example.personalspace.PushTokenRegistry;
 import com.example.personalspace.User;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockServletContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(classes = { MockServletContext.class, MockServerConfiguration.class })
@@ -50,19 +75,27 @@ public class PersonalSpaceApplicationTests {
     @Autowired
     private MessagingService messagingService;
 
+    private RetryScheduler retryScheduler;
+
     @Autowired
     private ServerConfiguration config;
 
+    @Autowired
+    private PushTokenRegistry tokenRegistry;
+
     private MockMvc mockMvc;
 
     @Before
     public void setUp() {
         mockMvc = standaloneSetup(controller).build();
         reset(messagingService);
+        // never retries within a test
+        retryScheduler = new RetryScheduler(60000, 60000, 1);
     }
 
     @After
     public void tearDown() throws Exception {
+        retryScheduler.shutdown();
         Map<String, String> request = new HashMap<>();
         request.put("status", "INACTIVE");
         request.put("name", "test session");
@@ -360,6 +393,31 @@ public class PersonalSpaceApplicationTests {
         mockMvc.perform(put("/sessions/users/" + username).contentType(MediaType.APPLICATION_JSON)
                 .content(request.toString()))
                 .andExpect(status().isOk());
+
+        // the preference the user joined with, then the update
+        String response = mockMvc.perform(get("/sessions/users/" + username + "/preferences")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        JSONObject json = new JSONObject(response);
+        assertEquals(2, json.getJSONArray("distance")
+                .length());
+        assertEquals(10.5, json.getJSONArray("distance")
+                .getDouble(1), 0);
+
+        response = mockMvc.perform(get("/sessions/users/" + username + "/preferences").param("interval", "" + Long.MAX_VALUE)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        json = new JSONObject(response);
+        assertEquals(2, json.getJSONArray("count")
+                .getInt(0));
+        assertEquals(10.5, json.getJSONArray("last")
+                .getDouble(0), 0);
     }
 
     @Test
@@ -379,10 +437,134 @@ public class PersonalSpaceApplicationTests {
         assertEquals(1, names.length);
 
         // get the list of users
-        mockMvc.perform(get("/sessions/users").accept(MediaType.APPLICATION_JSON))
+        MvcResult result = mockMvc.perform(get("/sessions/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andExpect(status().isOk())
+                .andReturn();
+        JSONArray json = new JSONArray(streamed(result));
+        assertEquals(1, json.length());
+        assertEquals(names[0], json.getJSONObject(0)
+                .getString("name"));
+    }
+
+    @Test
+    public void testUsersByPage() throws Exception {
+        testCreateSession();
+        for (String name : new String[] { "page e", "page c", "page a", "page d", "page b" }) {
+            mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                    .content(userRequest(name).toString()))
+                    .andExpect(status().isOk());
+        }
+
+        List<String> listed = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            MockHttpServletRequestBuilder page = get("/sessions/users").param("limit", "2")
+                    .accept(MediaType.APPLICATION_JSON);
+            if (cursor != null) {
+                page.param("cursor", cursor);
+            }
+            MvcResult result = mockMvc.perform(page)
+                    .andExpect(status().isOk())
+                    .andReturn();
+            JSONObject json = new JSONObject(streamed(result));
+            for (int i = 0; i < json.getJSONArray("users")
+                    .length(); i++) {
+                listed.add(json.getJSONArray("users")
+                        .getJSONObject(i)
+                        .getString("name"));
+            }
+            cursor = json.has("next") ? json.getString("next") : null;
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList("page a", "page b", "page c", "page d", "page e"), listed);
+
+        mockMvc.perform(get("/sessions/users").param("cursor", "not base64!")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testConditionalGet() throws Exception {
+        testAddUserToSession();
+        long sessionId = controller.getSession()
+                .getId();
+
+        MvcResult first = mockMvc.perform(get("/sessions/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        String body = streamed(first);
+        String etag = first.getResponse()
+                .getHeader("ETag");
+        assertNotNull(etag);
+
+        // unchanged, the poll is answered without a body
+        mockMvc.perform(get("/sessions/users").header("If-None-Match", etag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotModified());
+        // a poll without the tag is written from the cached body
+        MvcResult again = mockMvc.perform(get("/sessions/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(body, streamed(again));
+        assertEquals(etag, again.getResponse()
+                .getHeader("ETag"));
+
+        MvcResult session = mockMvc.perform(get("/sessions/" + sessionId).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        String sessionTag = session.getResponse()
+                .getHeader("ETag");
+        assertEquals(sessionId, new JSONObject(session.getResponse()
+                .getContentAsString()).getLong("id"));
+        mockMvc.perform(get("/sessions/" + sessionId).header("If-None-Match", sessionTag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotModified());
+
+        // any change gives a new tag
+        mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                .content(userRequest("another user").toString()))
+                .andExpect(status().isOk());
+        MvcResult changed = mockMvc.perform(get("/sessions/users").header("If-None-Match", etag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(2, new JSONArray(streamed(changed)).length());
+        mockMvc.perform(get("/sessions/" + sessionId).header("If-None-Match", sessionTag)
+                .accept(MediaType.APPLICATION_JSON))
                 .andExpect(status().isOk());
     }
 
+    @Test
+    public void testSessionEvents() throws Exception {
+        testCreateSession();
+        long sessionId = controller.getSession()
+                .getId();
+
+        MvcResult result = mockMvc.perform(get("/sessions/" + sessionId + "/events"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                .content(userRequest("watched user").toString()))
+                .andExpect(status().isOk());
+
+        // closing the session ends the stream
+        tearDown();
+        result.getAsyncResult(5000);
+        String stream = result.getResponse()
+                .getContentAsString();
+        assertTrue(stream, stream.contains("event:subscribed"));
+        assertTrue(stream, stream.contains("event:userAdded"));
+        assertTrue(stream, stream.contains("\"name\":\"watched user\""));
+        assertTrue(stream, stream.indexOf("event:closed") > stream.indexOf("event:userAdded"));
+
+        mockMvc.perform(get("/sessions/" + sessionId + "/events"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     public void testNotifyUser() throws Exception {
         // create the session and the user
@@ -415,6 +597,111 @@ public class PersonalSpaceApplicationTests {
         verify(messagingService, times(1)).sendMessage(any());
     }
 
+    @Test
+    public void testNotifyUserAndWait() throws Exception {
+        String username = addUserAndGetName();
+        JSONObject req = new JSONObject();
+        req.put("passkey", config.getSessionPass());
+        req.put("message", new JSONObject().put("test", "test"));
+
+        MvcResult result = mockMvc.perform(post("/sessions/users/" + username + "/notify").param("wait", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        // answered once the server responded, not when queued
+        assertFalse(WebAsyncUtils.getAsyncManager(result.getRequest())
+                .hasConcurrentResult());
+        respond(sentMessage(), HttpStatus.OK, new JSONObject().put("message_id", "message-1"));
+        JSONObject json = new JSONObject(mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString());
+        assertEquals(true, json.getBoolean("delivered"));
+        assertEquals("message-1", json.getJSONArray("results")
+                .getJSONObject(0)
+                .getString("messageId"));
+
+        reset(messagingService);
+        result = mockMvc.perform(post("/sessions/users/" + username + "/notify").param("wait", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andReturn();
+        respond(sentMessage(), HttpStatus.OK, new JSONObject().put("error", "NotRegistered"));
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadGateway());
+
+        // rejected before anything is sent
+        reset(messagingService);
+        req.put("passkey", "wrong");
+        result = mockMvc.perform(post("/sessions/users/" + username + "/notify").param("wait", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isUnauthorized());
+        verify(messagingService, times(0)).sendMessage(any());
+    }
+
+    @Test
+    public void testNotifyUserAndWaitWhileRetrying() throws Exception {
+        String username = addUserAndGetName();
+        JSONObject req = new JSONObject();
+        req.put("passkey", config.getSessionPass());
+        req.put("message", new JSONObject().put("test", "test"));
+
+        MvcResult result = mockMvc.perform(post("/sessions/users/" + username + "/notify").param("wait", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        respond(sentMessage(), HttpStatus.SERVICE_UNAVAILABLE, null);
+
+        JSONObject json = new JSONObject(mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isAccepted())
+                .andReturn()
+                .getResponse()
+                .getContentAsString());
+        assertEquals(false, json.getBoolean("delivered"));
+        assertEquals(true, json.getBoolean("retrying"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE.value(), json.getInt("serverStatus"));
+        assertEquals(1, retryScheduler.getRetriesScheduled());
+    }
+
+    private String addUserAndGetName() throws Exception {
+        testAddUserToSession();
+        reset(messagingService);
+        return URLEncoder.encode(controller.getSession()
+                .getActiveUsers()
+                .keySet()
+                .iterator()
+                .next(), "utf-8");
+    }
+
+    /**
+     * @return the message the controller handed to the messaging service
+     */
+    private Message sentMessage() throws Exception {
+        ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+        verify(messagingService).sendMessage(message.capture());
+        return message.getValue();
+    }
+
+    /**
+     * Handles the response of the FCM server to the message as the threaded
+     * messaging service would
+     */
+    private void respond(Message message, HttpStatus status, JSONObject result) {
+        FirebaseThreadedMessagingService responses = new FirebaseThreadedMessagingService("key", new RestTemplate());
+        responses.setRetryScheduler(retryScheduler);
+        JSONArray results = new JSONArray();
+        if (result != null) {
+            results.put(result);
+        }
+        responses.handleResponse(message, status, new HttpHeaders(), results);
+    }
+
     @Test
     public void testNotifyUserWithoutSession() throws Exception {
         // make the request
@@ -463,4 +750,370 @@ public class PersonalSpaceApplicationTests {
         verify(messagingService, times(0)).sendMessage(any());
     }
 
+    @Test
+    public void testNotifyUserWithDeadToken() throws Exception {
+        // create the session and the user
+        testAddUserToSession();
+
+        // the server reported the token as no longer registered
+        tokenRegistry.removeToken("test user", "push token");
+
+        JSONObject req = new JSONObject();
+        req.put("passkey", config.getSessionPass());
+        JSONObject message = new JSONObject();
+        message.put("test", "test");
+        req.put("message", message);
+
+        mockMvc.perform(post(("/sessions/users/" + URLEncoder.encode("test user", "utf-8") + "/notify"))
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andExpect(status().isGone());
+
+        verify(messagingService, times(0)).sendMessage(any());
+    }
+
+    @Test
+    public void testNotifyUserWithPriority() throws Exception {
+        // create the session and the user
+        testAddUserToSession();
+
+        JSONObject req = new JSONObject();
+        req.put("passkey", config.getSessionPass());
+        req.put("priority", "high");
+        JSONObject message = new JSONObject();
+        message.put("test", "test");
+        req.put("message", message);
+
+        mockMvc.perform(post(("/sessions/users/" + URLEncoder.encode("test user", "utf-8") + "/notify"))
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andExpect(status().isOk());
+
+        ArgumentCaptor<FirebaseMessage> sent = ArgumentCaptor.forClass(FirebaseMessage.class);
+        verify(messagingService, times(1)).sendMessage(sent.capture());
+        assertEquals(Priority.high, sent.getValue()
+                .getPriority());
+        assertEquals("high", sent.getValue()
+                .getPayload()
+                .getString("priority"));
+
+        // an unknown priority is rejected
+        req.put("priority", "urgent");
+        mockMvc.perform(post(("/sessions/users/" + URLEncoder.encode("test user", "utf-8") + "/notify"))
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(req.toString()))
+                .andExpect(status().isBadRequest());
+        verify(messagingService, times(1)).sendMessage(any());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final int threads = 8;
+        final int usersPerThread = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // only one of the concurrent requests starts a session
+            final JSONObject sessionRq = new JSONObject();
+            sessionRq.put("status", "ACTIVE");
+            sessionRq.put("name", "test session");
+            sessionRq.put("passkey", config.getSessionPass());
+            int created = 0;
+            for (int status : runConcurrently(pool, threads, () -> mockMvc
+                    .perform(post("/sessions").contentType(MediaType.APPLICATION_JSON)
+                            .content(sessionRq.toString()))
+                    .andReturn()
+                    .getResponse()
+                    .getStatus())) {
+                if (status == 201) {
+                    created++;
+                }
+            }
+            assertEquals(1, created);
+
+            // only one of the concurrent requests adds the same user
+            final JSONObject sharedRq = userRequest("shared user");
+            int added = 0;
+            for (int status : runConcurrently(pool, threads, () -> mockMvc
+                    .perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                            .content(sharedRq.toString()))
+                    .andReturn()
+                    .getResponse()
+                    .getStatus())) {
+                if (status == 200) {
+                    added++;
+                }
+            }
+            assertEquals(1, added);
+
+            // every thread adds, updates, lists and removes users of its own
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(pool.submit(() -> {
+                    JSONObject prefRq = new JSONObject();
+                    prefRq.put("pref", new JSONObject().put("distance", 2.5));
+                    for (int i = 0; i < usersPerThread; i++) {
+                        String name = "user " + thread + " " + i;
+                        String path = "/sessions/users/" + URLEncoder.encode(name, "utf-8");
+                        mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                                .content(userRequest(name).toString()))
+                                .andExpect(status().isOk());
+                        mockMvc.perform(put(path).contentType(MediaType.APPLICATION_JSON)
+                                .content(prefRq.toString()))
+                                .andExpect(status().isOk());
+                        mockMvc.perform(get("/sessions/users").accept(MediaType.APPLICATION_JSON))
+                                .andExpect(status().isOk());
+                        if (i % 2 == 1) {
+                            mockMvc.perform(delete(path))
+                                    .andExpect(status().isOk());
+                        }
+                    }
+                    return 0;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Map<String, User> users = controller.getSession()
+                .getActiveUsers();
+        assertEquals(1 + threads * usersPerThread / 2, users.size());
+        assertEquals(users.size(), controller.getSession()
+                .getUsers().length);
+        assertEquals(2.5, users.get("user 0 0")
+                .getPref()
+                .getDistance(), 0);
+    }
+
+    @Test
+    public void testNearbyUsers() throws Exception {
+        testCreateSession();
+        String[] names = { "near a", "near b", "near c", "near d" };
+        double[][] locations = { { 0, 0 }, { 3, 4 }, { 20, 0 } };
+        for (int i = 0; i < names.length; i++) {
+            mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                    .content(userRequest(names[i]).toString()))
+                    .andExpect(status().isOk());
+        }
+        for (int i = 0; i < locations.length; i++) {
+            JSONObject location = new JSONObject();
+            location.put("x", locations[i][0]);
+            location.put("y", locations[i][1]);
+            mockMvc.perform(put("/sessions/users/" + URLEncoder.encode(names[i], "utf-8") + "/location")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(location.toString()))
+                    .andExpect(status().isOk());
+        }
+
+        // only b is within the 10.5 of a
+        String response = mockMvc.perform(get("/sessions/users/" + URLEncoder.encode("near a", "utf-8") + "/nearby")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        JSONObject json = new JSONObject(response);
+        assertEquals(1, json.getJSONArray("users")
+                .length());
+        assertEquals("near b", json.getJSONArray("users")
+                .getJSONObject(0)
+                .getString("name"));
+        assertEquals(5, json.getJSONArray("users")
+                .getJSONObject(0)
+                .getDouble("distance"), 1e-9);
+
+        // a moves next to c
+        JSONObject location = new JSONObject();
+        location.put("x", 19);
+        location.put("y", 0);
+        mockMvc.perform(put("/sessions/users/" + URLEncoder.encode("near a", "utf-8") + "/location")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(location.toString()))
+                .andExpect(status().isOk());
+        response = mockMvc.perform(get("/sessions/users/" + URLEncoder.encode("near a", "utf-8") + "/nearby")
+                .param("count", "1")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        assertEquals("near c", new JSONObject(response).getJSONArray("users")
+                .getJSONObject(0)
+                .getString("name"));
+
+        // d has not reported a location, e is not in the session
+        mockMvc.perform(get("/sessions/users/" + URLEncoder.encode("near d", "utf-8") + "/nearby")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isConflict());
+        mockMvc.perform(put("/sessions/users/" + URLEncoder.encode("near e", "utf-8") + "/location")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(location.toString()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(put("/sessions/users/" + URLEncoder.encode("near d", "utf-8") + "/location")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(new JSONObject().put("x", 1)
+                        .toString()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testTelemetry() throws Exception {
+        testCreateSession();
+        mockMvc.perform(post("/sessions/users").contentType(MediaType.APPLICATION_JSON)
+                .content(userRequest("walker").toString()))
+                .andExpect(status().isOk());
+
+        String response = mockMvc.perform(post("/sessions/telemetry").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"walker\": [[1000, 0, 0, 45], [1100, 0.5, 0], [1200, 1, 0.25]], \"nobody\": [[1000, 0, 0]]}"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        JSONObject json = new JSONObject(response);
+        assertEquals(3, json.getInt("accepted"));
+        assertEquals(1, json.getInt("rejected"));
+
+        response = mockMvc.perform(get("/sessions/users/walker/telemetry").param("from", "1100")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        json = new JSONObject(response);
+        assertEquals(2, json.getJSONArray("t")
+                .length());
+        assertEquals(1200, json.getJSONArray("t")
+                .getLong(1));
+        assertEquals(0.25, json.getJSONArray("y")
+                .getDouble(1), 1e-9);
+        assertEquals(JSONObject.NULL, json.getJSONArray("heading")
+                .get(0));
+
+        mockMvc.perform(post("/sessions/telemetry").contentType(MediaType.APPLICATION_JSON)
+                .content("[[1000, 0, 0]]"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/sessions/users/nobody/telemetry").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testBulkEnrollment() throws Exception {
+        testCreateSession();
+        int tokens = tokenRegistry.getTokenCount();
+        String body = "[" + userRequest("cohort a") + "," + userRequest("cohort b") + "," + userRequest("cohort a")
+                + "]";
+        String response = mockMvc.perform(post("/sessions/users/bulk").contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        JSONObject json = new JSONObject(response);
+        assertEquals(2, json.getInt("added"));
+        assertEquals(1, json.getInt("duplicates"));
+        assertEquals(2, json.getJSONArray("failures")
+                .getJSONObject(0)
+                .getInt("index"));
+        assertEquals(2, controller.getSession()
+                .getActiveUsers()
+                .size());
+        assertEquals(tokens + 2, tokenRegistry.getTokenCount());
+
+        mockMvc.perform(post("/sessions/users/bulk").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\": \"cohort c\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    /**
+     * Waits for the body streamed by the request
+     */
+    private static String streamed(MvcResult result) throws Exception {
+        result.getAsyncResult();
+        return result.getResponse()
+                .getContentAsString();
+    }
+
+    private static JSONObject userRequest(String name) throws Exception {
+        JSONObject userRq = new JSONObject();
+        userRq.put("name", name);
+        userRq.put("pushToken", "push token " + name);
+        userRq.put("pref", new JSONObject().put("distance", 10.5));
+        return userRq;
+    }
+
+    /**
+     * Runs the request from all threads at once
+     *
+     * @return the statuses of the responses
+     */
+    private static List<Integer> runConcurrently(ExecutorService pool, int threads, Callable<Integer> request)
+            throws Exception {
+        List<Callable<Integer>> requests = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            requests.add(request);
+        }
+        List<Integer> statuses = new ArrayList<>();
+        for (Future<Integer> status : pool.invokeAll(requests)) {
+            statuses.add(status.get());
+        }
+        return statuses;
+    }
+
+    @Test
+    public void testParallelSessions() throws Exception {
+        long[] ids = new long[2];
+        for (int i = 0; i < ids.length; i++) {
+            JSONObject request = new JSONObject();
+            request.put("status", "ACTIVE");
+            request.put("name", "study " + i);
+            request.put("passkey", config.getSessionPass());
+            String response = mockMvc.perform(post("/sessions").contentType(MediaType.APPLICATION_JSON)
+                    .content(request.toString()))
+                    .andExpect(status().isCreated())
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsString();
+            ids[i] = new JSONObject(response).getJSONObject("session")
+                    .getLong("id");
+        }
+
+        // the same user joins both sessions
+        for (long id : ids) {
+            mockMvc.perform(post("/sessions/" + id + "/users").contentType(MediaType.APPLICATION_JSON)
+                    .content(userRequest("test user").toString()))
+                    .andExpect(status().isOk());
+        }
+        JSONObject prefRq = new JSONObject();
+        prefRq.put("pref", new JSONObject().put("distance", 3));
+        mockMvc.perform(put("/sessions/" + ids[0] + "/users/" + URLEncoder.encode("test user", "utf-8"))
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(prefRq.toString()))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/sessions/" + ids[1] + "/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        mockMvc.perform(post("/sessions/12345/users").contentType(MediaType.APPLICATION_JSON)
+                .content(userRequest("test user").toString()))
+                .andExpect(status().isNotFound());
+
+        // closing the first session by id leaves the second one running
+        Map<String, String> close = new HashMap<>();
+        close.put("status", "INACTIVE");
+        close.put("name", "study 0");
+        close.put("id", String.valueOf(ids[0]));
+        close.put("passkey", config.getSessionPass());
+        controller.sessionOperation(close);
+
+        mockMvc.perform(get("/sessions/" + ids[0]).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/sessions/" + ids[1]).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        mockMvc.perform(delete("/sessions/" + ids[1] + "/users/" + URLEncoder.encode("test user", "utf-8")))
+                .andExpect(status().isOk());
+        assertEquals(0, controller.getSession()
+                .getActiveUsers()
+                .size());
+    }
 }
@@ -0,0 +1,58 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.RestTemplate;
+
+public class DeliveryMetricsTest {
+
+    @Test
+    public void testErrorsAreCountedByName() {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        metrics.error("MessageTooBig");
+        metrics.error("MessageTooBig");
+        metrics.error("SomethingNew");
+
+        assertEquals(2, metrics.getErrorCount("MessageTooBig"));
+        assertEquals(0, metrics.getErrorCount("Unavailable"));
+        assertEquals(1, metrics.getErrorCount("Other"));
+    }
+
+    @Test
+    public void testRequestsInFlight() {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        long first = metrics.requestStarted();
+        long second = metrics.requestStarted();
+        assertEquals(2, metrics.getInFlight());
+
+        metrics.requestCompleted(first, 200);
+        metrics.requestFailed(second);
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(1, metrics.getTransportErrors());
+        assertEquals(2, metrics.getHttpTime()
+                .getCount());
+    }
+
+    @Test
+    public void testResponsesAreRecorded() throws JSONException {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", new RestTemplate());
+        DeliveryMetrics metrics = service.getMetrics();
+
+        JSONArray results = new JSONArray();
+        results.put(new JSONObject().put("message_id", "1"));
+        results.put(new JSONObject().put("error", "DeviceMessageRateExceeded"));
+        FirebaseMulticastMessage multicast = new FirebaseMulticastMessage(
+                new FirebaseMessage("a", new JSONObject(), "token-a"));
+        multicast.add(new FirebaseMessage("b", new JSONObject(), "token-b"));
+        service.handleResponse(multicast, HttpStatus.OK, new HttpHeaders(), results);
+
+        assertEquals(1, metrics.getDelivered());
+        assertEquals(1, metrics.getErrorCount("DeviceMessageRateExceeded"));
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectMessagingServiceTest {
+
+    private ClientSockets sockets;
+
+    private MessagingService fallback;
+
+    private DirectMessagingService service;
+
+    /**
+     * Keeps what is written, failing the writes if asked to
+     */
+    private static class Recorder implements ClientSockets.Connection {
+
+        private final List<String> written = new ArrayList<>();
+
+        private boolean failing;
+
+        @Override
+        public void send(String text, Consumer<Throwable> done) {
+            if (failing) {
+                done.accept(new IOException("Broken pipe"));
+                return;
+            }
+            written.add(text);
+            done.accept(null);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sockets = new ClientSockets();
+        fallback = mock(MessagingService.class);
+        service = new DirectMessagingService(sockets, fallback);
+    }
+
+    @Test
+    public void testConnectedUserIsWrittenToDirectly() throws Exception {
+        Recorder recorder = new Recorder();
+        sockets.register(1, "alice", recorder);
+        FirebaseMessage message = message("alice");
+        List<Message.Outcome> outcomes = new ArrayList<>();
+        message.setDeliveryListener((sent, outcome, result) -> outcomes.add(outcome));
+
+        service.sendMessage(message);
+
+        verify(fallback, never()).sendMessage(message);
+        assertEquals(Arrays.asList(Message.Outcome.DELIVERED), outcomes);
+        assertEquals(1, recorder.written.size());
+        JSONObject written = new JSONObject(recorder.written.get(0));
+        assertEquals("hello", written.getJSONObject("data")
+                .getString("text"));
+        assertFalse(written.has("to"));
+        assertEquals(1, service.getDelivered());
+        assertEquals(1, service.getSocketTime()
+                .getCount());
+    }
+
+    @Test
+    public void testOtherUsersGoThroughTheFallback() throws Exception {
+        sockets.register(1, "alice", new Recorder());
+        FirebaseMessage message = message("bob");
+
+        service.sendMessage(message);
+
+        verify(fallback).sendMessage(message);
+        assertEquals(1, service.getNotConnected());
+    }
+
+    @Test
+    public void testFailedWriteFallsBackAndForgetsTheSocket() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.failing = true;
+        sockets.register(1, "alice", recorder);
+        FirebaseMessage message = message("alice");
+
+        service.sendMessage(message);
+
+        verify(fallback).sendMessage(message);
+        assertEquals(1, service.getFailed());
+        assertNull(sockets.get(1, "alice"));
+        assertEquals(0, service.toJSON()
+                .getLong("connected"));
+    }
+
+    @Test
+    public void testSameNameInAnotherSessionIsNotWrittenTo() throws Exception {
+        Recorder recorder = new Recorder();
+        sockets.register(1, "alice", recorder);
+        FirebaseMessage other = message("alice");
+        other.setSessionId(2);
+        FirebaseMessage outside = message("alice");
+        outside.setSessionId(0);
+
+        service.sendMessage(other);
+        service.sendMessage(outside);
+
+        verify(fallback).sendMessage(other);
+        verify(fallback).sendMessage(outside);
+        assertEquals(0, recorder.written.size());
+        assertEquals(2, service.getNotConnected());
+    }
+
+    private static FirebaseMessage message(String username) throws Exception {
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", "hello"));
+        FirebaseMessage message = new FirebaseMessage(username, payload, "token-" + username);
+        message.setSessionId(1);
+        return message;
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.firebase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A local HTTP server speaking the legacy FCM protocol on /fcm/send, to test
+ * and load test the messaging services without google.
+ *
+ * Requests addressed with "to" or "registration_ids" are answered with one
+ * result per recipient. How long the server takes, how often a whole request
+ * fails, with or without Retry-After, and how often single recipients fail
+ * or get a canonical id can be changed at any time, so a test can script
+ * phases such as a storm of 503s.
+ *
+ * Delayed responses are written from a scheduler, so many requests can be
+ * pending without a thread each.
+ *
+ * @author aanal
+ *
+ */
+public class FcmStandInServer implements Closeable {
+
+    /**
+     * A distribution of the time the server takes to answer
+     */
+    public interface Latency {
+
+        /**
+         * @return the next delay in micro seconds
+         */
+        long nextMicros(Random random);
+
+        static Latency fixed(final long micros) {
+            return random -> micros;
+        }
+
+        static Latency uniform(final long minMicros, final long maxMicros) {
+            return random -> minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+        }
+
+        /**
+         * A long tailed distribution, as seen over real networks
+         *
+         * @param medianMicros
+         *            the median delay
+         * @param sigma
+         *            the spread, 0.5 puts the 99th percentile at about three
+         *            times the median
+         */
+        static Latency logNormal(final long medianMicros, final double sigma) {
+            return random -> (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+        }
+    }
+
+    private final HttpServer server;
+
+    private final ScheduledExecutorService responder;
+
+    /**
+     * The expected server key, null accepts any
+     */
+    private final String serverKey;
+
+    private volatile Latency latency = Latency.fixed(0);
+
+    private volatile int failureStatus;
+
+    private volatile double failureRate;
+
+    private volatile long retryAfterSeconds = -1;
+
+    /**
+     * The chance of each error per recipient, replaced as a whole
+     */
+    private volatile Map<String, Double> resultErrors = Collections.emptyMap();
+
+    private volatile double canonicalRate;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong recipients = new AtomicLong();
+
+    private final AtomicLong failedRequests = new AtomicLong();
+
+    private final AtomicLong errorResults = new AtomicLong();
+
+    private final AtomicLong canonicalResults = new AtomicLong();
+
+    private final AtomicLong messageIds = new AtomicLong();
+
+    /**
+     * The addresses requests came from, one per client connection
+     */
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts the server on a free local port
+     *
+     * @param serverKey
+     *            the key expected in the Authorization header, null to accept
+     *            any
+     * @param threads
+     *            the number of threads reading requests and writing responses
+     * @throws IOException
+     */
+    public FcmStandInServer(String serverKey, int threads) throws IOException {
+        this(serverKey, threads, 0);
+    }
+
+    /**
+     * Starts the server on the given port, such as that of a server closed
+     * before, so clients find it back at the same url
+     */
+    public FcmStandInServer(String serverKey, int threads, int port) throws IOException {
+        // otherwise Nagle's algorithm adds a delayed ack to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.serverKey = serverKey;
+        responder = Executors.newScheduledThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext("/fcm/send", this::handle);
+        server.setExecutor(responder);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress()
+                .getPort();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress()
+                .getPort() + "/fcm/send";
+    }
+
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Fails the given share of requests as a whole
+     *
+     * @param status
+     *            the status of a failed request, e.g. 503
+     * @param rate
+     *            the share of requests failing, from 0 to 1
+     * @param retryAfterSeconds
+     *            the Retry-After sent with the failure, negative for none
+     */
+    public void setFailure(int status, double rate, long retryAfterSeconds) {
+        this.failureStatus = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.failureRate = rate;
+    }
+
+    /**
+     * Fails the given share of recipients with the error, e.g. Unavailable or
+     * NotRegistered, the shares of all errors add up
+     *
+     * @param error
+     *            the error of the result
+     * @param rate
+     *            the share of recipients, from 0 to 1, zero removes the error
+     */
+    public synchronized void setResultError(String error, double rate) {
+        Map<String, Double> errors = new LinkedHashMap<String, Double>(resultErrors);
+        if (rate > 0) {
+            errors.put(error, rate);
+        } else {
+            errors.remove(error);
+        }
+        resultErrors = errors;
+    }
+
+    /**
+     * Returns a canonical id with the given share of successful results
+     */
+    public void setCanonicalRate(double rate) {
+        this.canonicalRate = rate;
+    }
+
+    /**
+     * Answers every request with a success again, without delay
+     */
+    public synchronized void reset() {
+        latency = Latency.fixed(0);
+        failureRate = 0;
+        resultErrors = Collections.emptyMap();
+        canonicalRate = 0;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getErrorResults() {
+        return errorResults.get();
+    }
+
+    public long getCanonicalResults() {
+        return canonicalResults.get();
+    }
+
+    /**
+     * @return the number of connections requests were received on
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        responder.shutdownNow();
+    }
+
+    /**
+     * A response decided on but not yet written
+     */
+    private static class Response {
+
+        private final int status;
+
+        private final long retryAfter;
+
+        private final byte[] body;
+
+        private Response(int status, long retryAfter, String body) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+            this.body = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        connections.add(exchange.getRemoteAddress());
+        String request = read(exchange.getRequestBody());
+        final Response response = respond(exchange.getRequestMethod(), exchange.getRequestHeaders()
+                .getFirst("Authorization"), request);
+        long delay = latency.nextMicros(ThreadLocalRandom.current());
+        if (delay <= 0) {
+            write(exchange, response);
+        } else {
+            responder.schedule(() -> {
+                write(exchange, response);
+                return null;
+            }, delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private Response respond(String method, String authorization, String request) {
+        if (!"POST".equals(method)) {
+            return new Response(405, -1, null);
+        }
+        if (serverKey != null && !("key=" + serverKey).equals(authorization)) {
+            return new Response(401, -1, "Unauthorized");
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            failedRequests.incrementAndGet();
+            return new Response(failureStatus, retryAfterSeconds, null);
+        }
+        try {
+            JSONObject json = new JSONObject(request);
+            JSONArray tokens;
+            if (json.has("registration_ids")) {
+                tokens = json.getJSONArray("registration_ids");
+            } else if (json.has("to")) {
+                tokens = new JSONArray().put(json.getString("to"));
+            } else {
+                return new Response(400, -1, "Missing \"to\" or \"registration_ids\" field");
+            }
+            return new Response(200, -1, results(tokens, random).toString());
+        } catch (JSONException e) {
+            return new Response(400, -1, "JSON_PARSING_ERROR: " + e.getMessage());
+        }
+    }
+
+    private JSONObject results(JSONArray tokens, Random random) throws JSONException {
+        Map<String, Double> errors = resultErrors;
+        JSONArray results = new JSONArray();
+        int success = 0;
+        int canonical = 0;
+        for (int i = 0; i < tokens.length(); i++) {
+            JSONObject result = new JSONObject();
+            String error = pick(errors, random.nextDouble());
+            if (error != null) {
+                result.put("error", error);
+            } else {
+                success++;
+                result.put("message_id", "0:" + messageIds.incrementAndGet());
+                if (canonicalRate > 0 && random.nextDouble() < canonicalRate) {
+                    canonical++;
+                    result.put("registration_id", "canonical-" + tokens.getString(i));
+                }
+            }
+            results.put(result);
+        }
+        recipients.addAndGet(tokens.length());
+        errorResults.addAndGet(tokens.length() - success);
+        canonicalResults.addAndGet(canonical);
+
+        JSONObject response = new JSONObject();
+        response.put("multicast_id", messageIds.incrementAndGet());
+        response.put("success", success);
+        response.put("failure", tokens.length() - success);
+        response.put("canonical_ids", canonical);
+        response.put("results", results);
+        return response;
+    }
+
+    /**
+     * The error the roll falls into, null for a success
+     */
+    private static String pick(Map<String, Double> errors, double roll) {
+        double cumulative = 0;
+        for (Map.Entry<String, Double> error : errors.entrySet()) {
+            cumulative += error.getValue();
+            if (roll < cumulative) {
+                return error.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static void write(HttpExchange exchange, Response response) throws IOException {
+        try {
+            if (response.retryAfter >= 0) {
+                exchange.getResponseHeaders()
+                        .add("Retry-After", String.valueOf(response.retryAfter));
+            }
+            if (response.body == null) {
+                exchange.sendResponseHeaders(response.status, -1);
+            } else {
+                exchange.getResponseHeaders()
+                        .add("Content-Type", response.status == 200 ? "application/json" : "text/plain");
+                exchange.sendResponseHeaders(response.status, response.body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response.body);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+public class FcmStandInServerTest {
+
+    private FcmStandInServer server;
+
+    private FirebaseThreadedMessagingService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FcmStandInServer("key", 2);
+        service = new FirebaseThreadedMessagingService("key", new RestTemplate(), 2);
+        service.setUrl(server.getUrl());
+        service.setRetryScheduler(new RetryScheduler(5, 50, 20));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.sendStopMessage();
+        service.join();
+        server.close();
+    }
+
+    @Test
+    public void testEveryMessageIsDeliveredThroughAStorm() throws Exception {
+        server.setFailure(503, 0.5, 0);
+        service.start();
+        for (int i = 0; i < 20; i++) {
+            service.sendMessage(message("user-" + i, i));
+        }
+
+        awaitDelivered(service.getMetrics(), 20);
+        assertTrue(server.getFailedRequests() > 0);
+        assertTrue(service.getMetrics()
+                .getHttpTime()
+                .getCount() > server.getFailedRequests());
+    }
+
+    @Test
+    public void testRegistryFollowsTheResults() throws Exception {
+        final Map<String, String> tokens = new ConcurrentHashMap<String, String>();
+        service.setTokenRegistry(new TokenRegistry() {
+
+            @Override
+            public void removeToken(String username, String token) {
+                tokens.put(username, "removed");
+            }
+
+            @Override
+            public void replaceToken(String username, String canonicalToken, String token) {
+                tokens.put(username, canonicalToken);
+            }
+
+            @Override
+            public boolean isDead(String token) {
+                return false;
+            }
+        });
+        server.setCanonicalRate(1);
+        service.start();
+        service.sendMessage(message("alice", 1));
+        awaitDelivered(service.getMetrics(), 1);
+
+        server.reset();
+        server.setResultError("NotRegistered", 1);
+        service.sendMessage(message("bob", 2));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!tokens.containsKey("bob") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("canonical-token-alice", tokens.get("alice"));
+        assertEquals("removed", tokens.get("bob"));
+        assertEquals(1, service.getMetrics()
+                .getErrorCount("NotRegistered"));
+    }
+
+    @Test
+    public void testWrongServerKeyIsRejected() throws Exception {
+        FirebaseThreadedMessagingService wrongKey = new FirebaseThreadedMessagingService("other",
+                new RestTemplate());
+        wrongKey.setUrl(server.getUrl());
+        wrongKey.start();
+        wrongKey.sendMessage(message("user", 1));
+        wrongKey.sendStopMessage();
+        wrongKey.join();
+        service.start();
+
+        assertEquals(1, server.getRequests());
+        assertEquals(0, wrongKey.getMetrics()
+                .getDelivered());
+        assertEquals(1, wrongKey.getMetrics()
+                .getHttpTime()
+                .getCount());
+    }
+
+    private static FirebaseMessage message(String username, int sequence) throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("sequence", sequence));
+        return new FirebaseMessage(username, payload, "token-" + username);
+    }
+
+    private static void awaitDelivered(DeliveryMetrics metrics, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (metrics.getDelivered() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, metrics.getDelivered());
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.example.firebase.FirebaseMessagingService.FirebaseResponseHandler;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+public class FirebaseAsyncMessagingServiceTest {
+
+    private FcmStandInServer server;
+
+    private FirebaseResponseHandler handler;
+
+    private FirebaseAsyncMessagingService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FcmStandInServer("key", 2);
+        handler = mock(FirebaseResponseHandler.class);
+        service = new FirebaseAsyncMessagingService(new AsyncRestTemplate(), server.getUrl(), "key", handler);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testCompletesWithTheResultOfEveryRecipient() throws Exception {
+        FirebaseMulticastMessage multicast = new FirebaseMulticastMessage(message("a"));
+        multicast.add(message("b"));
+        server.setCanonicalRate(1);
+
+        DeliveryResult result = service.sendMessageAsync(multicast)
+                .get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccess());
+        assertEquals(2, result.getRecipients()
+                .size());
+        assertEquals("token-a", result.getRecipients()
+                .get(0)
+                .getToken());
+        assertEquals("canonical-token-b", result.getRecipients()
+                .get(1)
+                .getRegistrationId());
+        assertNotNull(result.getRecipients()
+                .get(1)
+                .getMessageId());
+
+        // the token updates happen as for the threaded service
+        ArgumentCaptor<JSONArray> results = ArgumentCaptor.forClass(JSONArray.class);
+        verify(handler).handleResponse(eq(multicast), eq(HttpStatus.OK), any(HttpHeaders.class), results.capture());
+        assertEquals(2, results.getValue()
+                .length());
+    }
+
+    @Test
+    public void testErrorsAreHandedToTheResponseHandler() throws Exception {
+        FirebaseThreadedMessagingService retrying = new FirebaseThreadedMessagingService("key", new RestTemplate());
+        RetryScheduler retryScheduler = new RetryScheduler(60000, 60000, 1);
+        retrying.setRetryScheduler(retryScheduler);
+        service = new FirebaseAsyncMessagingService(new AsyncRestTemplate(), server.getUrl(), "key", retrying);
+        server.setFailure(503, 1, 30);
+
+        DeliveryResult result = service.sendMessageAsync(message("a"))
+                .get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isSuccess());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, result.getStatus());
+        assertEquals(1, retryScheduler.getRetriesScheduled());
+        retryScheduler.shutdown();
+    }
+
+    @Test
+    public void testCompletesExceptionallyWhenTheServerIsUnreachable() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        service = new FirebaseAsyncMessagingService(new AsyncRestTemplate(), "http://127.0.0.1:" + port + "/fcm/send",
+                "key", handler);
+
+        try {
+            service.sendMessageAsync(message("a"))
+                    .get(5, TimeUnit.SECONDS);
+            fail("The request cannot have succeeded");
+        } catch (ExecutionException e) {
+            assertNotNull(e.getCause());
+        }
+        verify(handler, never()).handleResponse(any(Message.class), any(HttpStatus.class), any(HttpHeaders.class),
+                any(JSONArray.class));
+    }
+
+    private static FirebaseMessage message(String username) throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", "hello"));
+        return new FirebaseMessage(username, payload, "token-" + username);
+    }
+}
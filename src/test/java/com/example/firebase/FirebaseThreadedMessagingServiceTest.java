@@ -0,0 +1,254 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.example.firebase.FirebaseMessagingService.Priority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+public class FirebaseThreadedMessagingServiceTest {
+
+    private RestTemplate template;
+
+    /**
+     * The sequences sent per user, in the order the requests were made
+     */
+    private Map<String, List<Integer>> sent;
+
+    /**
+     * The threads that made the requests per user
+     */
+    private Map<String, Set<String>> senders;
+
+    @Before
+    public void setUp() {
+        sent = new ConcurrentHashMap<String, List<Integer>>();
+        senders = new ConcurrentHashMap<String, Set<String>>();
+        template = mock(RestTemplate.class);
+        doAnswer(invocation -> {
+            JSONObject request = new JSONObject((String) ((HttpEntity<?>) invocation.getArguments()[2]).getBody());
+            String token = request.getString("to");
+            String username = token.substring("token-".length());
+            sent.computeIfAbsent(username, name -> new ArrayList<Integer>())
+                    .add(request.getJSONObject("data")
+                            .getInt("sequence"));
+            senders.computeIfAbsent(username, name -> ConcurrentHashMap.newKeySet())
+                    .add(Thread.currentThread()
+                            .getName());
+            // the workers must not depend on the requests taking equally long
+            Thread.sleep(ThreadLocalRandom.current()
+                    .nextInt(2));
+            JSONArray results = new JSONArray().put(new JSONObject().put("message_id", "0:" + token));
+            return new ResponseEntity<String>(new JSONObject().put("results", results)
+                    .toString(), HttpStatus.OK);
+        }).when(template)
+                .exchange(anyString(), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class));
+    }
+
+    @Test
+    public void testEveryUserIsSentInOrderAcrossWorkers() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template, 4);
+        service.start();
+        int users = 16;
+        int perUser = 50;
+        for (int sequence = 0; sequence < perUser; sequence++) {
+            for (int user = 0; user < users; user++) {
+                service.sendMessage(message("user-" + user, sequence));
+            }
+        }
+        service.sendStopMessage();
+        service.join();
+
+        assertEquals(users * perUser, service.getMetrics()
+                .getDelivered());
+        Set<String> workers = new HashSet<String>();
+        for (int user = 0; user < users; user++) {
+            List<Integer> sequences = sent.get("user-" + user);
+            assertEquals(perUser, sequences.size());
+            for (int sequence = 0; sequence < perUser; sequence++) {
+                assertEquals(sequence, (int) sequences.get(sequence));
+            }
+            // a user is only ever sent by the worker of its partition
+            assertEquals(1, senders.get("user-" + user)
+                    .size());
+            workers.addAll(senders.get("user-" + user));
+        }
+        assertTrue(workers.size() > 1);
+    }
+
+    @Test
+    public void testCoalesceKeepsTheOrderOfEveryUser() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template);
+        FirebaseMessage a1 = message("a", "x");
+        FirebaseMessage a2 = message("a", "y");
+        FirebaseMessage a3 = message("a", "x");
+        FirebaseMessage b1 = message("b", "x");
+        FirebaseMessage c1 = message("c", "y");
+
+        List<Message> requests = service.coalesce(Arrays.<Message> asList(a1, a2, a3, b1, c1));
+
+        // a3 cannot join the first request, it would overtake a2
+        assertEquals(3, requests.size());
+        assertSame(a1, requests.get(0));
+        assertEquals(Arrays.asList(a2, c1), ((FirebaseMulticastMessage) requests.get(1)).getMessages());
+        assertEquals(Arrays.asList(a3, b1), ((FirebaseMulticastMessage) requests.get(2)).getMessages());
+    }
+
+    @Test
+    public void testCoalesceSplitsAtTheRecipientLimit() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template);
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i <= FirebaseMulticastMessage.MAX_RECIPIENTS; i++) {
+            batch.add(message("user-" + i, "x"));
+        }
+
+        List<Message> requests = service.coalesce(batch);
+
+        assertEquals(2, requests.size());
+        assertEquals(FirebaseMulticastMessage.MAX_RECIPIENTS, requests.get(0)
+                .getRecipientTokens().length);
+        assertSame(batch.get(FirebaseMulticastMessage.MAX_RECIPIENTS), requests.get(1));
+    }
+
+    @Test
+    public void testCoalesceKeepsPrioritiesApart() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template);
+        FirebaseMessage high = new FirebaseMessage("a", data("x"), "token-a", Priority.high);
+        FirebaseMessage normal = new FirebaseMessage("b", data("x"), "token-b", Priority.normal);
+
+        List<Message> requests = service.coalesce(Arrays.<Message> asList(high, normal));
+
+        assertEquals(Arrays.<Message> asList(high, normal), requests);
+    }
+
+    @Test
+    public void testCoalesceSendsATokenOncePerRequest() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template);
+        FirebaseMessage a1 = message("a", "x");
+        FirebaseMessage a2 = message("a", "x");
+        FirebaseMessage b1 = message("b", "x");
+        FirebaseMessage b2 = message("b", "x");
+
+        List<Message> requests = service.coalesce(Arrays.<Message> asList(a1, a2, b1, b2));
+
+        // a repeated token opens the next request, later messages join that one
+        assertEquals(3, requests.size());
+        assertSame(a1, requests.get(0));
+        assertEquals(Arrays.asList(a2, b1), ((FirebaseMulticastMessage) requests.get(1)).getMessages());
+        assertSame(b2, requests.get(2));
+        for (Message request : requests) {
+            String[] tokens = request.getRecipientTokens();
+            assertEquals(tokens.length, new HashSet<String>(Arrays.asList(tokens)).size());
+        }
+    }
+
+    @Test
+    public void testMulticastResultsAreMappedToTheirMessages() throws Exception {
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", template);
+        TokenRegistry registry = mock(TokenRegistry.class);
+        service.setTokenRegistry(registry);
+        List<Message> requests = service.coalesce(Arrays.<Message> asList(message("a", "x"), message("b", "x"),
+                message("c", "x")));
+        assertEquals(1, requests.size());
+
+        JSONArray results = new JSONArray();
+        results.put(new JSONObject().put("message_id", "0:1"));
+        results.put(new JSONObject().put("error", "NotRegistered"));
+        results.put(new JSONObject().put("message_id", "0:2")
+                .put("registration_id", "canonical-c"));
+        service.handleResponse(requests.get(0), HttpStatus.OK, new HttpHeaders(), results);
+
+        verify(registry).removeToken("b", "token-b");
+        verify(registry).replaceToken("c", "canonical-c", "token-c");
+        verify(registry, never()).removeToken("a", "token-a");
+        verify(registry, never()).removeToken("c", "token-c");
+        assertEquals(2, service.getMetrics()
+                .getDelivered());
+        assertEquals(1, service.getMetrics()
+                .getErrorCount("NotRegistered"));
+    }
+
+    @Test
+    public void testUnreachableServerIsRetried() throws Exception {
+        FcmStandInServer closed = new FcmStandInServer(null, 1);
+        int port = closed.getPort();
+        String url = closed.getUrl();
+        closed.close();
+        FirebaseThreadedMessagingService service = new FirebaseThreadedMessagingService("key", new RestTemplate());
+        service.setUrl(url);
+        RetryScheduler retryScheduler = new RetryScheduler(300, 300, 3);
+        service.setRetryScheduler(retryScheduler);
+        List<Message.Outcome> outcomes = new ArrayList<Message.Outcome>();
+        FirebaseMessage message = message("a", "x");
+        message.setDeliveryListener((sent, outcome, result) -> outcomes.add(outcome));
+        service.start();
+
+        service.sendMessage(message);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (retryScheduler.getRetriesScheduled() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // back up before the retry
+        FcmStandInServer server = new FcmStandInServer(null, 1, port);
+        try {
+            while (service.getMetrics()
+                    .getDelivered() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, service.getMetrics()
+                    .getDelivered());
+            assertEquals(1, server.getRequests());
+            assertEquals(1, retryScheduler.getRetriesScheduled());
+            assertEquals(Arrays.asList(Message.Outcome.RETRYING), outcomes);
+        } finally {
+            service.sendStopMessage();
+            service.join();
+            retryScheduler.shutdown();
+            server.close();
+        }
+    }
+
+    private static FirebaseMessage message(String username, String text) throws JSONException {
+        return new FirebaseMessage(username, data(text), "token-" + username);
+    }
+
+    private static JSONObject data(String text) throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("text", text));
+        return payload;
+    }
+
+    private static FirebaseMessage message(String username, int sequence) throws JSONException {
+        JSONObject payload = new JSONObject();
+        // distinct bodies, so nothing is merged into a multicast
+        payload.put("data", new JSONObject().put("user", username)
+                .put("sequence", sequence));
+        return new FirebaseMessage(username, payload, "token-" + username);
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.firebase.FirebaseMessagingService.Priority;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class MessageLanesTest {
+
+    private DeliveryMetrics metrics = new DeliveryMetrics();
+
+    private MessageLanes lanes() {
+        return new MessageLanes(16, RingBuffer.WaitStrategy.BLOCKING, RingBuffer.FullPolicy.REJECT, 0, metrics);
+    }
+
+    private FirebaseMessage message(String name, Priority priority) throws JSONException {
+        return new FirebaseMessage(name, new JSONObject(), "token", priority);
+    }
+
+    @Test
+    public void testPriorityIsSetInPayload() throws JSONException {
+        FirebaseMessage message = message("a", Priority.high);
+        assertTrue(message.isHighPriority());
+        assertEquals("high", message.getPayload()
+                .getString("priority"));
+
+        // read back from the payload, e.g. when recovered from the journal
+        FirebaseMessage copy = new FirebaseMessage("a", new JSONObject(message.getPayload()
+                .toString()), "token");
+        assertEquals(Priority.high, copy.getPriority());
+    }
+
+    @Test
+    public void testWeightedDraining() throws Exception {
+        MessageLanes lanes = lanes();
+        lanes.setWeight(2);
+        lanes.offer(message("n1", Priority.normal));
+        lanes.offer(message("n2", Priority.normal));
+        for (int i = 1; i <= 5; i++) {
+            lanes.offer(message("h" + i, Priority.high));
+        }
+
+        StringBuilder order = new StringBuilder();
+        Message next;
+        while ((next = lanes.poll()) != null) {
+            order.append(next.getUsername())
+                    .append(' ');
+        }
+        assertEquals("h1 h2 n1 h3 h4 n2 h5 ", order.toString());
+        assertEquals(5, metrics.getHighQueueTime()
+                .getCount());
+        assertEquals(2, metrics.getNormalQueueTime()
+                .getCount());
+    }
+
+    @Test
+    public void testStarvedNormalMessageGoesFirst() throws Exception {
+        MessageLanes lanes = lanes();
+        lanes.setMaxWait(10, TimeUnit.MILLISECONDS);
+        lanes.offer(message("n1", Priority.normal));
+        Thread.sleep(20);
+        lanes.offer(message("h1", Priority.high));
+
+        assertEquals("n1", lanes.poll()
+                .getUsername());
+        assertEquals("h1", lanes.poll()
+                .getUsername());
+    }
+
+    @Test
+    public void testWorkerIsWokenByEitherLane() throws Exception {
+        final MessageLanes lanes = lanes();
+        assertNull(lanes.poll(10, TimeUnit.MILLISECONDS));
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+                lanes.offer(message("h1", Priority.high));
+            } catch (InterruptedException | JSONException e) {
+                Thread.currentThread()
+                        .interrupt();
+            }
+        });
+        producer.start();
+        Message message = lanes.poll(5, TimeUnit.SECONDS);
+        producer.join();
+        assertEquals("h1", message.getUsername());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        long p50 = TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50));
+        long p99 = TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99));
+        // within the precision of the buckets
+        assertTrue(p50 >= 500 && p50 <= 532);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+    }
+}
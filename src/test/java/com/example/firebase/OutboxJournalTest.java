@@ -0,0 +1,103 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FirebaseMessage message(int sequence) throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("data", new JSONObject().put("sequence", sequence));
+        return new FirebaseMessage("user-" + sequence, payload, "token-" + sequence);
+    }
+
+    @Test
+    public void testRecoversUnacknowledgedMessages() throws Exception {
+        File directory = folder.getRoot();
+        OutboxJournal journal = new OutboxJournal(directory, 4096, 10);
+        FirebaseMessage sent = message(1);
+        FirebaseMessage abandoned = message(2);
+        FirebaseMessage pending = message(3);
+        journal.enqueued(sent);
+        journal.enqueued(abandoned);
+        journal.enqueued(pending);
+        assertNotEquals(0, pending.getId());
+        journal.sent(sent);
+        journal.abandoned(abandoned);
+        assertEquals(1, journal.getPending());
+        journal.close();
+
+        journal = new OutboxJournal(directory, 4096, 10);
+        List<FirebaseMessage> recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        FirebaseMessage message = recovered.get(0);
+        assertEquals("user-3", message.getUsername());
+        assertEquals("token-3", message.getRecipientToken());
+        assertEquals(3, message.getPayload()
+                .getJSONObject("data")
+                .getInt("sequence"));
+
+        // once delivered it is not recovered again
+        journal.sent(message);
+        journal.close();
+        journal = new OutboxJournal(directory, 4096, 10);
+        assertTrue(journal.takeRecovered()
+                .isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+        OutboxJournal journal = new OutboxJournal(folder.getRoot(), 1024, 10);
+        FirebaseMessage first = message(0);
+        journal.enqueued(first);
+        for (int i = 1; i < 100; i++) {
+            FirebaseMessage message = message(i);
+            journal.enqueued(message);
+            journal.sent(message);
+        }
+        // the first message holds on to every later segment
+        assertTrue(journal.getSegmentCount() > 2);
+        journal.sent(first);
+        assertEquals(1, journal.getSegmentCount());
+        assertEquals(0, journal.getPending());
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        File directory = folder.getRoot();
+        OutboxJournal journal = new OutboxJournal(directory, 4096, 10);
+        journal.enqueued(message(1));
+        journal.enqueued(message(2));
+        journal.close();
+
+        // damage the body of the second record
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int length = file.readInt();
+            file.seek(8 + length + 8 + 20);
+            file.writeByte(0x7f);
+        }
+
+        journal = new OutboxJournal(directory, 4096, 10);
+        List<FirebaseMessage> recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("user-1", recovered.get(0)
+                .getUsername());
+        journal.close();
+    }
+}
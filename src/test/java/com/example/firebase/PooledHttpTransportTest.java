@@ -0,0 +1,86 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.function.Supplier;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+public class PooledHttpTransportTest {
+
+    private FcmStandInServer server;
+
+    private PooledHttpTransport transport;
+
+    private HttpEntity<String> request;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FcmStandInServer(null, 2);
+        transport = new PooledHttpTransport(4, 4, 1000, 5000, 200);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        request = new HttpEntity<String>("{\"to\": \"token\"}", headers);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        server.close();
+    }
+
+    @Test
+    public void testConnectionIsReusedThenEvicted() throws Exception {
+        RestTemplate template = new RestTemplate(transport.createRequestFactory());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(HttpStatus.OK, template.exchange(server.getUrl(), HttpMethod.POST, request, String.class)
+                    .getStatusCode());
+        }
+        assertEquals(5, server.getRequests());
+        assertEquals(1, server.getConnections());
+        assertEquals(1, transport.getTotalStats()
+                .getAvailable());
+
+        awaitClosed(transport::getTotalStats);
+    }
+
+    @Test
+    public void testAsyncConnectionIsReusedThenEvicted() throws Exception {
+        AsyncRestTemplate template = new AsyncRestTemplate(transport.createAsyncRequestFactory());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(HttpStatus.OK, template.exchange(server.getUrl(), HttpMethod.POST, request, String.class)
+                    .get()
+                    .getStatusCode());
+        }
+        assertEquals(5, server.getRequests());
+        assertEquals(1, server.getConnections());
+        assertEquals(1, transport.getAsyncTotalStats()
+                .getAvailable());
+
+        awaitClosed(transport::getAsyncTotalStats);
+    }
+
+    /**
+     * Waits for the idle connection to be closed, well after the idle timeout
+     */
+    private static void awaitClosed(Supplier<PoolStats> stats) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.get()
+                .getAvailable() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, stats.get()
+                .getAvailable());
+        assertEquals(0, stats.get()
+                .getLeased());
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+public class RetrySchedulerTest {
+
+    private RetryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new RetryScheduler(10, 1000, 2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testBackoffGrowsUpToTheCap() {
+        long[] expected = { 10, 20, 40, 80, 160, 320, 640, 1000, 1000 };
+        for (int attempt = 1; attempt <= expected.length; attempt++) {
+            long delay = expected[attempt - 1];
+            for (int i = 0; i < 100; i++) {
+                long backoff = scheduler.backoff(attempt);
+                // the jitter takes away at most half of the delay
+                assertTrue(attempt + ": " + backoff, backoff >= delay / 2 && backoff <= delay);
+            }
+        }
+        // no overflow however often it was retried
+        for (int attempt : new int[] { 62, 63, 64, 1000, Integer.MAX_VALUE }) {
+            long backoff = scheduler.backoff(attempt);
+            assertTrue(attempt + ": " + backoff, backoff >= 500 && backoff <= 1000);
+        }
+    }
+
+    @Test
+    public void testJitterSpreadsTheRetries() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long backoff = scheduler.backoff(8);
+            min = Math.min(min, backoff);
+            max = Math.max(max, backoff);
+        }
+        assertTrue(min < 600);
+        assertTrue(max > 900);
+    }
+
+    @Test
+    public void testRetryAfterInSeconds() {
+        assertEquals(120000, RetryScheduler.retryAfter(retryAfter("120")));
+        assertEquals(0, RetryScheduler.retryAfter(retryAfter("0")));
+        assertEquals(0, RetryScheduler.retryAfter(retryAfter("-5")));
+    }
+
+    @Test
+    public void testRetryAfterAsDate() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setDate("Retry-After", System.currentTimeMillis() + 60000);
+        long delay = RetryScheduler.retryAfter(headers);
+        // the date only has seconds
+        assertTrue(String.valueOf(delay), delay > 58000 && delay <= 60000);
+
+        headers.setDate("Retry-After", System.currentTimeMillis() - 60000);
+        assertEquals(0, RetryScheduler.retryAfter(headers));
+    }
+
+    @Test
+    public void testInvalidRetryAfterIsIgnored() {
+        assertEquals(0, RetryScheduler.retryAfter(null));
+        assertEquals(0, RetryScheduler.retryAfter(new HttpHeaders()));
+        assertEquals(0, RetryScheduler.retryAfter(retryAfter("soon")));
+        assertEquals(0, RetryScheduler.retryAfter(retryAfter("")));
+    }
+
+    @Test
+    public void testGivesUpAfterTheMaximumAttempts() throws Exception {
+        MessagingService service = mock(MessagingService.class);
+        FirebaseMessage message = new FirebaseMessage("alice", new JSONObject(), "token-alice");
+
+        assertTrue(scheduler.schedule(message, 0, service));
+        assertTrue(scheduler.schedule(message, 0, service));
+        assertFalse(scheduler.schedule(message, 0, service));
+        assertEquals(2, message.getAttempts());
+        verify(service, timeout(1000).times(2)).sendMessage(message);
+
+        scheduler.delivered(message);
+        scheduler.delivered(new FirebaseMessage("bob", new JSONObject(), "token-bob"));
+        JSONObject json = scheduler.toJSON();
+        assertEquals(2, json.getLong("scheduled"));
+        assertEquals(1, json.getLong("succeeded"));
+        assertEquals(1, json.getLong("abandoned"));
+    }
+
+    @Test
+    public void testRetryAfterDelaysTheRetry() throws Exception {
+        MessagingService service = mock(MessagingService.class);
+        FirebaseMessage message = new FirebaseMessage("alice", new JSONObject(), "token-alice");
+
+        long start = System.nanoTime();
+        assertTrue(scheduler.schedule(message, 200, service));
+        verify(service, timeout(1000).times(1)).sendMessage(message);
+        assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+    }
+
+    private static HttpHeaders retryAfter(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Retry-After", value);
+        return headers;
+    }
+}
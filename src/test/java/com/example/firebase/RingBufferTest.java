@@ -0,0 +1,175 @@
+package com.example.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testCapacityRoundedToPowerOfTwo() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(5, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.REJECT, 0, TimeUnit.MILLISECONDS);
+        assertEquals(8, buffer.capacity());
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.REJECT, 0, TimeUnit.MILLISECONDS);
+        assertTrue(buffer.offer(1));
+        assertTrue(buffer.offer(2));
+        assertFalse(buffer.offer(3));
+
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testBlockTimesOutWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.BLOCK, 50, TimeUnit.MILLISECONDS);
+        assertTrue(buffer.offer(1));
+        assertTrue(buffer.offer(1));
+        long start = System.nanoTime();
+        assertFalse(buffer.offer(3));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+        List<Integer> dropped = new ArrayList<>();
+        buffer.setDropListener(dropped::add);
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.offer(3);
+
+        assertEquals(1, buffer.getDropped());
+        assertEquals(Integer.valueOf(1), dropped.get(0));
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertEquals(Integer.valueOf(3), buffer.poll());
+    }
+
+    @Test
+    public void testPollTimesOutWhenEmpty() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.YIELDING,
+                RingBuffer.FullPolicy.REJECT, 0, TimeUnit.MILLISECONDS);
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        for (RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            manyProducers(strategy);
+        }
+    }
+
+    /**
+     * Every element of every producer arrives exactly once and in the order
+     * of its producer
+     */
+    private void manyProducers(RingBuffer.WaitStrategy strategy) throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 5000;
+        final RingBuffer<Long> buffer = new RingBuffer<>(64, strategy, RingBuffer.FullPolicy.BLOCK, Long.MAX_VALUE,
+                TimeUnit.MILLISECONDS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final long producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < perProducer; i++) {
+                    assertTrue(buffer.offer(producer << 32 | i));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * perProducer; i++) {
+            long element = buffer.take();
+            int producer = (int) (element >>> 32);
+            assertEquals(next[producer]++, element & 0xffffffffL);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+    }
+
+    /**
+     * Producers that counted themselves as waiting just as a poll freed a
+     * slot, which another producer took, must still be woken up by the next
+     * poll. The lock of the buffer is held to stop them in between.
+     */
+    @Test
+    public void testNoWakeupIsLostOnAFullBuffer() throws Exception {
+        final int producers = 8;
+        final RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.BLOCKING,
+                RingBuffer.FullPolicy.BLOCK, 60000, TimeUnit.MILLISECONDS);
+        buffer.offer(-1);
+        buffer.offer(-2);
+        Field field = RingBuffer.class.getDeclaredField("lock");
+        field.setAccessible(true);
+        ReentrantLock lock = (ReentrantLock) field.get(buffer);
+
+        List<Thread> threads = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int element = p;
+                Thread thread = new Thread(() -> assertTrue(buffer.offer(element)));
+                thread.start();
+                threads.add(thread);
+            }
+            awaitState(threads, Thread.State.WAITING);
+            // the slot freed is taken by another producer at once
+            assertEquals(-1, (int) buffer.poll());
+            assertTrue(buffer.offer(-3));
+        } finally {
+            lock.unlock();
+        }
+        awaitState(threads, Thread.State.TIMED_WAITING);
+
+        // every poll must let one of them in
+        assertEquals(-2, (int) buffer.poll(1, TimeUnit.SECONDS));
+        assertEquals(-3, (int) buffer.poll(1, TimeUnit.SECONDS));
+        for (int i = 0; i < producers; i++) {
+            assertNotNull("Producer " + i + " was not woken up", buffer.poll(1, TimeUnit.SECONDS));
+        }
+        for (Thread thread : threads) {
+            thread.join(1000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private static void awaitState(List<Thread> threads, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Thread thread : threads) {
+            while (thread.getState() != state && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(state, thread.getState());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkEnrollmentTest {
+
+    private Session session;
+
+    private List<User> added;
+
+    @Before
+    public void setUp() {
+        session = new SessionRegistry(1).start("cohort");
+        added = new ArrayList<>();
+    }
+
+    @Test
+    public void testEachUserIsAddedOnItsOwn() throws Exception {
+        User existing = new User();
+        existing.setName("carol");
+        session.addUser(existing);
+
+        String body = "[{\"name\": \"alice\", \"pushToken\": \"a\", \"pref\": {\"distance\": 1.5}, \"extra\": [1, {}]},"
+                + " {\"name\": \"bob\", \"pushToken\": null, \"pref\": {\"distance\": 2}},"
+                + " {\"name\": \"carol\", \"pushToken\": \"c\", \"pref\": {\"distance\": 1}},"
+                + " {\"pushToken\": \"d\", \"pref\": {\"distance\": 1}},"
+                + " {\"name\": \"erin\", \"pushToken\": \"e\", \"pref\": {\"distance\": -1}},"
+                + " \"frank\", {\"name\": \"alice\", \"pushToken\": \"a\", \"pref\": {\"distance\": 1}}]";
+        BulkEnrollment.Result result = enroll(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(result.getError());
+        assertEquals(2, result.getAdded());
+        assertEquals(2, result.getDuplicates());
+        assertEquals(3, result.getInvalid());
+        assertEquals(2, added.size());
+        assertEquals(1.5, session.getActiveUsers()
+                .get("alice")
+                .getPref()
+                .getDistance(), 0);
+        assertNull(session.getActiveUsers()
+                .get("bob")
+                .getPushToken());
+        assertEquals(2, result.getFailures()
+                .getJSONObject(0)
+                .getInt("index"));
+        assertEquals("pref must have a non negative distance", result.getFailures()
+                .getJSONObject(2)
+                .getString("reason"));
+    }
+
+    @Test
+    public void testLargeCohortIsStreamed() throws Exception {
+        int count = 50000;
+        // the users are produced as they are read, never held as a whole
+        Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+
+            private int next = -1;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next <= count;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String part;
+                if (next < 0) {
+                    part = "[";
+                } else if (next == count) {
+                    part = "]";
+                } else {
+                    part = (next == 0 ? "" : ",") + "{\"name\": \"user-" + next
+                            + "\", \"pushToken\": \"token\", \"pref\": {\"distance\": 1}}";
+                }
+                next++;
+                return new ByteArrayInputStream(part.getBytes(StandardCharsets.UTF_8));
+            }
+        };
+        BulkEnrollment.Result result = enroll(new SequenceInputStream(parts));
+        assertEquals(count, result.getAdded());
+        assertEquals(count, session.getActiveUsers()
+                .size());
+    }
+
+    @Test
+    public void testTruncatedBodyKeepsTheUsersBefore() throws Exception {
+        String body = "[{\"name\": \"alice\", \"pushToken\": \"a\", \"pref\": {\"distance\": 1}},"
+                + " {\"name\": \"bob\", \"pushToken\": \"b\", \"pref\": {\"dist";
+        BulkEnrollment.Result result = enroll(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        assertNotNull(result.getError());
+        assertEquals(1, result.getAdded());
+        assertNull(session.getActiveUsers()
+                .get("bob"));
+    }
+
+    private BulkEnrollment.Result enroll(InputStream in) throws Exception {
+        return new BulkEnrollment().enroll(session, in, added::add);
+    }
+}
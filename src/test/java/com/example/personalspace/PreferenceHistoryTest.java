@@ -0,0 +1,81 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class PreferenceHistoryTest {
+
+    @Test
+    public void testChangesAreReadBackAcrossBlocks() {
+        PreferenceHistory history = new PreferenceHistory();
+        Random random = new Random(7);
+        int count = 100000;
+        long[] times = new long[count];
+        double[] distances = new double[count];
+        long time = 1500000000000L;
+        double distance = 1;
+        for (int i = 0; i < count; i++) {
+            time += 500 + random.nextInt(1000);
+            if (random.nextInt(100) == 0) {
+                distance = random.nextDouble() * 3;
+            } else if (random.nextInt(4) == 0) {
+                distance = random.nextInt(4000) / 1000.0;
+            }
+            times[i] = time;
+            distances[i] = distance;
+            history.append(time, distance);
+        }
+        assertEquals(count, history.size());
+        // a few bytes per change
+        assertTrue("bytes per change: " + (double) history.getBytes() / count, history.getBytes() < count * 5L);
+
+        PreferenceHistory.Series all = history.range(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(count, all.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(times[i], all.getTime(i));
+            assertEquals(distances[i], all.getDistance(i), 0);
+        }
+
+        PreferenceHistory.Series some = history.range(times[5000], times[5009]);
+        assertEquals(10, some.size());
+        assertEquals(times[5000], some.getTime(0));
+        assertEquals(distances[5009], some.getDistance(9), 0);
+    }
+
+    @Test
+    public void testClockGoingBackIsOrdered() {
+        PreferenceHistory history = new PreferenceHistory();
+        history.append(1000, 1);
+        history.append(2000, 2);
+        history.append(1500, Double.NaN);
+        history.append(-10, -0.0);
+        PreferenceHistory.Series series = history.range(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(-10, series.getTime(0));
+        assertEquals(1500, series.getTime(2));
+        assertTrue(Double.isNaN(series.getDistance(2)));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(series.getDistance(0)));
+        assertEquals(2, series.getDistance(3), 0);
+    }
+
+    @Test
+    public void testDownsample() {
+        PreferenceHistory history = new PreferenceHistory();
+        history.append(100, 1);
+        history.append(400, 3);
+        history.append(900, 2);
+        history.append(2500, 5);
+        history.append(3100, 4);
+
+        PreferenceHistory.Buckets buckets = history.downsample(0, 2999, 1000);
+        assertEquals(2, buckets.getSize());
+        assertArrayEquals(new long[] { 0, 2000 }, buckets.getTimes());
+        assertArrayEquals(new double[] { 1, 5 }, buckets.getMin(), 0);
+        assertArrayEquals(new double[] { 3, 5 }, buckets.getMax(), 0);
+        assertArrayEquals(new double[] { 2, 5 }, buckets.getLast(), 0);
+        assertArrayEquals(new int[] { 3, 1 }, buckets.getCounts());
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PushTokenRegistryTest {
+
+    private User user(String name, String token) {
+        User user = new User();
+        user.setName(name);
+        user.setPushToken(token);
+        return user;
+    }
+
+    @Test
+    public void testRemoveToken() {
+        PushTokenRegistry registry = new PushTokenRegistry(10);
+        User user = user("alice", "token-a");
+        registry.register(user);
+
+        registry.removeToken("alice", "token-a");
+        assertNull(user.getPushToken());
+        assertTrue(registry.isDead("token-a"));
+        assertEquals(0, registry.getTokenCount());
+
+        // registering the token again revives it
+        user.setPushToken("token-a");
+        registry.register(user);
+        assertFalse(registry.isDead("token-a"));
+    }
+
+    @Test
+    public void testRemoveTokenOfAnotherUser() {
+        PushTokenRegistry registry = new PushTokenRegistry(10);
+        User user = user("alice", "token-a");
+        registry.register(user);
+
+        registry.removeToken("bob", "token-a");
+        assertEquals("token-a", user.getPushToken());
+    }
+
+    @Test
+    public void testReplaceToken() {
+        PushTokenRegistry registry = new PushTokenRegistry(10);
+        User user = user("alice", "token-a");
+        registry.register(user);
+
+        registry.replaceToken("alice", "canonical", "token-a");
+        assertEquals("canonical", user.getPushToken());
+        assertEquals(1, registry.getTokenCount());
+
+        // the index follows the new token
+        registry.removeToken("alice", "canonical");
+        assertNull(user.getPushToken());
+        assertFalse(registry.isDead("token-a"));
+    }
+
+    @Test
+    public void testDeadTokensAreBounded() {
+        PushTokenRegistry registry = new PushTokenRegistry(2);
+        registry.removeToken("alice", "token-1");
+        registry.removeToken("alice", "token-2");
+        registry.removeToken("alice", "token-3");
+
+        assertEquals(2, registry.getDeadTokenCount());
+        assertFalse(registry.isDead("token-1"));
+        assertTrue(registry.isDead("token-3"));
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionEventsTest {
+
+    private SessionRegistry registry;
+
+    private SessionEvents events;
+
+    private Session session;
+
+    /**
+     * Keeps the events written, blocking the writes while held
+     */
+    private static class Recorder implements SessionEvents.Sink {
+
+        private final List<String> names = new ArrayList<>();
+
+        private final List<String> data = new ArrayList<>();
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private final CountDownLatch released;
+
+        private Recorder(boolean held) {
+            released = new CountDownLatch(held ? 1 : 0);
+        }
+
+        @Override
+        public void send(SessionEvents.Event event) throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (names) {
+                names.add(event.getName());
+                data.add(event.getData());
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        private List<String> names() {
+            synchronized (names) {
+                return new ArrayList<>(names);
+            }
+        }
+
+        private List<String> data() {
+            synchronized (names) {
+                return new ArrayList<>(data);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        registry = new SessionRegistry(2);
+        events = new SessionEvents(8, 2);
+        registry.addListener(events);
+        session = registry.start("events");
+    }
+
+    @After
+    public void tearDown() {
+        events.close();
+    }
+
+    @Test
+    public void testChangesArePushedInOrderUntilClosed() throws Exception {
+        Recorder recorder = new Recorder(false);
+        events.subscribe(session, recorder);
+
+        User user = user("alice");
+        session.addUser(user);
+        session.updateLocation("alice", new Location(1, 1));
+        Preference pref = new Preference();
+        pref.setDistance(2);
+        session.updatePreference("alice", pref);
+        session.removeUser("alice");
+        registry.close(session);
+
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("subscribed", "userAdded", "preferenceUpdated", "userRemoved", "closed"),
+                recorder.names());
+        assertEquals(0, events.subscriberCount(session));
+        assertNull(events.subscribe(session, new Recorder(false)));
+    }
+
+    @Test
+    public void testSlowSubscriberIsEvicted() throws Exception {
+        Recorder slow = new Recorder(true);
+        Recorder fast = new Recorder(false);
+        events.subscribe(session, slow);
+        events.subscribe(session, fast);
+
+        // the slow one holds one event in its write and eight in its buffer
+        for (int i = 0; i < 10; i++) {
+            session.addUser(user("user-" + i));
+            Thread.sleep(5);
+        }
+
+        assertEquals(1, events.subscriberCount(session));
+        assertEquals(1, events.toJSON()
+                .getLong("evicted"));
+        // the stream ends once the write in progress returns
+        slow.released.countDown();
+        assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, slow.names()
+                .size());
+
+        registry.close(session);
+        assertTrue(fast.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(12, fast.names()
+                .size());
+    }
+
+    @Test
+    public void testBlockedWriteDoesNotStarveOthers() throws Exception {
+        // a single worker, taken by the first write of the blocked one
+        SessionEvents streams = new SessionEvents(8, 1, 100);
+        registry.addListener(streams);
+        Recorder blocked = new Recorder(true);
+        Recorder other = new Recorder(false);
+        try {
+            streams.subscribe(session, blocked);
+            streams.subscribe(session, other);
+            session.addUser(user("alice"));
+            session.addUser(user("bob"));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (other.names()
+                    .size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("subscribed", "userAdded", "userAdded"), other.names());
+            assertEquals(1, streams.subscriberCount(session));
+            assertEquals(1, streams.toJSON()
+                    .getLong("stalled"));
+
+            // the stream ends once the blocked write returns
+            blocked.released.countDown();
+            assertTrue(blocked.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(1, blocked.names()
+                    .size());
+            registry.close(session);
+            assertTrue(other.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(4, other.names()
+                    .size());
+        } finally {
+            blocked.released.countDown();
+            streams.close();
+        }
+    }
+
+    @Test
+    public void testClientLeaving() throws Exception {
+        Recorder recorder = new Recorder(false);
+        SessionEvents.Subscriber subscriber = events.subscribe(session, recorder);
+        subscriber.close();
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, events.subscriberCount(session));
+        session.addUser(user("bob"));
+        assertEquals(0, events.toJSON()
+                .getLong("published"));
+    }
+
+    @Test
+    public void testNoChangeIsMissedWhileSubscribing() throws Exception {
+        SessionRegistry busy = new SessionRegistry(2);
+        SessionEvents streams = new SessionEvents(4096, 2);
+        busy.addListener(streams);
+        Session study = busy.start("busy");
+        long initial = study.getRevision();
+        int users = 2000;
+        Thread joining = new Thread(() -> {
+            for (int i = 0; i < users; i++) {
+                study.addUser(user("user-" + i));
+            }
+        });
+        List<Recorder> recorders = new ArrayList<>();
+        joining.start();
+        while (joining.isAlive() && recorders.size() < 100) {
+            Recorder recorder = new Recorder(false);
+            streams.subscribe(study, recorder);
+            recorders.add(recorder);
+            Thread.yield();
+        }
+        joining.join();
+        busy.close(study);
+
+        try {
+            for (Recorder recorder : recorders) {
+                assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+                List<String> names = recorder.names();
+                List<String> data = recorder.data();
+                assertEquals("subscribed", names.get(0));
+                // the users counted by the revision subscribed at, then the
+                // users added since
+                long revision = new JSONObject(data.get(0)).getLong("revision");
+                Set<String> known = new HashSet<>();
+                for (int i = 0; i < revision - initial; i++) {
+                    known.add("user-" + i);
+                }
+                for (int i = 1; i < names.size(); i++) {
+                    if (names.get(i)
+                            .equals("userAdded")) {
+                        known.add(new JSONObject(data.get(i)).getString("name"));
+                    }
+                }
+                assertEquals(users, known.size());
+            }
+        } finally {
+            streams.close();
+        }
+    }
+
+    private static User user(String name) {
+        User user = new User();
+        user.setName(name);
+        return user;
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionJournalTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSessionsSurviveARestart() throws Exception {
+        File directory = folder.newFolder();
+        SessionRegistry registry = new SessionRegistry(10);
+        SessionJournal journal = new SessionJournal(directory, registry, 10, 1024 * 1024, HOUR);
+        Session closed = registry.start("closed");
+        Session study = registry.start("study");
+        study.addUser(user("alice", "token-alice"));
+        study.addUser(user("bob", null));
+        study.addUser(user("carol", "token-carol"));
+        study.updatePreference("alice", preference(2.5));
+        study.removeUser("bob");
+        registry.close(closed);
+        journal.close();
+
+        SessionRegistry restored = new SessionRegistry(10);
+        new SessionJournal(directory, restored, 10, 1024 * 1024, HOUR).close();
+
+        assertEquals(1, restored.getSessionCount());
+        assertNull(restored.get(closed.getId()));
+        Session session = restored.get(study.getId());
+        assertSame(session, restored.getCurrent());
+        assertSame(session, restored.getByName("study"));
+        assertEquals(study.getStartDate(), session.getStartDate());
+        assertEquals(2, session.getActiveUsers()
+                .size());
+        assertNull(session.getActiveUsers()
+                .get("bob"));
+        User alice = session.getActiveUsers()
+                .get("alice");
+        assertEquals("token-alice", alice.getPushToken());
+        assertEquals(2.5, alice.getPref()
+                .getDistance(), 0);
+        assertNull(session.getActiveUsers()
+                .get("carol")
+                .getPref());
+    }
+
+    @Test
+    public void testLogIsReplayedOverTheSnapshot() throws Exception {
+        File directory = folder.newFolder();
+        SessionRegistry registry = new SessionRegistry(10);
+        SessionJournal journal = new SessionJournal(directory, registry, HOUR, 1024 * 1024, HOUR);
+        Session study = registry.start("study");
+        for (int i = 0; i < 10; i++) {
+            study.addUser(user("user-" + i, "token-" + i));
+        }
+        journal.snapshot();
+        study.updatePreference("user-1", preference(1));
+        study.removeUser("user-2");
+        study.addUser(user("late", null));
+        Session other = registry.start("other");
+        other.addUser(user("user-1", null));
+        journal.flush();
+
+        // a crash, nothing is written on close
+        File copy = folder.newFolder();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journal.close();
+
+        SessionRegistry restored = new SessionRegistry(10);
+        new SessionJournal(copy, restored, HOUR, 1024 * 1024, HOUR).close();
+
+        assertEquals(2, restored.getSessionCount());
+        Session session = restored.get(study.getId());
+        assertEquals(10, session.getActiveUsers()
+                .size());
+        assertNull(session.getActiveUsers()
+                .get("user-2"));
+        assertNotNull(session.getActiveUsers()
+                .get("late"));
+        assertEquals(1, session.getActiveUsers()
+                .get("user-1")
+                .getPref()
+                .getDistance(), 0);
+        assertEquals(study.getVersion(), session.getVersion());
+        assertEquals(1, restored.get(other.getId())
+                .getActiveUsers()
+                .size());
+
+        // changes after recovery are newer than the restored ones
+        session.updatePreference("user-1", preference(3));
+        assertEquals(study.getVersion() + 1, session.getVersion());
+    }
+
+    @Test
+    public void testPreferenceHistorySurvivesARestart() throws Exception {
+        File directory = folder.newFolder();
+        SessionRegistry registry = new SessionRegistry(10);
+        SessionJournal journal = new SessionJournal(directory, registry, HOUR, 1024 * 1024, HOUR);
+        Session study = registry.start("study");
+        User alice = user("alice", null);
+        alice.setPref(preference(1));
+        study.addUser(alice);
+        study.updatePreference("alice", preference(1.5));
+        study.addUser(user("bob", null));
+        study.updatePreference("bob", preference(2));
+        study.removeUser("bob");
+        journal.snapshot();
+        study.updatePreference("alice", preference(2.5));
+        journal.flush();
+
+        File copy = folder.newFolder();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journal.close();
+
+        // after a crash the log is replayed over the snapshot
+        byte[] logged = Files.readAllBytes(copy.listFiles((dir, name) -> name.endsWith(".log"))[0].toPath());
+        assertSameHistory(study, copy);
+
+        // changes made while a snapshot is taken are both in the snapshot and
+        // in the log started before it, as if this log was replayed again
+        File snapshot = copy.listFiles((dir, name) -> name.endsWith(".snapshot"))[0];
+        Files.write(new File(copy, snapshot.getName()
+                .replace(".snapshot", ".log")).toPath(), logged);
+        assertSameHistory(study, copy);
+
+        // after a clean stop the snapshot holds everything
+        assertSameHistory(study, directory);
+    }
+
+    /**
+     * Restores the sessions twice, the second time from the snapshot written
+     * by the first restore, and compares the histories with the session
+     */
+    @Test
+    public void testRemovedUsersAreNotListedAfterRecovery() throws Exception {
+        File directory = folder.newFolder();
+        SessionRegistry registry = new SessionRegistry(10);
+        SessionJournal journal = new SessionJournal(directory, registry, HOUR, 1024 * 1024, HOUR);
+        Session study = registry.start("study");
+        study.addUser(user("alice", "token-alice"));
+        study.addUser(user("bob", "token-bob"));
+        journal.snapshot();
+        study.removeUser("alice");
+        journal.flush();
+
+        File copy = folder.newFolder();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journal.close();
+
+        SessionRegistry restored = new SessionRegistry(10);
+        new SessionJournal(copy, restored, HOUR, 1024 * 1024, HOUR).close();
+
+        Session session = restored.get(study.getId());
+        assertEquals(Arrays.asList("bob"), new ArrayList<>(session.getActiveUsers()
+                .keySet()));
+        List<String> listed = new ArrayList<>();
+        for (User user : session.usersAfter(null)) {
+            listed.add(user.getName());
+        }
+        assertEquals(Arrays.asList("bob"), listed);
+        assertEquals(1, session.getUsers().length);
+        assertEquals(study.getVersion(), session.getVersion());
+    }
+
+    private void assertSameHistory(Session study, File directory) throws Exception {
+        for (int restart = 0; restart < 2; restart++) {
+            SessionRegistry restored = new SessionRegistry(10);
+            new SessionJournal(directory, restored, HOUR, 1024 * 1024, HOUR).close();
+            Session session = restored.get(study.getId());
+            for (String name : new String[] { "alice", "bob" }) {
+                PreferenceHistory.Series expected = study.getPreferenceHistory()
+                        .get(name)
+                        .all();
+                PreferenceHistory.Series actual = session.getPreferenceHistory()
+                        .get(name)
+                        .all();
+                assertEquals(name, expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.getTime(i), actual.getTime(i));
+                    assertEquals(expected.getDistance(i), actual.getDistance(i), 0);
+                }
+                assertEquals(expected.getVersion(), actual.getVersion());
+            }
+        }
+    }
+
+    @Test
+    public void testTornEndOfTheLogIsIgnored() throws Exception {
+        File directory = folder.newFolder();
+        SessionRegistry registry = new SessionRegistry(10);
+        SessionJournal journal = new SessionJournal(directory, registry, HOUR, 1024 * 1024, HOUR);
+        Session study = registry.start("study");
+        study.addUser(user("alice", "token-alice"));
+        journal.flush();
+        File copy = folder.newFolder();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        journal.close();
+
+        // half a record, as left by a crash during a write
+        File log = copy.listFiles((dir, name) -> name.endsWith(".log"))[0];
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 3, 0 });
+        }
+
+        SessionRegistry restored = new SessionRegistry(10);
+        SessionJournal recovered = new SessionJournal(copy, restored, HOUR, 1024 * 1024, HOUR);
+        assertEquals(1, restored.get(study.getId())
+                .getActiveUsers()
+                .size());
+
+        // the torn end does not hide later changes
+        restored.get(study.getId())
+                .addUser(user("bob", null));
+        recovered.close();
+        SessionRegistry again = new SessionRegistry(10);
+        new SessionJournal(copy, again, HOUR, 1024 * 1024, HOUR).close();
+        assertEquals(2, again.get(study.getId())
+                .getActiveUsers()
+                .size());
+    }
+
+    private static User user(String name, String token) {
+        User user = new User();
+        user.setName(name);
+        user.setPushToken(token);
+        return user;
+    }
+
+    private static Preference preference(double distance) {
+        Preference pref = new Preference();
+        pref.setDistance(distance);
+        return pref;
+    }
+}
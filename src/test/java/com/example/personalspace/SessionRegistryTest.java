@@ -0,0 +1,60 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+    @Test
+    public void testSessionsAreIndexedById() {
+        SessionRegistry registry = new SessionRegistry(10);
+        Session first = registry.start("first");
+        Session second = registry.start("second");
+
+        assertNotEquals(first.getId(), second.getId());
+        assertSame(first, registry.get(first.getId()));
+        assertSame(second, registry.get(second.getId()));
+        assertSame(second, registry.getCurrent());
+        assertEquals(2, registry.getSessionCount());
+    }
+
+    @Test
+    public void testNameIsActiveOnce() {
+        SessionRegistry registry = new SessionRegistry(10);
+        Session session = registry.start("study");
+
+        assertNull(registry.start("study"));
+        assertSame(session, registry.getByName("study"));
+
+        // the name is free again once the session is closed
+        assertTrue(registry.close(session));
+        assertFalse(registry.close(session));
+        assertNull(registry.get(session.getId()));
+        assertNotNull(registry.start("study"));
+    }
+
+    @Test
+    public void testActiveSessionsAreLimited() {
+        SessionRegistry registry = new SessionRegistry(2);
+        Session first = registry.start("first");
+        registry.start("second");
+        try {
+            registry.start("third");
+            throw new AssertionError("The third session was started");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertNull(registry.getByName("third"));
+
+        registry.close(first);
+        assertNotNull(registry.start("third"));
+        assertEquals(2, registry.getSessionCount());
+    }
+}
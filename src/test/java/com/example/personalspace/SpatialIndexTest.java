@@ -0,0 +1,116 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class SpatialIndexTest {
+
+    @Test
+    public void testQueriesMatchALinearScan() {
+        Random random = new Random(42);
+        Session session = new Session();
+        for (int i = 0; i < 2000; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            session.addUser(user);
+            session.updateLocation(user.getName(), new Location(random.nextDouble() * 100 - 50,
+                    random.nextDouble() * 100 - 50));
+        }
+        SpatialIndex index = session.getIndex();
+
+        for (int query = 0; query < 200; query++) {
+            double x = random.nextDouble() * 120 - 60;
+            double y = random.nextDouble() * 120 - 60;
+            double distance = random.nextDouble() * 15;
+            List<Double> expected = scan(session, x, y);
+
+            List<SpatialIndex.Neighbour> within = index.within(x, y, distance, null);
+            int inside = 0;
+            while (inside < expected.size() && expected.get(inside) <= distance) {
+                inside++;
+            }
+            assertEquals(inside, within.size());
+            for (int i = 0; i < within.size(); i++) {
+                assertEquals(expected.get(i), within.get(i)
+                        .getDistance(), 1e-9);
+            }
+
+            int count = 1 + random.nextInt(20);
+            List<SpatialIndex.Neighbour> nearest = index.nearest(x, y, count, Double.POSITIVE_INFINITY, null);
+            assertEquals(count, nearest.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected.get(i), nearest.get(i)
+                        .getDistance(), 1e-9);
+            }
+            assertEquals(Math.min(count, inside), index.nearest(x, y, count, distance, null)
+                    .size());
+        }
+    }
+
+    @Test
+    public void testMovedAndRemovedUsersLeaveTheirCell() {
+        Session session = new Session();
+        User alice = new User();
+        alice.setName("alice");
+        session.addUser(alice);
+        session.updateLocation("alice", new Location(0.5, 0.5));
+        session.updateLocation("alice", new Location(100.5, 0.5));
+        assertEquals(1, session.getIndex()
+                .getCellCount());
+        assertTrue(session.getIndex()
+                .within(0, 0, 10, null)
+                .isEmpty());
+        assertEquals(1, session.getIndex()
+                .nearest(0, 0, 5, Double.POSITIVE_INFINITY, null)
+                .size());
+
+        session.removeUser("alice");
+        assertEquals(0, session.getIndex()
+                .getCellCount());
+    }
+
+    @Test
+    public void testNeighboursAreWithinThePersonalSpace() {
+        Session session = new Session();
+        double[][] locations = { { 0, 0 }, { 1, 0 }, { 0, 2 }, { 3, 0 } };
+        for (int i = 0; i < locations.length; i++) {
+            User user = new User();
+            user.setName("user-" + i);
+            Preference pref = new Preference();
+            pref.setDistance(2);
+            user.setPref(pref);
+            session.addUser(user);
+            session.updateLocation(user.getName(), new Location(locations[i][0], locations[i][1]));
+        }
+
+        List<SpatialIndex.Neighbour> neighbours = session.getNeighbours("user-0", 0);
+        assertEquals(2, neighbours.size());
+        assertEquals("user-1", neighbours.get(0)
+                .getUser()
+                .getName());
+        assertEquals("user-2", neighbours.get(1)
+                .getUser()
+                .getName());
+        assertEquals(1, session.getNeighbours("user-0", 1)
+                .size());
+    }
+
+    /**
+     * The distances of all users to the point, nearest first
+     */
+    private static List<Double> scan(Session session, double x, double y) {
+        List<Double> distances = new ArrayList<>();
+        for (User user : session.getUsers()) {
+            distances.add(user.getLocation()
+                    .distanceTo(x, y));
+        }
+        distances.sort(Comparator.naturalOrder());
+        return distances;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class TelemetryBufferTest {
+
+    @Test
+    public void testOldestSamplesAreOverwritten() {
+        TelemetryBuffer buffer = new TelemetryBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.add(i * 10, i, -i, i * 90);
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(6, buffer.getWritten());
+
+        TelemetryBuffer.Window window = buffer.read(0, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertArrayEquals(new long[] { 20, 30, 40, 50 }, window.getTimes());
+        assertArrayEquals(new float[] { 2, 3, 4, 5 }, window.getXs(), 0);
+        assertArrayEquals(new float[] { -2, -3, -4, -5 }, window.getYs(), 0);
+        assertEquals(6, window.getWritten());
+    }
+
+    @Test
+    public void testWindowKeepsTheLatestSamples() {
+        TelemetryBuffer buffer = new TelemetryBuffer(8);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(i, i, i, Float.NaN);
+        }
+        assertArrayEquals(new long[] { 4, 5, 6 }, buffer.read(4, 6, 10)
+                .getTimes());
+        assertArrayEquals(new long[] { 5, 6 }, buffer.read(4, 6, 2)
+                .getTimes());
+        assertEquals(0, buffer.read(20, 30, 10)
+                .size());
+        assertTrue(Float.isNaN(buffer.read(9, 9, 1)
+                .getHeadings()[0]));
+
+        // a late sample is still found by its time, in the order it arrived
+        buffer.add(3, 0, 0, 0);
+        assertArrayEquals(new long[] { 3, 4, 3 }, buffer.read(3, 4, 10)
+                .getTimes());
+    }
+
+    @Test
+    public void testIngestBatch() throws Exception {
+        SessionRegistry registry = new SessionRegistry(1);
+        Session session = registry.start("telemetry");
+        for (String name : new String[] { "alice", "bob" }) {
+            User user = new User();
+            user.setName(name);
+            session.addUser(user);
+        }
+
+        TelemetryIngester ingester = new TelemetryIngester(16);
+        String batch = "{\"alice\": [[100, 1.5, 2, 90], [150, 1.75, 2], [160, \"x\", 1], [170, 1]],"
+                + " \"bob\": [[120, 4, 3.5]], \"carol\": [[100, 0, 0], [110, 0, 0]]}";
+        TelemetryIngester.Result result = ingester.ingest(session,
+                new ByteArrayInputStream(batch.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, result.getAccepted());
+        assertEquals(4, result.getRejected());
+        assertEquals(1, result.getUnknownUsers());
+
+        TelemetryBuffer.Window alice = session.telemetryOf("alice", 16)
+                .read(0, Long.MAX_VALUE, 10);
+        assertArrayEquals(new long[] { 100, 150 }, alice.getTimes());
+        assertEquals(90, alice.getHeadings()[0], 0);
+        assertTrue(Float.isNaN(alice.getHeadings()[1]));
+        // the latest sample is the location
+        assertEquals(new Location(1.75, 2), session.getActiveUsers()
+                .get("alice")
+                .getLocation());
+        assertNull(session.telemetryOf("carol", 16));
+
+        session.removeUser("bob");
+        assertNull(session.getTelemetry()
+                .get("bob"));
+    }
+
+    @Test
+    public void testNumbersAreReadAsTheyAreWritten() throws Exception {
+        Session session = new SessionRegistry(1).start("numbers");
+        User user = new User();
+        user.setName("alice");
+        session.addUser(user);
+
+        String[] numbers = { "0", "-7", "0.1", "-0.125", "12.345", "1e2", "-2.5E-3", "0.00000000000000000012",
+                "123456789.123456789", "3.14159265358979323846" };
+        StringBuilder batch = new StringBuilder("{\"alice\": [");
+        for (int i = 0; i < numbers.length; i++) {
+            batch.append(i == 0 ? "" : ",")
+                    .append("[")
+                    .append(i)
+                    .append(",")
+                    .append(numbers[i])
+                    .append(",0]");
+        }
+        batch.append("]}");
+        new TelemetryIngester(16).ingest(session, new ByteArrayInputStream(batch.toString()
+                .getBytes(StandardCharsets.UTF_8)));
+
+        float[] xs = session.telemetryOf("alice", 16)
+                .read(0, Long.MAX_VALUE, 16)
+                .getXs();
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(numbers[i], Float.parseFloat(numbers[i]), xs[i], 0);
+        }
+    }
+}
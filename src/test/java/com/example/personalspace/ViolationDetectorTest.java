@@ -0,0 +1,174 @@
+package com.example.personalspace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.firebase.FirebaseMessage;
+import com.example.firebase.Message;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ViolationDetectorTest {
+
+    private List<FirebaseMessage> sent;
+
+    private SessionRegistry registry;
+
+    private Session session;
+
+    @Before
+    public void setUp() {
+        sent = new ArrayList<>();
+        registry = new SessionRegistry(10);
+    }
+
+    private ViolationDetector start(long debounce) {
+        ViolationDetector detector = new ViolationDetector((Message message) -> sent.add((FirebaseMessage) message),
+                null, debounce);
+        registry.addListener(detector);
+        session = registry.start("study");
+        return detector;
+    }
+
+    @Test
+    public void testOwnerIsNotifiedOnceWhenEntered() throws Exception {
+        ViolationDetector detector = start(60000);
+        join("alice", "token-alice", 2);
+        join("bob", "token-bob", 0);
+        session.updateLocation("alice", new Location(0, 0));
+        session.updateLocation("bob", new Location(5, 0));
+        assertEquals(0, sent.size());
+
+        session.updateLocation("bob", new Location(1.5, 0));
+        assertEquals(1, sent.size());
+        assertEquals("token-alice", sent.get(0)
+                .getRecipientToken());
+        assertEquals("bob", new JSONObject(sent.get(0)
+                .getBody()).getJSONObject("data")
+                        .getString("intruder"));
+
+        // staying inside, then stepping out and back within the debounce
+        session.updateLocation("bob", new Location(1, 0));
+        session.updateLocation("alice", new Location(0.5, 0));
+        session.updateLocation("bob", new Location(3, 0));
+        session.updateLocation("bob", new Location(1, 0));
+        assertEquals(1, sent.size());
+        assertEquals(2, detector.getViolations());
+        assertEquals(1, detector.getDebounced());
+    }
+
+    @Test
+    public void testEveryEntryIsNotifiedWithoutDebounce() {
+        start(0);
+        join("alice", "token-alice", 2);
+        join("bob", "token-bob", 2);
+        session.updateLocation("alice", new Location(0, 0));
+        for (int i = 0; i < 3; i++) {
+            session.updateLocation("bob", new Location(10, 0));
+            session.updateLocation("bob", new Location(1, 0));
+        }
+        // each enters the personal space of the other three times
+        assertEquals(6, sent.size());
+    }
+
+    @Test
+    public void testLargerPersonalSpaceIsAViolation() {
+        start(60000);
+        join("alice", "token-alice", 1);
+        join("bob", null, 0);
+        session.updateLocation("alice", new Location(0, 0));
+        session.updateLocation("bob", new Location(3, 0));
+        assertEquals(0, sent.size());
+
+        Preference pref = new Preference();
+        pref.setDistance(4);
+        session.updatePreference("alice", pref);
+        assertEquals(1, sent.size());
+
+        // bob has no token, alice entering his space notifies no one
+        pref = new Preference();
+        pref.setDistance(5);
+        session.updatePreference("bob", pref);
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void testRemovedUserLeavesItsPairs() {
+        ViolationDetector detector = start(0);
+        join("alice", "token-alice", 2);
+        join("bob", "token-bob", 0);
+        session.updateLocation("alice", new Location(0, 0));
+        session.updateLocation("bob", new Location(1, 0));
+        assertEquals(1, sent.size());
+
+        session.removeUser("bob");
+        join("bob", "token-bob", 0);
+        session.updateLocation("bob", new Location(1, 0));
+        assertEquals(2, sent.size());
+        assertEquals(2, detector.getNotifications());
+    }
+
+    @Test
+    public void testPairsOutsideAreForgotten() throws Exception {
+        ViolationDetector detector = start(0);
+        walkPast(100);
+        assertEquals(200, detector.getNotifications());
+        // bob is only kept paired with the user he stands next to
+        assertEquals(2, detector.getPairCount());
+    }
+
+    @Test
+    public void testPairsAreForgottenOnceTheDebouncePassed() throws Exception {
+        ViolationDetector detector = start(50);
+        walkPast(100);
+        assertTrue(detector.getPairCount() > 2);
+
+        Thread.sleep(60);
+        session.updateLocation("bob", new Location(-100, 0));
+        assertEquals(0, detector.getPairCount());
+        assertEquals(0, detector.toJSON()
+                .getInt("pairs"));
+    }
+
+    /**
+     * Bob walks along a row of users, meeting each of them once
+     */
+    private void walkPast(int users) {
+        join("bob", "token-bob", 2);
+        for (int i = 0; i < users; i++) {
+            join("user-" + i, "token-" + i, 2);
+            session.updateLocation("user-" + i, new Location(i * 10, 0));
+        }
+        for (int i = 0; i < users; i++) {
+            session.updateLocation("bob", new Location(i * 10 + 1, 0));
+        }
+    }
+
+    @Test
+    public void testPairReenteringWithinTheDebounceIsKept() throws Exception {
+        ViolationDetector detector = start(60000);
+        join("alice", "token-alice", 2);
+        join("bob", "token-bob", 0);
+        session.updateLocation("alice", new Location(0, 0));
+        for (int i = 0; i < 3; i++) {
+            session.updateLocation("bob", new Location(1, 0));
+            session.updateLocation("bob", new Location(10, 0));
+        }
+        assertEquals(1, detector.getPairCount());
+        assertEquals(1, sent.size());
+        assertEquals(2, detector.getDebounced());
+    }
+
+    private void join(String name, String token, double distance) {
+        User user = new User();
+        user.setName(name);
+        user.setPushToken(token);
+        Preference pref = new Preference();
+        pref.setDistance(distance);
+        user.setPref(pref);
+        session.addUser(user);
+    }
+}